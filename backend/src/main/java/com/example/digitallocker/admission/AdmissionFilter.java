@@ -0,0 +1,149 @@
+package com.example.digitallocker.admission;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ Admission control for authorized requests (it runs after the role checks in SecurityConfig), keyed on the
+ uid the FirebaseTokenFilter authenticated:
+   - every request of an EndpointClass takes a token from the user's bucket for that class (RateLimiter)
+   - crypto-heavy requests also hold a slot in their priority lane (PriorityLanes) until the response is
+     complete, including the asynchronous part of a streamed download or batch upload
+ Rejected requests get 429 with Retry-After (seconds): the wait for the user's next token, or one
+ second when the lanes are full.
+
+ Published metrics: "locker.admission.rejected{endpoint, reason, role}" (reason = rate or concurrency).
+ */
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionFilter.class);
+    private static final String ROLE_PREFIX = "ROLE_";
+
+    private final boolean enabled;
+    private final RateLimiter rateLimiter;
+    private final PriorityLanes lanes;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> rejections = new ConcurrentHashMap<>();
+
+    public AdmissionFilter(@Value("${locker.admission.enabled:true}") boolean enabled,
+                           RateLimiter rateLimiter,
+                           PriorityLanes lanes,
+                           MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.rateLimiter = rateLimiter;
+        this.lanes = lanes;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        EndpointClass endpoint = enabled ? EndpointClass.of(request) : null;
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (endpoint == null || authentication == null || authentication instanceof AnonymousAuthenticationToken) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        String uid = authentication.getName();
+
+        long waitNanos = rateLimiter.tryAcquire(endpoint, uid);
+        if (waitNanos > 0) {
+            reject(response, endpoint, "rate", authentication, waitNanos);
+            return;
+        }
+        PriorityLanes.Lane lane = endpoint.lane();
+        if (lane == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        if (!lanes.acquire(lane)) {
+            reject(response, endpoint, "concurrency", authentication, TimeUnit.SECONDS.toNanos(1));
+            return;
+        }
+
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                lanes.release();
+            }
+        };
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // The response is still being written: keep the slot until it's done
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        release.run();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        release.run();
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        release.run();
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    private void reject(HttpServletResponse response, EndpointClass endpoint, String reason,
+                        Authentication authentication, long waitNanos) throws IOException {
+        String role = role(authentication);
+        rejections.computeIfAbsent(endpoint.tag() + "/" + reason + "/" + role, key -> Counter.builder("locker.admission.rejected")
+                        .tag("endpoint", endpoint.tag())
+                        .tag("reason", reason)
+                        .tag("role", role)
+                        .register(meterRegistry))
+                .increment();
+        log.debug("Rejected {} request of {} ({}): {}", endpoint.tag(), authentication.getName(), role, reason);
+        long retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfter));
+        response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests");
+    }
+
+    private static String role(Authentication authentication) {
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            String name = authority.getAuthority();
+            if (name != null && name.startsWith(ROLE_PREFIX)) {
+                return name.substring(ROLE_PREFIX.length());
+            }
+        }
+        return "none";
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.digitallocker.admission;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/*
+ The endpoints admission control limits, grouped by cost. Each class has its own per-user rate limit;
+ the crypto-heavy ones also hold a slot in a priority lane (see PriorityLanes) while they run.
+ Everything else (messaging, admin, the event stream) is only subject to the role checks in SecurityConfig.
+ */
+public enum EndpointClass {
+
+    LISTING("listing", null),
+    DOWNLOAD("download", PriorityLanes.Lane.INTERACTIVE),
+    UPLOAD("upload", PriorityLanes.Lane.BULK),
+    EXPORT("export", PriorityLanes.Lane.BULK);
+
+    private static final String FILES = "/api/files/";
+
+    private final String tag;
+    private final PriorityLanes.Lane lane;
+
+    EndpointClass(String tag, PriorityLanes.Lane lane) {
+        this.tag = tag;
+        this.lane = lane;
+    }
+
+    public String tag() {
+        return tag;
+    }
+
+    // Null for endpoints that don't take a crypto slot
+    public PriorityLanes.Lane lane() {
+        return lane;
+    }
+
+    // Null if the request isn't admission-controlled
+    public static EndpointClass of(HttpServletRequest request) {
+        String path = request.getServletPath();
+        if (!path.startsWith(FILES)) {
+            return null;
+        }
+        String method = request.getMethod();
+        if ("GET".equals(method)) {
+            if (path.equals(FILES + "list")) {
+                return LISTING;
+            }
+            if (path.endsWith("/download")) {
+                return DOWNLOAD;
+            }
+            if (path.equals(FILES + "export")) {
+                return EXPORT;
+            }
+        } else if ("POST".equals(method) && (path.equals(FILES + "upload") || path.equals(FILES + "upload/batch"))) {
+            return UPLOAD;
+        }
+        return null;
+    }
+}
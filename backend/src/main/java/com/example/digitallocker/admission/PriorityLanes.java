@@ -0,0 +1,121 @@
+package com.example.digitallocker.admission;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ Concurrency cap for the crypto-heavy endpoints, shared by two lanes:
+   - interactive (downloads) may use every one of the `max-concurrent` slots
+   - bulk (uploads, exports) may use at most `bulk-max-concurrent` of them, so bulk work can never take the
+     slots interactive requests need
+ When no slot is free a request waits up to `queue-timeout`; a freed slot goes to a waiting interactive
+ request before any bulk one. Slots are one AtomicInteger taken with compare-and-set; only requests that
+ have to wait touch the waiter queues.
+
+ Published metrics: "locker.admission.in-flight" (slots in use) and "locker.admission.waiting{lane}".
+ */
+@Component
+public class PriorityLanes {
+
+    public enum Lane { INTERACTIVE, BULK }
+
+    private final int interactiveLimit;
+    private final int bulkLimit;
+    private final long queueTimeoutNanos;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final Map<Lane, Queue<Thread>> waiters = new EnumMap<>(Lane.class);
+
+    public PriorityLanes(@Value("${locker.admission.crypto.max-concurrent:0}") int maxConcurrent,
+                         @Value("${locker.admission.crypto.bulk-max-concurrent:0}") int bulkMaxConcurrent,
+                         @Value("${locker.admission.crypto.queue-timeout:2s}") Duration queueTimeout,
+                         MeterRegistry meterRegistry) {
+        // 0 means "size from the machine": two per core, of which bulk work may take half
+        this.interactiveLimit = maxConcurrent > 0 ? maxConcurrent : 2 * Runtime.getRuntime().availableProcessors();
+        this.bulkLimit = Math.min(interactiveLimit, bulkMaxConcurrent > 0 ? bulkMaxConcurrent : Math.max(1, interactiveLimit / 2));
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+        for (Lane lane : Lane.values()) {
+            Queue<Thread> queue = new ConcurrentLinkedQueue<>();
+            waiters.put(lane, queue);
+            Gauge.builder("locker.admission.waiting", queue, Queue::size)
+                    .tag("lane", lane.name().toLowerCase())
+                    .register(meterRegistry);
+        }
+        Gauge.builder("locker.admission.in-flight", inUse, AtomicInteger::get).register(meterRegistry);
+    }
+
+    // Takes a slot in the lane, waiting up to the queue timeout; false if none became free. Every slot taken
+    // must be given back with release().
+    public boolean acquire(Lane lane) {
+        if (tryAcquire(lane)) {
+            return true;
+        }
+        if (queueTimeoutNanos <= 0) {
+            return false;
+        }
+        Queue<Thread> queue = waiters.get(lane);
+        Thread self = Thread.currentThread();
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        queue.add(self);
+        while (true) {
+            // Tried after joining the queue, so a release in between can't be missed
+            if (tryAcquire(lane)) {
+                queue.remove(self);
+                // Another slot may have been freed while this thread was being woken
+                signal();
+                return true;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || self.isInterrupted()) {
+                queue.remove(self);
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    public void release() {
+        inUse.decrementAndGet();
+        signal();
+    }
+
+    int waiting(Lane lane) {
+        return waiters.get(lane).size();
+    }
+
+    private boolean tryAcquire(Lane lane) {
+        int limit = lane == Lane.INTERACTIVE ? interactiveLimit : bulkLimit;
+        while (true) {
+            int current = inUse.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inUse.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Wakes the first waiting interactive request, or the first bulk one if no interactive request is waiting
+    private void signal() {
+        if (inUse.get() >= interactiveLimit) {
+            return;
+        }
+        Thread next = waiters.get(Lane.INTERACTIVE).peek();
+        if (next == null && inUse.get() < bulkLimit) {
+            next = waiters.get(Lane.BULK).peek();
+        }
+        if (next != null) {
+            LockSupport.unpark(next);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.digitallocker.admission;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ Token buckets per user and endpoint class: each class refills at `rate` requests per second and holds up
+ to `burst` tokens (rate 0 = unlimited). A bucket is a single AtomicLong holding the time at which it will
+ be full again (the GCRA form of a token bucket), updated with compare-and-set, so admitting a request
+ takes no lock and allocates nothing once the user's bucket exists. Buckets of users idle for longer
+ than `idle` are dropped.
+ */
+@Component
+public class RateLimiter {
+
+    private record Limit(long intervalNanos, long toleranceNanos) {}
+
+    private final Map<EndpointClass, Limit> limits = new EnumMap<>(EndpointClass.class);
+    private final Map<EndpointClass, Cache<String, AtomicLong>> buckets = new EnumMap<>(EndpointClass.class);
+
+    public RateLimiter(@Value("${locker.admission.listing.rate:10}") double listingRate,
+                       @Value("${locker.admission.listing.burst:50}") int listingBurst,
+                       @Value("${locker.admission.download.rate:20}") double downloadRate,
+                       @Value("${locker.admission.download.burst:100}") int downloadBurst,
+                       @Value("${locker.admission.upload.rate:2}") double uploadRate,
+                       @Value("${locker.admission.upload.burst:20}") int uploadBurst,
+                       @Value("${locker.admission.export.rate:0.1}") double exportRate,
+                       @Value("${locker.admission.export.burst:3}") int exportBurst,
+                       @Value("${locker.admission.buckets.max-size:100000}") long maxSize,
+                       @Value("${locker.admission.buckets.idle:10m}") Duration idle) {
+        limit(EndpointClass.LISTING, listingRate, listingBurst, maxSize, idle);
+        limit(EndpointClass.DOWNLOAD, downloadRate, downloadBurst, maxSize, idle);
+        limit(EndpointClass.UPLOAD, uploadRate, uploadBurst, maxSize, idle);
+        limit(EndpointClass.EXPORT, exportRate, exportBurst, maxSize, idle);
+    }
+
+    private void limit(EndpointClass endpoint, double rate, int burst, long maxSize, Duration idle) {
+        if (rate <= 0) {
+            return;
+        }
+        long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        limits.put(endpoint, new Limit(interval, interval * Math.max(1, burst)));
+        buckets.put(endpoint, Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(idle)
+                .build());
+    }
+
+    // 0 if the request is admitted (taking a token), otherwise how long until the user's next token, in nanoseconds
+    public long tryAcquire(EndpointClass endpoint, String uid) {
+        return tryAcquire(endpoint, uid, System.nanoTime());
+    }
+
+    long tryAcquire(EndpointClass endpoint, String uid, long now) {
+        Limit limit = limits.get(endpoint);
+        if (limit == null) {
+            return 0;
+        }
+        AtomicLong full = buckets.get(endpoint).get(uid, key -> new AtomicLong(now));
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + limit.intervalNanos();
+            long ahead = next - now - limit.toleranceNanos();
+            if (ahead > 0) {
+                return ahead;
+            }
+            if (full.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
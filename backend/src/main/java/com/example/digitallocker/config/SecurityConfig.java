@@ -1,12 +1,15 @@
 package com.example.digitallocker.config;
 
+import com.example.digitallocker.admission.AdmissionFilter;
 import com.example.digitallocker.security.FirebaseTokenFilter;
+import jakarta.servlet.DispatcherType;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.access.intercept.AuthorizationFilter;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.CorsConfigurationSource;
@@ -21,9 +24,11 @@ import static org.springframework.security.config.Customizer.withDefaults;
 public class SecurityConfig {
 
     private final FirebaseTokenFilter firebaseTokenFilter;
+    private final AdmissionFilter admissionFilter;
 
-    public SecurityConfig(FirebaseTokenFilter firebaseTokenFilter) {
+    public SecurityConfig(FirebaseTokenFilter firebaseTokenFilter, AdmissionFilter admissionFilter) {
         this.firebaseTokenFilter = firebaseTokenFilter;
+        this.admissionFilter = admissionFilter;
     }
 
 
@@ -34,7 +39,12 @@ public class SecurityConfig {
                 .csrf(csrf -> csrf.disable())
                 .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
                 .addFilterBefore(firebaseTokenFilter, UsernamePasswordAuthenticationFilter.class)
+                // Rate limits and priority lanes, for requests that passed the role checks below
+                .addFilterAfter(admissionFilter, AuthorizationFilter.class)
                 .authorizeHttpRequests(auth -> auth
+                        // Streamed downloads finish on an async dispatch; the original request was already authorized
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC, DispatcherType.ERROR).permitAll()
+
                         // Rule for admin-only endpoints
                         .requestMatchers("/api/admin/**").hasAuthority("ROLE_admin")
 
@@ -42,7 +52,10 @@ public class SecurityConfig {
                         .requestMatchers("/api/messages/**").hasAnyAuthority("ROLE_admin", "ROLE_doctor")
 
                         // Rule for who can upload
-                        .requestMatchers("/api/files/upload").hasAnyAuthority("ROLE_admin", "ROLE_doctor")
+                        .requestMatchers("/api/files/upload", "/api/files/upload/batch").hasAnyAuthority("ROLE_admin", "ROLE_doctor")
+
+                        // Push channel for messages and file events
+                        .requestMatchers("/api/events", "/api/events/ticket").authenticated()
 
                         // General rule for any other file APIs (like list/download)
                         .requestMatchers("/api/files/**").authenticated()
@@ -61,7 +74,9 @@ public class SecurityConfig {
         CorsConfiguration configuration = new CorsConfiguration();
         configuration.setAllowedOrigins(List.of("http://localhost:3000"));
         configuration.setAllowedMethods(List.of("GET", "POST", "PUT", "DELETE"));
-        configuration.setAllowedHeaders(List.of("Authorization", "Content-Type"));
+        configuration.setAllowedHeaders(List.of("Authorization", "Content-Type", "Range", "If-None-Match"));
+        configuration.setExposedHeaders(List.of("Content-Range", "Accept-Ranges", "Content-Disposition", "X-Next-Page-Token",
+                "ETag", "X-Older-Page-Token", "X-Newer-Page-Token", "Retry-After"));
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
         source.registerCorsConfiguration("/**", configuration);
         return source;
@@ -1,24 +1,51 @@
 package com.example.digitallocker.controller;
 
-import com.google.api.core.ApiFuture;
-import com.google.cloud.firestore.*;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.security.VerifiedTokenCache;
+import com.example.digitallocker.service.AccessIndex;
+import com.example.digitallocker.service.DirectoryService;
+import com.example.digitallocker.service.FileUploadService;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.UserRecord;
-import com.google.firebase.cloud.FirestoreClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/admin")
 public class AdminController {
 
+    private static final Logger log = LoggerFactory.getLogger(AdminController.class);
+
+    private final VerifiedTokenCache tokenCache;
+    private final MetadataStore metadataStore;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final AccessIndex accessIndex;
+    private final DirectoryService directoryService;
+    private final FileUploadService fileUploadService;
+
+    public AdminController(VerifiedTokenCache tokenCache, MetadataStore metadataStore, FileMetadataRepository fileMetadataRepository,
+                           AccessIndex accessIndex, DirectoryService directoryService, FileUploadService fileUploadService) {
+        this.tokenCache = tokenCache;
+        this.metadataStore = metadataStore;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.accessIndex = accessIndex;
+        this.directoryService = directoryService;
+        this.fileUploadService = fileUploadService;
+    }
+
     // --- NEW: Create User Endpoint ---
     @PostMapping("/create-user")
     public ResponseEntity<Map<String, String>> createUser(@RequestBody Map<String, String> payload) {
@@ -42,8 +69,10 @@ public class AdminController {
             // Set the custom role claim immediately
             Map<String, Object> claims = Map.of("role", role);
             FirebaseAuth.getInstance().setCustomUserClaims(userRecord.getUid(), claims);
+            // The email may be cached as unknown from an earlier lookup
+            directoryService.invalidateEmail(email);
 
-            System.out.println("Successfully created new user: " + userRecord.getUid() + " with role: " + role);
+            log.info("Created user {} with role {}", userRecord.getUid(), role);
 
             Map<String, String> response = new HashMap<>();
             response.put("message", "User created successfully with role " + role);
@@ -51,7 +80,7 @@ public class AdminController {
             return ResponseEntity.status(HttpStatus.CREATED).body(response);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Creating user failed", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Error creating user: " + e.getMessage()));
         }
     }
@@ -63,31 +92,71 @@ public class AdminController {
             String doctorUid = payload.get("doctorUid");
             String patientUid = payload.get("patientUid");
 
-            Firestore db = FirestoreClient.getFirestore();
-            DocumentReference docRef = db.collection("doctor_assignments").document(doctorUid);
-
-            // Use arrayUnion to add the patient to the doctor's list
-            docRef.set(Map.of("patientUids", FieldValue.arrayUnion(patientUid)), SetOptions.merge());
+            // Add the patient to the doctor's list; wait for it so the access index never runs ahead of the store
+            metadataStore.assignPatient(doctorUid, patientUid).get();
+            accessIndex.onPatientAssigned(doctorUid, patientUid);
 
             return ResponseEntity.ok("Patient " + patientUid + " assigned to doctor " + doctorUid);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Assigning patient failed", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error assigning patient: " + e.getMessage());
         }
     }
 
-    @GetMapping("/assignments")
-    public ResponseEntity<List<Map<String, Object>>> getAssignments() throws ExecutionException, InterruptedException {
-        Firestore db = FirestoreClient.getFirestore();
-        ApiFuture<QuerySnapshot> future = db.collection("doctor_assignments").get();
-        List<QueryDocumentSnapshot> documents = future.get().getDocuments();
+    // Assigns many patients to a doctor by email, e.g. when a doctor takes over a panel. All emails are resolved
+    // in one directory batch; emails that aren't patients are reported back instead of failing the whole request.
+    @PostMapping("/assign-patients")
+    public ResponseEntity<Map<String, Object>> assignPatients(@RequestBody Map<String, Object> payload) {
+        try {
+            String doctorEmail = (String) payload.get("doctorEmail");
+            List<?> patientEmails = payload.get("patientEmails") instanceof List<?> list ? list : List.of();
+            if (doctorEmail == null || patientEmails.isEmpty()) {
+                return ResponseEntity.badRequest().body(Map.of("error", "doctorEmail and patientEmails are required."));
+            }
+
+            List<String> emails = new ArrayList<>();
+            emails.add(doctorEmail);
+            patientEmails.forEach(email -> emails.add(String.valueOf(email)));
+            Map<String, DirectoryService.DirectoryEntry> resolved = directoryService.resolveAll(emails);
 
-        // Convert the Firestore documents into a list of maps for the frontend
-        List<Map<String, Object>> assignments = documents.stream()
-                .map(doc -> Map.of("id", doc.getId(), "data", doc.getData()))
-                .collect(Collectors.toList());
+            DirectoryService.DirectoryEntry doctor = resolved.get(DirectoryService.normalize(doctorEmail));
+            if (doctor == null || !"doctor".equals(doctor.role())) {
+                return ResponseEntity.badRequest().body(Map.of("error", "No doctor with email " + doctorEmail));
+            }
+
+            List<String> assigned = new ArrayList<>();
+            List<String> rejected = new ArrayList<>();
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (String email : emails.subList(1, emails.size())) {
+                DirectoryService.DirectoryEntry patient = resolved.get(DirectoryService.normalize(email));
+                if (patient == null || !"patient".equals(patient.role())) {
+                    rejected.add(email);
+                    continue;
+                }
+                assigned.add(patient.uid());
+                writes.add(metadataStore.assignPatient(doctor.uid(), patient.uid()));
+            }
+            // Wait for the store before updating the access index, like the single assignment
+            CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).get();
+            assigned.forEach(patientUid -> accessIndex.onPatientAssigned(doctor.uid(), patientUid));
+
+            return ResponseEntity.ok(Map.of("doctorUid", doctor.uid(), "assigned", assigned, "rejected", rejected));
+        } catch (Exception e) {
+            log.error("Assigning patients failed", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Error assigning patients: " + e.getMessage()));
+        }
+    }
 
-        return ResponseEntity.ok(assignments);
+    @GetMapping("/assignments")
+    public CompletableFuture<ResponseEntity<List<Map<String, Object>>>> getAssignments() {
+        return metadataStore.allAssignments().thenApply(byDoctor -> {
+            // Same shape as the doctor_assignments documents: {id: doctorUid, data: {patientUids}}
+            List<Map<String, Object>> assignments = byDoctor.entrySet().stream()
+                    .map(entry -> Map.<String, Object>of("id", entry.getKey(), "data", Map.of("patientUids", entry.getValue())))
+                    .collect(Collectors.toList());
+
+            return ResponseEntity.ok(assignments);
+        });
     }
 
     @PostMapping("/set-role")
@@ -102,6 +171,11 @@ public class AdminController {
 
             Map<String, Object> claims = Map.of("role", role);
             FirebaseAuth.getInstance().setCustomUserClaims(uid, claims);
+            // The user's current ID tokens still carry the old role, so they are revoked: the user signs in again
+            // and gets a token with the new role (see VerifiedTokenCache for how quickly every node notices)
+            FirebaseAuth.getInstance().revokeRefreshTokens(uid);
+            tokenCache.claimsChanged(uid);
+            directoryService.invalidateUid(uid);
             return ResponseEntity.ok("Successfully set role '" + role + "' for user " + uid);
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body("Error setting role: " + e.getMessage());
@@ -112,11 +186,37 @@ public class AdminController {
     public ResponseEntity<String> setVisibility(@PathVariable String docId, @RequestBody Map<String, Boolean> payload) {
         try {
             boolean isVisible = payload.get("isVisible");
-            Firestore db = FirestoreClient.getFirestore();
-            db.collection("file_metadata").document(docId).update("isVisibleToPatient", isVisible).get();
+            fileMetadataRepository.setVisibleToPatient(docId, isVisible);
+            accessIndex.onVisibilityChanged(docId, isVisible);
             return ResponseEntity.ok("Visibility for doc " + docId + " set to " + isVisible);
         } catch (Exception e) {
             return ResponseEntity.internalServerError().body("Error updating visibility: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // The blob itself is only deleted with the last file referencing it (deduplicated uploads share blobs)
+    @DeleteMapping("/documents/{docId}")
+    public ResponseEntity<String> deleteDocument(@PathVariable String docId) {
+        try {
+            Optional<FileMetadata> metadata = fileMetadataRepository.findById(docId);
+            if (metadata.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Document not found");
+            }
+            fileUploadService.delete(metadata.get());
+            return ResponseEntity.ok("Document " + docId + " deleted");
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().body("Error deleting document: " + e.getMessage());
+        }
+    }
+
+    // Recovery: rebuilds the access index from the metadata store (e.g. after editing documents by hand in the console)
+    @PostMapping("/access-index/rebuild")
+    public ResponseEntity<Map<String, Integer>> rebuildAccessIndex() {
+        try {
+            return ResponseEntity.ok(accessIndex.rebuild());
+        } catch (Exception e) {
+            log.error("Rebuilding the access index failed", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.digitallocker.controller;
+
+import com.example.digitallocker.security.EventTickets;
+import com.example.digitallocker.security.FirebasePrincipal;
+import com.example.digitallocker.service.EventHub;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/events")
+public class EventController {
+
+    private final EventHub eventHub;
+    private final EventTickets eventTickets;
+
+    public EventController(EventHub eventHub, EventTickets eventTickets) {
+        this.eventHub = eventHub;
+        this.eventTickets = eventTickets;
+    }
+
+    // Server-Sent Events stream of "conversation" and "file" change events for the current user.
+    // EventSource can't set headers, so this endpoint is opened with a ?ticket= from POST /api/events/ticket
+    @GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter events() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        boolean admin = authentication.getAuthorities().stream()
+                .anyMatch(authority -> "ROLE_admin".equals(authority.getAuthority()));
+        return eventHub.subscribe(authentication.getName(), admin);
+    }
+
+    // Trades the caller's ID token (sent as a header) for a single-use ticket to open the stream with
+    @PostMapping("/ticket")
+    public Map<String, String> ticket() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String role = authentication.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority)
+                .findFirst()
+                .map(authority -> authority.replaceFirst("^ROLE_", ""))
+                .orElse(null);
+        FirebasePrincipal principal = new FirebasePrincipal(authentication.getName(), role,
+                new ArrayList<>(authentication.getAuthorities()), null, null);
+        return Map.of("ticket", eventTickets.issue(principal));
+    }
+}
@@ -2,21 +2,25 @@
 
 package com.example.digitallocker.controller;
 
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.service.AccessIndex;
+import com.example.digitallocker.service.ContentCodec;
+import com.example.digitallocker.service.DirectoryService;
 import com.example.digitallocker.service.EncryptionService;
-import com.google.api.core.ApiFuture;
-import com.google.cloud.firestore.DocumentSnapshot;
-import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.Query;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
-import com.google.cloud.storage.Blob;
-import com.google.cloud.storage.BlobId;
-import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Storage;
-import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.cloud.FirestoreClient;
-import com.google.firebase.cloud.StorageClient;
+import com.example.digitallocker.service.FileCursor;
+import com.example.digitallocker.service.FileListingService;
+import com.example.digitallocker.service.FileUploadService;
+import com.example.digitallocker.service.KeyHierarchy;
+import com.example.digitallocker.service.PatientExportService;
+import com.example.digitallocker.service.SegmentedAesGcm;
+import com.example.digitallocker.storage.BlobStore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -24,88 +28,106 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/files")
 public class FileController {
 
-    private final EncryptionService encryptionService;
+    private static final Logger log = LoggerFactory.getLogger(FileController.class);
+
+    private static final String NEXT_PAGE_TOKEN_HEADER = "X-Next-Page-Token";
+    private static final int MAX_PAGE_SIZE = 500;
 
-    public FileController(EncryptionService encryptionService) {
+    private final EncryptionService encryptionService;
+    private final KeyHierarchy keyHierarchy;
+    private final FileListingService fileListingService;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final AccessIndex accessIndex;
+    private final FileUploadService fileUploadService;
+    private final DirectoryService directoryService;
+    private final PatientExportService patientExportService;
+    private final BlobStore blobStore;
+    private final ObjectMapper objectMapper;
+    private final int maxBatchFiles;
+
+    public FileController(EncryptionService encryptionService,
+                          KeyHierarchy keyHierarchy,
+                          FileListingService fileListingService,
+                          FileMetadataRepository fileMetadataRepository,
+                          AccessIndex accessIndex,
+                          FileUploadService fileUploadService,
+                          DirectoryService directoryService,
+                          PatientExportService patientExportService,
+                          BlobStore blobStore,
+                          ObjectMapper objectMapper,
+                          @Value("${locker.upload.batch.max-files:500}") int maxBatchFiles) {
         this.encryptionService = encryptionService;
+        this.keyHierarchy = keyHierarchy;
+        this.fileListingService = fileListingService;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.accessIndex = accessIndex;
+        this.fileUploadService = fileUploadService;
+        this.directoryService = directoryService;
+        this.patientExportService = patientExportService;
+        this.blobStore = blobStore;
+        this.objectMapper = objectMapper;
+        this.maxBatchFiles = maxBatchFiles;
     }
 
+    // Paginated listing: the next page's token comes back in the X-Next-Page-Token header (absent on the last page).
+    // Returns a CompletableFuture so no request thread is held while the Firestore queries run.
     @GetMapping("/list")
-    public ResponseEntity<List<Map<String, Object>>> listFiles() throws ExecutionException, InterruptedException {
+    public CompletableFuture<ResponseEntity<List<Map<String, Object>>>> listFiles(
+            @RequestParam(defaultValue = "100") int pageSize,
+            @RequestParam(required = false) String pageToken) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         String uid = authentication.getName();
         String role = authentication.getAuthorities().stream()
                 .map(GrantedAuthority::getAuthority)
                 .findFirst().orElse("");
 
-        Firestore db = FirestoreClient.getFirestore();
-        Map<String, Map<String, Object>> filesMap = new HashMap<>();
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        FileCursor cursor;
+        try {
+            cursor = pageToken != null ? FileCursor.decode(pageToken) : null;
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
 
+        CompletableFuture<FileListingService.FilePage> page;
         switch (role) {
             case "ROLE_admin":
-                Query adminQuery = db.collection("file_metadata");
-                for (DocumentSnapshot document : adminQuery.get().get().getDocuments()) {
-                    addFileToMap(filesMap, document, "admin"); // Pass role as access type
-                }
+                page = fileListingService.listForAdmin(pageSize, cursor);
                 break;
             case "ROLE_patient":
-                Query patientQuery = db.collection("file_metadata")
-                        .whereEqualTo("ownerUid", uid)
-                        .whereEqualTo("isVisibleToPatient", true);
-                for (DocumentSnapshot document : patientQuery.get().get().getDocuments()) {
-                    addFileToMap(filesMap, document, "patient"); // Pass role as access type
-                }
+                page = fileListingService.listForPatient(uid, pageSize, cursor);
                 break;
             case "ROLE_doctor":
-                // Query 1: Get files from assigned patients
-                DocumentSnapshot doctorDoc = db.collection("doctor_assignments").document(uid).get().get();
-                if (doctorDoc.exists()) {
-                    List<String> patientUids = (List<String>) doctorDoc.get("patientUids");
-                    if (patientUids != null && !patientUids.isEmpty()) {
-                        Query assignedPatientQuery = db.collection("file_metadata").whereIn("ownerUid", patientUids);
-                        for (DocumentSnapshot document : assignedPatientQuery.get().get().getDocuments()) {
-                            // Mark these files as 'assigned'
-                            addFileToMap(filesMap, document, "assigned");
-                        }
-                    }
-                }
-
-                // Query 2: Get files shared directly with the doctor
-                ApiFuture<QuerySnapshot> sharedFilesFuture = db.collection("file_metadata").whereArrayContains("sharedWith", uid).get();
-                for (DocumentSnapshot document : sharedFilesFuture.get().getDocuments()) {
-                    // Mark these files as 'shared'
-                    addFileToMap(filesMap, document, "shared");
-                }
+                page = fileListingService.listForDoctor(uid, pageSize, cursor);
                 break;
             default:
-                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.FORBIDDEN).build());
         }
 
-        return ResponseEntity.ok(new ArrayList<>(filesMap.values()));
-    }
-
-    // UPDATED Helper method to include the accessType
-    private void addFileToMap(Map<String, Map<String, Object>> filesMap, DocumentSnapshot document, String accessType) {
-        String docId = document.getId();
-        if (!filesMap.containsKey(docId)) {
-            Map<String, Object> fileData = new HashMap<>();
-            fileData.put("docId", docId);
-            fileData.put("originalFilename", document.getString("originalFilename"));
-            fileData.put("ownerUid", document.getString("ownerUid"));
-            Boolean isVisible = document.getBoolean("isVisibleToPatient");
-            fileData.put("isVisibleToPatient", isVisible != null ? isVisible : true);
-            fileData.put("accessType", accessType); // Add the new flag
-            filesMap.put(docId, fileData);
-        }
+        return page.thenApply(result -> {
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (result.nextPageToken() != null) {
+                response.header(NEXT_PAGE_TOKEN_HEADER, result.nextPageToken());
+            }
+            return response.body(result.files());
+        });
     }
 
 
@@ -114,7 +136,9 @@ public class FileController {
     // In FileController.java
 
     @GetMapping("/{docId}/download")
-    public ResponseEntity<byte[]> downloadFile(@PathVariable String docId) { // Removed 'throws Exception'
+    public ResponseEntity<StreamingResponseBody> downloadFile(
+            @PathVariable String docId,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader) { // Removed 'throws Exception'
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         String uid = authentication.getName();
         String role = authentication.getAuthorities().stream()
@@ -122,95 +146,41 @@ public class FileController {
                 .map(GrantedAuthority::getAuthority)
                 .orElse("");
 
-        Firestore db = FirestoreClient.getFirestore();
-        Storage storage = StorageClient.getInstance().bucket().getStorage();
-
         try { // START of try block
-            // Fetch metadata
-            DocumentSnapshot doc = db.collection("file_metadata").document(docId).get().get();
-            if (!doc.exists()) {
-                System.err.println("Download Error: Document not found - " + docId);
+            // Fetch metadata (served from the metadata cache for recently used documents)
+            Optional<FileMetadata> found = fileMetadataRepository.findById(docId);
+            if (found.isEmpty()) {
+                log.warn("Download: document {} not found", docId);
                 return ResponseEntity.notFound().build();
             }
-
-            String ownerUid = doc.getString("ownerUid");
+            FileMetadata doc = found.get();
 
             // ----------------------------
-            // Authorization via switch(role)
+            // Authorization: one rule for every role, answered from the access index when it is built
             // ----------------------------
-            boolean isAllowed = false;
-
-            switch (role) {
-                // IMPORTANT: As you requested, exact case "ROLE_admin" is used here
-                case "ROLE_admin":
-                    // Admin always allowed (adjust if you need more checks)
-                    isAllowed = true;
-                    break;
-
-                case "ROLE_patient":
-                    // Patients can download their own document only if visible to patients
-                    // Field: isVisibleToPatient (Boolean). If missing, default to true.
-                    Boolean isVisibleToPatient = doc.getBoolean("isVisibleToPatient");
-                    boolean visibleToPatient = (isVisibleToPatient != null) ? isVisibleToPatient : true;
-                    isAllowed = uid.equals(ownerUid) && visibleToPatient;
-                    break;
-
-                case "ROLE_doctor":
-                    /*
-                     Doctor logic:
-                      - Prefer explicit allowed list: "allowedDoctorUids" (array of UIDs).
-                      - Fallback to boolean flag "isVisibleToDoctor" (default true).
-                      - You can replace this with your actual relationship check (e.g. consult mapping of patient<->doctor).
-                     */
-                    boolean allowedByList = false;
-                    Object allowedObj = doc.get("allowedDoctorUids");
-                    if (allowedObj instanceof List) {
-                        @SuppressWarnings("unchecked")
-                        List<String> allowedDoctorUids = (List<String>) allowedObj;
-                        allowedByList = allowedDoctorUids.stream().anyMatch(Objects::nonNull)
-                                && allowedDoctorUids.contains(uid);
-                    }
-                    Boolean isVisibleToDoctor = doc.getBoolean("isVisibleToDoctor");
-                    boolean visibleToDoctor = (isVisibleToDoctor != null) ? isVisibleToDoctor : true;
-
-                    isAllowed = allowedByList || visibleToDoctor;
-                    break;
-
-                default:
-                    // Other roles - by default deny. Adjust for other roles if needed.
-                    isAllowed = false;
-            }
+            boolean isAllowed = accessIndex.accessType(uid, role, doc) != null;
 
             if (!isAllowed) {
-                System.err.println("Download Error: User " + uid + " forbidden to access doc " + docId + " (role=" + role + ")");
+                log.warn("Download: user {} (role={}) may not access document {}", uid, role, docId);
                 return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
             }
 
             // ----------------------------
             // Fetch encryption metadata
             // ----------------------------
-            String wrappedAesKey = doc.getString("wrappedAesKey");
-            byte[] iv = Base64.getDecoder().decode(doc.getString("iv"));
-            String storagePath = doc.getString("storagePath");
-
-            // Fetch file from Firebase Storage
-            Blob blob = storage.get(StorageClient.getInstance().bucket().getName(), storagePath);
-            if (blob == null) {
-                System.err.println("Download Error: Blob not found in storage - " + storagePath);
+            byte[] iv = Base64.getDecoder().decode(doc.iv());
+            String storagePath = doc.storagePath();
+
+            // Check the blob exists before committing to a response
+            if (!blobStore.exists(storagePath)) {
+                log.error("Download: blob {} not found in storage", storagePath);
                 return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
             }
 
-            byte[] encryptedFileBytes = blob.getContent();
-
-            // 🔓 Decrypt the file
-            SecretKey aesKey = encryptionService.unwrapAesKey(wrappedAesKey);
-            EncryptionService.EncryptedData encryptedData =
-                    new EncryptionService.EncryptedData(encryptedFileBytes, iv);
-            byte[] decryptedFileBytes = encryptionService.decryptFile(encryptedData, aesKey);
-
-            System.out.println("✅ Successfully decrypted file: " + doc.getString("originalFilename"));
+            // 🔓 Unwrap the file key under its scheme (cached for recently opened documents)
+            SecretKey aesKey = keyHierarchy.fileKey(doc);
 
-            String filename = doc.getString("originalFilename");
+            String filename = doc.originalFilename();
             String contentType = "application/octet-stream"; // Default type
 
             // Optional: Infer MIME type based on filename
@@ -239,15 +209,102 @@ public class FileController {
                 }
             }
 
-            // ✅ Return decrypted file
-            return ResponseEntity.ok()
+            if (doc.encryptionVersion() != EncryptionService.VERSION_SEGMENTED) {
+                // Legacy single-shot blob: one GCM operation over the whole file, no range support
+                byte[] encryptedFileBytes = blobStore.readAll(storagePath);
+                EncryptionService.EncryptedData encryptedData =
+                        new EncryptionService.EncryptedData(encryptedFileBytes, iv);
+                byte[] decryptedFileBytes = encryptionService.decryptFile(encryptedData, aesKey);
+
+                return ResponseEntity.ok()
+                        .contentType(org.springframework.http.MediaType.parseMediaType(contentType))
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + filename + "\"")
+                        .contentLength(decryptedFileBytes.length)
+                        .body(out -> out.write(decryptedFileBytes));
+            }
+
+            // Segmented blob: stream it, decrypting only the segments that cover the requested range
+            SegmentedAesGcm.Header header = new SegmentedAesGcm.Header(iv, doc.segmentSize(), doc.plaintextSize());
+
+            if (doc.codec() != null) {
+                // Compressed before encryption: file offsets don't map to segments, so the whole file is sent
+                // (ignoring any Range header, which RFC 9110 allows) and decompressed on the way out
+                StreamingResponseBody body = out -> {
+                    try (InputStream in = blobStore.open(storagePath)) {
+                        OutputStream decoded = ContentCodec.decode(doc.codec(), out);
+                        try {
+                            encryptionService.decryptStream(aesKey, header, in, decoded);
+                            ContentCodec.finish(decoded);
+                        } finally {
+                            ContentCodec.end(decoded);
+                        }
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.error("Streaming decrypt failed for document {}", docId, e);
+                        throw new IOException("Failed to decrypt " + docId, e);
+                    }
+                };
+                return ResponseEntity.ok()
+                        .contentType(org.springframework.http.MediaType.parseMediaType(contentType))
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + filename + "\"")
+                        .header(HttpHeaders.ACCEPT_RANGES, "none")
+                        .contentLength(doc.originalSize())
+                        .body(body);
+            }
+
+            long length = header.plaintextLength();
+            long from = 0;
+            long to = length - 1;
+            boolean partial = false;
+
+            if (rangeHeader != null) {
+                try {
+                    List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+                    // Multi-range requests are answered with the whole file, which RFC 9110 allows
+                    if (ranges.size() == 1) {
+                        from = ranges.get(0).getRangeStart(length);
+                        to = ranges.get(0).getRangeEnd(length);
+                        partial = true;
+                    }
+                } catch (IllegalArgumentException e) {
+                    return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                            .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                            .build();
+                }
+            }
+
+            long rangeFrom = from;
+            long rangeTo = to;
+            StreamingResponseBody body = out -> {
+                if (length == 0) {
+                    return;
+                }
+                long offset = SegmentedAesGcm.ciphertextOffset(rangeFrom / header.segmentSize(), header.segmentSize());
+                try (ReadableByteChannel reader = blobStore.openAt(storagePath, offset)) {
+                    encryptionService.decryptRange(aesKey, header, reader, rangeFrom, rangeTo, out);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // Headers are already committed; abort the response so the client sees a truncated body
+                    log.error("Streaming decrypt failed for document {}", docId, e);
+                    throw new IOException("Failed to decrypt " + docId, e);
+                }
+            };
+
+            ResponseEntity.BodyBuilder response = partial
+                    ? ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                            .header(HttpHeaders.CONTENT_RANGE, "bytes " + from + "-" + to + "/" + length)
+                    : ResponseEntity.ok();
+            return response
                     .contentType(org.springframework.http.MediaType.parseMediaType(contentType))
                     .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + filename + "\"")
-                    .body(decryptedFileBytes);
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .contentLength(length == 0 ? 0 : to - from + 1)
+                    .body(body);
 
         } catch (Exception e) {
-            System.err.println("❌ Download failed for docId: " + docId);
-            e.printStackTrace();
+            log.error("Download failed for document {}", docId, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         } // END of try block
     }
@@ -266,40 +323,118 @@ public class FileController {
             String uploaderUid = SecurityContextHolder.getContext().getAuthentication().getName();
 
             // NEW: Look up the patient's UID by their email
-            String patientUid = FirebaseAuth.getInstance().getUserByEmail(patientEmail).getUid();
-            System.out.println("Upload by: " + uploaderUid + " for patient: " + patientEmail + " (UID: " + patientUid + ")");
-
-            // The rest of the logic is the same, using the found patientUid as the owner
-            SecretKey aesKey = encryptionService.generateAesKey();
-            EncryptionService.EncryptedData encryptedData = encryptionService.encryptFile(aesKey, file.getBytes());
-            String wrappedAesKey = encryptionService.wrapAesKey(aesKey);
-            String docId = UUID.randomUUID().toString();
-            String storagePath = "encrypted_files/" + docId;
-            Storage storage = StorageClient.getInstance().bucket().getStorage();
-            BlobId blobId = BlobId.of(StorageClient.getInstance().bucket().getName(), storagePath);
-            BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("application/octet-stream").build();
-            storage.create(blobInfo, encryptedData.ciphertext());
-
-            Firestore db = FirestoreClient.getFirestore();
-            Map<String, Object> metadata = new HashMap<>();
-            metadata.put("ownerUid", patientUid);
-            metadata.put("originalFilename", file.getOriginalFilename());
-            // ... (rest of the metadata is the same)
-            metadata.put("storagePath", storagePath);
-            metadata.put("wrappedAesKey", wrappedAesKey);
-            metadata.put("iv", Base64.getEncoder().encodeToString(encryptedData.iv()));
-            metadata.put("createdAt", com.google.cloud.Timestamp.now());
-            metadata.put("isVisibleToPatient", true);
-
-            db.collection("file_metadata").document(docId).set(metadata).get();
+            String patientUid = directoryService.requireUid(patientEmail);
+            log.info("Upload by {} for patient {}", uploaderUid, patientUid);
+
+            // Encrypt, store and record the file, using the found patientUid as the owner
+            String docId = fileUploadService.upload(patientUid, file).docId();
 
             Map<String, String> response = new HashMap<>();
             response.put("message", "File uploaded successfully for patient " + patientEmail);
             response.put("docId", docId);
             return ResponseEntity.ok(response);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Upload failed", e);
             return ResponseEntity.internalServerError().body(Map.of("error", "Failed to upload file. Check if patient email is correct."));
         }
     }
-}
\ No newline at end of file
+
+    // Batch upload for one patient: files are encrypted and stored in parallel and committed in WriteBatches.
+    // Per-file results stream back as NDJSON lines in commit order, followed by a summary line.
+    @PostMapping(value = "/upload/batch", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> uploadBatch(
+            @RequestParam("files") List<MultipartFile> files,
+            @RequestParam("patientEmail") String patientEmail) {
+        if (files.isEmpty() || files.size() > maxBatchFiles) {
+            return ResponseEntity.badRequest().build();
+        }
+        String uploaderUid = SecurityContextHolder.getContext().getAuthentication().getName();
+        String patientUid;
+        try {
+            // Resolve the patient once for the whole batch
+            patientUid = directoryService.requireUid(patientEmail);
+        } catch (Exception e) {
+            log.warn("Batch upload: unknown patient email - {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        log.info("Batch upload of {} files by {} for patient {}", files.size(), uploaderUid, patientUid);
+
+        StreamingResponseBody body = out -> {
+            int[] counts = new int[2]; // succeeded, failed
+            try {
+                fileUploadService.uploadBatch(patientUid, files, result -> {
+                    counts[result.containsKey("docId") ? 0 : 1]++;
+                    writeLine(out, result);
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Batch upload interrupted", e);
+            }
+            writeLine(out, Map.of("done", true, "succeeded", counts[0], "failed", counts[1]));
+        };
+        return ResponseEntity.ok()
+                .contentType(org.springframework.http.MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
+    // Every document of one patient the caller may access, streamed as a zip. Patients export their own record;
+    // doctors and admins name the patient by email.
+    @GetMapping(value = "/export", produces = "application/zip")
+    public ResponseEntity<StreamingResponseBody> exportPatientRecord(
+            @RequestParam(value = "patientEmail", required = false) String patientEmail) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String uid = authentication.getName();
+        String role = authentication.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority)
+                .findFirst().orElse("");
+
+        String patientUid;
+        switch (role) {
+            case "ROLE_patient":
+                patientUid = uid;
+                break;
+            case "ROLE_doctor":
+            case "ROLE_admin":
+                if (patientEmail == null) {
+                    return ResponseEntity.badRequest().build();
+                }
+                try {
+                    patientUid = directoryService.requireUid(patientEmail);
+                } catch (Exception e) {
+                    log.warn("Export: unknown patient email - {}", e.getMessage());
+                    return ResponseEntity.badRequest().build();
+                }
+                break;
+            default:
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        log.info("Export of patient {} by {}", patientUid, uid);
+
+        StreamingResponseBody body = out -> {
+            try {
+                int files = patientExportService.export(uid, role, patientUid, out);
+                log.info("Exported {} files of patient {} to {}", files, patientUid, uid);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                // Headers are already committed; abort the response so the client sees a truncated archive
+                log.error("Export of patient {} failed", patientUid, e);
+                throw new IOException("Failed to export " + patientUid, e);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(org.springframework.http.MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"records-" + patientUid + ".zip\"")
+                .body(body);
+    }
+
+    private void writeLine(OutputStream out, Map<String, Object> line) {
+        try {
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,173 +1,311 @@
 package com.example.digitallocker.controller;
 
-import com.google.api.core.ApiFuture;
-import com.google.cloud.firestore.*;
-import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.cloud.FirestoreClient;
+import com.example.digitallocker.metadata.Conversation;
+import com.example.digitallocker.metadata.Message;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.service.AccessIndex;
+import com.example.digitallocker.service.DirectoryService;
+import com.example.digitallocker.service.MessageCommitPipeline;
+import com.example.digitallocker.service.MessageCursor;
+import com.google.cloud.Timestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/api/messages")
 public class MessageController {
 
+    private static final Logger log = LoggerFactory.getLogger(MessageController.class);
+
+    private static final int MAX_MESSAGE_PAGE = 200;
+    private static final int MAX_CONVERSATION_PAGE = 200;
+    private static final String NEXT_PAGE_TOKEN_HEADER = "X-Next-Page-Token";
+    private static final String OLDER_PAGE_TOKEN_HEADER = "X-Older-Page-Token";
+    private static final String NEWER_PAGE_TOKEN_HEADER = "X-Newer-Page-Token";
+
+    private final MetadataStore metadataStore;
+    private final AccessIndex accessIndex;
+    private final DirectoryService directoryService;
+    private final MessageCommitPipeline messageCommitPipeline;
+    private final FileMetadataRepository fileMetadataRepository;
+
+    public MessageController(MetadataStore metadataStore, AccessIndex accessIndex, DirectoryService directoryService,
+                             MessageCommitPipeline messageCommitPipeline, FileMetadataRepository fileMetadataRepository) {
+        this.metadataStore = metadataStore;
+        this.accessIndex = accessIndex;
+        this.directoryService = directoryService;
+        this.messageCommitPipeline = messageCommitPipeline;
+        this.fileMetadataRepository = fileMetadataRepository;
+    }
+
     // --- NEW: Endpoint to send a general message ---
+    // The message and the conversation update are committed together; the response waits for that commit
     @PostMapping("/send")
-    public ResponseEntity<String> sendMessage(@RequestBody Map<String, String> payload) {
+    public CompletableFuture<ResponseEntity<String>> sendMessage(@RequestBody Map<String, String> payload) {
         try {
             String senderUid = SecurityContextHolder.getContext().getAuthentication().getName();
             String recipientEmail = payload.get("recipientEmail");
             String textMessage = payload.get("textMessage");
 
-            String recipientUid = FirebaseAuth.getInstance().getUserByEmail(recipientEmail).getUid();
-            Firestore db = FirestoreClient.getFirestore();
+            String recipientUid = directoryService.requireUid(recipientEmail);
 
             // Create a consistent ID for the conversation
             List<String> participants = Arrays.asList(senderUid, recipientUid);
             participants.sort(String::compareTo);
             String conversationId = String.join("_", participants);
 
-            DocumentReference conversationRef = db.collection("conversations").document(conversationId);
-
             // Prepare message data (for general messages)
             Map<String, Object> messageData = new HashMap<>();
             messageData.put("senderUid", senderUid);
-            messageData.put("textMessage", textMessage);
-            messageData.put("timestamp", FieldValue.serverTimestamp());
-
-            // Add the message to subcollection
-            conversationRef.collection("messages").add(messageData);
-
-            // Update main conversation doc
-            conversationRef.set(Map.of(
-                    "participants", participants,
-                    "lastMessage", textMessage,
-                    "lastUpdated", FieldValue.serverTimestamp()
-            ), SetOptions.merge());
+            messageData.put("textMessage", textMessage); // the commit adds the timestamp
 
-            return ResponseEntity.ok("Message sent successfully.");
+            return messageCommitPipeline.submit(new MessageCommitPipeline.MessageWrite(
+                            conversationId, participants, senderUid, messageData, textMessage, null, null))
+                    .thenApply(committed -> ResponseEntity.ok("Message sent successfully."))
+                    .exceptionally(e -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to send message."));
 
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to send message.");
+            log.error("Sending message failed", e);
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to send message."));
         }
     }
 
     // --- NEW: Endpoint to get message history for a conversation ---
+    /*
+     Pages of a conversation's messages, always returned oldest first, ordered by (timestamp, messageId):
+       - no cursor:        the latest `limit` messages
+       - before=<token>:   the `limit` messages just older than the token
+       - after=<token>:    the `limit` messages just newer than the token
+       - since=<messageId>: messages newer than the client's last seen message (polling)
+     X-Older-Page-Token / X-Newer-Page-Token carry the token for the adjacent page when there is one.
+     The ETag is the conversation's lastUpdated plus the page asked for (limit and cursor), so a poll
+     with a matching If-None-Match gets 304 without any message being read, and a validator from one
+     page never matches another.
+     */
     @GetMapping("/conversations/{conversationId}/messages")
-    public ResponseEntity<List<Map<String, Object>>> getConversationMessages(@PathVariable String conversationId) {
+    public ResponseEntity<List<Map<String, Object>>> getConversationMessages(
+            @PathVariable String conversationId,
+            @RequestParam(defaultValue = "50") int limit,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) String since,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (limit < 1 || limit > MAX_MESSAGE_PAGE || Stream.of(before, after, since).filter(Objects::nonNull).count() > 1) {
+            return ResponseEntity.badRequest().build();
+        }
         try {
             String uid = SecurityContextHolder.getContext().getAuthentication().getName();
-            Firestore db = FirestoreClient.getFirestore();
-
-            DocumentReference conversationRef = db.collection("conversations").document(conversationId);
-            DocumentSnapshot conversationDoc = conversationRef.get().get();
+            Optional<Conversation> conversation = metadataStore.findConversation(conversationId).get();
 
             // Security check: Ensure current user is part of this conversation
-            if (!conversationDoc.exists() ||
-                    !((List<String>) conversationDoc.get("participants")).contains(uid)) {
+            if (conversation.isEmpty() || !conversation.get().hasParticipant(uid)) {
                 return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
             }
 
-            // Fetch all messages ordered by timestamp
-            ApiFuture<QuerySnapshot> future = conversationRef.collection("messages")
-                    .orderBy("timestamp", Query.Direction.ASCENDING)
-                    .get();
+            Timestamp lastUpdated = conversation.get().lastUpdated();
+            String etag = lastUpdated != null ? etag(lastUpdated, limit, before, after, since) : null;
+            if (etag != null && etag.equals(ifNoneMatch)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
 
-            List<Map<String, Object>> messages = future.get().getDocuments().stream()
-                    .map(doc -> {
-                        Map<String, Object> data = new HashMap<>(doc.getData());
-                        data.put("messageId", doc.getId());
-                        return data;
-                    })
-                    .collect(Collectors.toList());
+            MessageCursor beforeCursor = before != null ? MessageCursor.decode(before) : null;
+            MessageCursor afterCursor = after != null ? MessageCursor.decode(after) : null;
+            if (since != null) {
+                Optional<Message> lastSeen = metadataStore.findMessage(conversationId, since).get();
+                if (lastSeen.isEmpty() || lastSeen.get().timestamp() == null) {
+                    return ResponseEntity.badRequest().build();
+                }
+                afterCursor = new MessageCursor(lastSeen.get().timestamp(), lastSeen.get().id());
+            }
+
+            // Newer pages read forwards from the cursor; the latest and older pages read backwards and are flipped
+            boolean forward = afterCursor != null;
+            List<Message> documents = metadataStore.messages(
+                    conversationId, forward ? afterCursor : beforeCursor, forward, limit + 1).get();
+
+            boolean hasMore = documents.size() > limit;
+            List<Message> page = new ArrayList<>(documents.subList(0, Math.min(limit, documents.size())));
+            if (!forward) {
+                Collections.reverse(page);
+            }
+
+            // The store hands out a fresh fields map per message, so it is returned as is
+            List<Map<String, Object>> messages = new ArrayList<>(page.size());
+            for (Message message : page) {
+                Map<String, Object> data = message.fields();
+                data.put("messageId", message.id());
+                messages.add(data);
+            }
 
-            return ResponseEntity.ok(messages);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (etag != null) {
+                response.eTag(etag);
+            }
+            if (!page.isEmpty()) {
+                Message oldest = page.get(0);
+                Message newest = page.get(page.size() - 1);
+                // Older messages exist if a backwards read was cut off, or whenever we paged forwards from a cursor
+                if (forward || hasMore) {
+                    response.header(OLDER_PAGE_TOKEN_HEADER, new MessageCursor(oldest.timestamp(), oldest.id()).encode());
+                }
+                if (forward ? hasMore : beforeCursor != null) {
+                    response.header(NEWER_PAGE_TOKEN_HEADER, new MessageCursor(newest.timestamp(), newest.id()).encode());
+                }
+            }
+            return response.body(messages);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Reading messages failed", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
     }
 
+    // Validator for one page of a conversation as of lastUpdated: the query goes in base64url-encoded, so
+    // client-supplied cursors can't break the quoting
+    private static String etag(Timestamp lastUpdated, int limit, String before, String after, String since) {
+        String query = limit + ":" + (before != null ? "before:" + before
+                : after != null ? "after:" + after
+                : since != null ? "since:" + since
+                : "latest");
+        return "\"" + lastUpdated.getSeconds() + "." + lastUpdated.getNanos() + "."
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(query.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
     // --- EXISTING: Get list of all conversations ---
+    // Inbox page, most recently updated first. Each conversation carries the caller's unreadCount and lastRead,
+    // so the inbox costs one query. The next page's token comes back in X-Next-Page-Token.
     @GetMapping("/conversations")
-    public ResponseEntity<List<Map<String, Object>>> getConversations() {
-        try {
-            String uid = SecurityContextHolder.getContext().getAuthentication().getName();
-            Firestore db = FirestoreClient.getFirestore();
+    public CompletableFuture<ResponseEntity<List<Map<String, Object>>>> getConversations(
+            @RequestParam(defaultValue = "50") int pageSize,
+            @RequestParam(required = false) String pageToken) {
+        String uid = SecurityContextHolder.getContext().getAuthentication().getName();
 
-            ApiFuture<QuerySnapshot> future = db.collection("conversations")
-                    .whereArrayContains("participants", uid)
-                    .get();
+        if (pageSize < 1 || pageSize > MAX_CONVERSATION_PAGE) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        MessageCursor cursor;
+        try {
+            cursor = pageToken != null ? MessageCursor.decode(pageToken) : null;
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
 
-            List<Map<String, Object>> conversations = future.get().getDocuments().stream()
-                    .map(doc -> {
-                        Map<String, Object> data = new HashMap<>(doc.getData());
-                        data.put("conversationId", doc.getId());
+        return metadataStore.conversationsOf(uid, cursor, pageSize + 1).thenApply(documents -> {
+            List<Map<String, Object>> conversations = documents.stream()
+                    .limit(pageSize)
+                    .map(conversation -> {
+                        Map<String, Object> data = new HashMap<>();
+                        data.put("conversationId", conversation.id());
+                        data.put("participants", conversation.participants());
+                        data.put("lastMessage", conversation.lastMessage());
+                        data.put("lastUpdated", conversation.lastUpdated());
+                        data.put("unreadCount", conversation.unreadCounts().getOrDefault(uid, 0L));
+                        data.put("lastRead", conversation.lastRead().get(uid));
                         return data;
                     })
                     .collect(Collectors.toList());
 
-            return ResponseEntity.ok(conversations);
-        } catch (Exception e) {
-            e.printStackTrace();
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (documents.size() > pageSize) {
+                Conversation last = documents.get(pageSize - 1);
+                response.header(NEXT_PAGE_TOKEN_HEADER, new MessageCursor(last.lastUpdated(), last.id()).encode());
+            }
+            return response.body(conversations);
+        }).exceptionally(e -> {
+            log.error("Listing conversations failed", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        });
+    }
+
+    // Marks the conversation read for the caller: resets their unread counter and moves their last-read marker
+    @PostMapping("/conversations/{conversationId}/read")
+    public ResponseEntity<String> markRead(@PathVariable String conversationId) {
+        try {
+            String uid = SecurityContextHolder.getContext().getAuthentication().getName();
+            Optional<Conversation> conversation = metadataStore.findConversation(conversationId).get();
+
+            // Security check: Ensure current user is part of this conversation
+            if (conversation.isEmpty() || !conversation.get().hasParticipant(uid)) {
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+
+            metadataStore.markRead(conversationId, uid).get();
+            return ResponseEntity.ok("Conversation marked as read.");
+        } catch (Exception e) {
+            log.error("Marking conversation {} as read failed", conversationId, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to mark conversation as read.");
         }
     }
 
-    // --- EXISTING: Share document (unchanged) ---
+    // --- EXISTING: Share document ---
+    // The file's sharedWith entry, the message and the conversation update are committed together
     @PostMapping("/share")
-    public ResponseEntity<String> shareDocument(@RequestBody Map<String, String> payload) {
+    public CompletableFuture<ResponseEntity<String>> shareDocument(@RequestBody Map<String, String> payload) {
         try {
-            String senderUid = SecurityContextHolder.getContext().getAuthentication().getName();
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            String senderUid = authentication.getName();
+            String role = authentication.getAuthorities().stream()
+                    .findFirst()
+                    .map(GrantedAuthority::getAuthority)
+                    .orElse("");
             String recipientEmail = payload.get("recipientEmail");
             String textMessage = payload.get("textMessage");
             String docId = payload.get("docId");
             String originalFilename = payload.get("originalFilename");
 
-            String recipientUid = FirebaseAuth.getInstance().getUserByEmail(recipientEmail).getUid();
-            Firestore db = FirestoreClient.getFirestore();
+            // Sharing grants the recipient access, so the sender must have access to the document themselves
+            Optional<FileMetadata> doc = docId != null ? fileMetadataRepository.findById(docId) : Optional.empty();
+            if (doc.isEmpty()) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_FOUND).body("Document not found."));
+            }
+            if (accessIndex.accessType(senderUid, role, doc.get()) == null) {
+                log.warn("Share: user {} (role={}) may not access document {}", senderUid, role, docId);
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.FORBIDDEN).body("Access denied."));
+            }
 
-            // Update file's sharedWith list
-            db.collection("file_metadata").document(docId)
-                    .update("sharedWith", FieldValue.arrayUnion(recipientUid));
+            String recipientUid = directoryService.requireUid(recipientEmail);
 
             // Build conversation ID
             List<String> participants = Arrays.asList(senderUid, recipientUid);
             participants.sort(String::compareTo);
             String conversationId = String.join("_", participants);
 
-            DocumentReference conversationRef = db.collection("conversations").document(conversationId);
-
             // Prepare message with file info
             Map<String, Object> messageData = new HashMap<>();
             messageData.put("senderUid", senderUid);
             messageData.put("textMessage", textMessage);
             messageData.put("docId", docId);
-            messageData.put("originalFilename", originalFilename);
-            messageData.put("timestamp", FieldValue.serverTimestamp());
-
-            // Add message to conversation
-            conversationRef.collection("messages").add(messageData);
+            messageData.put("originalFilename", originalFilename); // the commit adds the timestamp
 
-            // Update conversation doc
-            conversationRef.set(Map.of(
-                    "participants", participants,
-                    "lastMessage", textMessage,
-                    "lastUpdated", FieldValue.serverTimestamp()
-            ), SetOptions.merge());
-
-            return ResponseEntity.ok("Document shared successfully.");
+            return messageCommitPipeline.submit(new MessageCommitPipeline.MessageWrite(
+                            conversationId, participants, senderUid, messageData, textMessage, docId, recipientUid))
+                    .thenApply(committed -> {
+                        accessIndex.onShared(docId, recipientUid);
+                        return ResponseEntity.ok("Document shared successfully.");
+                    })
+                    .exceptionally(e -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to share document."));
 
         } catch (Exception e) {
-            e.printStackTrace();
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to share document.");
+            log.error("Sharing document failed", e);
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to share document."));
         }
     }
 }
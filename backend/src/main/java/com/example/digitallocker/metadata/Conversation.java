@@ -0,0 +1,50 @@
+package com.example.digitallocker.metadata;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A conversations document: its participants, the latest message and the per-participant read state
+public record Conversation(
+        String id,
+        List<String> participants,
+        String lastMessage,
+        Timestamp lastUpdated,
+        Map<String, Long> unreadCounts,
+        Map<String, Timestamp> lastRead) {
+
+    public boolean hasParticipant(String uid) {
+        return participants.contains(uid);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Conversation fromSnapshot(DocumentSnapshot doc) {
+        Object participants = doc.get("participants");
+        Map<String, Long> unreadCounts = new HashMap<>();
+        if (doc.get("unreadCounts") instanceof Map<?, ?> counts) {
+            counts.forEach((uid, count) -> {
+                if (count instanceof Number number) {
+                    unreadCounts.put((String) uid, number.longValue());
+                }
+            });
+        }
+        Map<String, Timestamp> lastRead = new HashMap<>();
+        if (doc.get("lastRead") instanceof Map<?, ?> reads) {
+            reads.forEach((uid, read) -> {
+                if (read instanceof Timestamp timestamp) {
+                    lastRead.put((String) uid, timestamp);
+                }
+            });
+        }
+        return new Conversation(
+                doc.getId(),
+                participants instanceof List ? (List<String>) participants : List.of(),
+                doc.getString("lastMessage"),
+                doc.getTimestamp("lastUpdated"),
+                unreadCounts,
+                lastRead);
+    }
+}
@@ -0,0 +1,856 @@
+package com.example.digitallocker.metadata;
+
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.service.EncryptionService;
+import com.example.digitallocker.service.FileCursor;
+import com.example.digitallocker.service.MessageCursor;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/*
+ MetadataStore held in memory and made durable by a write-ahead log, for single-node and air-gapped
+ sites. Every query the application makes is answered from a secondary index without scanning:
+   - files in listing order, per owner and per sharedWith entry (sorted sets of (createdAt, docId))
+   - files per (owner, contentHash), and the number of files referencing each blob
+   - doctor -> patients, and each patient's key-encryption key versions
+   - each participant's inbox (sorted set of (lastUpdated, conversationId)) and each conversation's
+     messages (sorted map of (timestamp, messageId))
+
+ Writes are serialized: each one is appended to `metadata.wal` in locker.metadata.embedded.dir as one
+ JSON line (forced to disk when `fsync` is on) and only then applied to memory, so an acknowledged write
+ survives a crash. Reads share a read lock and never touch the disk. At startup the log is replayed (a
+ torn last line from a crash is dropped, it was never acknowledged) and rewritten compactly as one
+ record per file, key version, assignment, conversation and message. If an append fails (e.g. disk
+ full), the log is truncated back to where the record started, so the next append can't be joined onto
+ a partial line; if even that fails, the store rejects all further writes until it is restarted.
+
+ Commit times ("server timestamps") come from one clock that never goes backwards, so message and
+ inbox order match commit order. Change feeds deliver this store's own writes, on one notifier thread.
+ */
+@Component(MetadataStore.BACKEND)
+@ConditionalOnProperty(name = "locker.metadata.backend", havingValue = "embedded")
+public class EmbeddedMetadataStore implements MetadataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedMetadataStore.class);
+    private static final String LOG_FILE = "metadata.wal";
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> RECORD = new TypeReference<>() {};
+    private static final int COMPACT_FILES_PER_RECORD = 500;
+
+    private static final Comparator<FileMetadata> NEWEST_FIRST =
+            Comparator.comparing(FileMetadata::createdAt)
+                    .thenComparing(FileMetadata::docId)
+                    .reversed();
+
+    // Position in an ordering by (time, id); the natural order is oldest first
+    private record Key(Timestamp at, String id) implements Comparable<Key> {
+        @Override
+        public int compareTo(Key other) {
+            int byTime = at.compareTo(other.at);
+            return byTime != 0 ? byTime : id.compareTo(other.id);
+        }
+    }
+
+    private static final class ConversationState {
+        final String id;
+        List<String> participants = List.of();
+        String lastMessage;
+        Timestamp lastUpdated;
+        final Map<String, Long> unreadCounts = new HashMap<>();
+        final Map<String, Timestamp> lastRead = new HashMap<>();
+        // Message fields without "timestamp", which is the key's time
+        final NavigableMap<Key, Map<String, Object>> messages = new TreeMap<>();
+        final Map<String, Key> messageKeys = new HashMap<>();
+
+        ConversationState(String id) {
+            this.id = id;
+        }
+    }
+
+    private record FileListener(Consumer<FileMetadata> onChange, Runnable onFeedError) {}
+
+    private final Path logPath;
+    private final boolean fsync;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private final Map<String, FileMetadata> files = new HashMap<>();
+    private final NavigableSet<Key> filesNewestFirst = new TreeSet<>(Comparator.reverseOrder());
+    private final Map<String, NavigableSet<Key>> filesByOwner = new HashMap<>();
+    private final Map<String, NavigableSet<Key>> filesBySharedWith = new HashMap<>();
+    private final Map<String, Set<String>> filesByContent = new HashMap<>();
+    private final Map<String, Integer> blobRefs = new HashMap<>();
+    private final Map<String, NavigableMap<Integer, KeyEncryptionKey>> keks = new HashMap<>();
+    private final Map<String, List<String>> patientsByDoctor = new LinkedHashMap<>();
+    private final Map<String, ConversationState> conversations = new HashMap<>();
+    private final Map<String, NavigableSet<Key>> inboxes = new HashMap<>();
+    private Timestamp lastCommit = Timestamp.MIN_VALUE;
+    private final FileChannel wal;
+    // Set when a failed append couldn't be rolled back: the log's tail is unknown, so nothing more may be appended
+    private IOException walFailure;
+
+    private final List<FileListener> fileListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Conversation>> conversationListeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<String, List<String>>> assignmentListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService notifier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metadata-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EmbeddedMetadataStore(@Value("${locker.metadata.embedded.dir:./metadata}") Path dir,
+                                 @Value("${locker.metadata.embedded.fsync:true}") boolean fsync) throws IOException {
+        Path root = dir.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        this.logPath = root.resolve(LOG_FILE);
+        this.fsync = fsync;
+        int replayed = replay();
+        compact();
+        this.wal = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.info("Embedded metadata store opened at {}: {} log records, {} files, {} conversations",
+                root, replayed, files.size(), conversations.size());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            wal.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        notifier.shutdown();
+    }
+
+    // ----------------------------
+    // file_metadata
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> findFile(String docId) {
+        return read(() -> Optional.ofNullable(files.get(docId)));
+    }
+
+    @Override
+    public CompletableFuture<List<FileMetadata>> findListings(List<String> docIds) {
+        return read(() -> {
+            List<FileMetadata> listings = new ArrayList<>();
+            for (String docId : docIds) {
+                FileMetadata file = files.get(docId);
+                if (file != null) {
+                    listings.add(listing(file));
+                }
+            }
+            return listings;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> createFiles(List<FileMetadata> metadata, Set<String> reusedBlobs) {
+        List<Map<String, Object>> records = metadata.stream().map(EmbeddedMetadataStore::fileToRecord).toList();
+        return write(at -> {
+            for (String storagePath : reusedBlobs) {
+                if (!blobRefs.containsKey(storagePath)) {
+                    throw new NoSuchElementException("Blob " + storagePath + " is no longer referenced");
+                }
+            }
+            return record("files", "files", records);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> findFileByContent(String ownerUid, String contentHash) {
+        return read(() -> filesByContent.getOrDefault(contentKey(ownerUid, contentHash), Set.of()).stream()
+                .findFirst()
+                .map(files::get));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteFile(String docId) {
+        boolean[] lastReference = {false};
+        return write(at -> {
+            requireFile(docId);
+            lastReference[0] = blobRefs.getOrDefault(files.get(docId).storagePath(), 1) <= 1;
+            return record("delete", "docId", docId);
+        }).thenApply(done -> lastReference[0]);
+    }
+
+    @Override
+    public CompletableFuture<Void> setVisibleToPatient(String docId, boolean visible) {
+        return write(at -> {
+            requireFile(docId);
+            return record("visibility", "docId", docId, "visible", visible);
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<FileMetadata>> queryFiles(FileQuery query, FileCursor after, int limit) {
+        Key cursor = after != null ? new Key(after.createdAt(), after.docId()) : null;
+        return read(() -> switch (query) {
+            case FileQuery.All all -> page(filesNewestFirst, cursor, limit, file -> true);
+            case FileQuery.ByOwner byOwner -> page(filesByOwner.get(byOwner.ownerUid()), cursor, limit,
+                    file -> !byOwner.visibleToPatientOnly() || file.visibleToPatient());
+            case FileQuery.SharedWith sharedWith -> page(filesBySharedWith.get(sharedWith.uid()), cursor, limit, file -> true);
+            case FileQuery.ByOwners byOwners -> {
+                // Each owner contributes at most `limit` files from the cursor; the page is the newest of those
+                List<FileMetadata> merged = new ArrayList<>();
+                for (String ownerUid : new LinkedHashSet<>(byOwners.ownerUids())) {
+                    merged.addAll(page(filesByOwner.get(ownerUid), cursor, limit, file -> true));
+                }
+                merged.sort(NEWEST_FIRST);
+                yield merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+            }
+        });
+    }
+
+    @Override
+    public void forEachFile(Consumer<FileMetadata> action) {
+        List<FileMetadata> snapshot = read(() -> new ArrayList<>(files.values())).join();
+        snapshot.forEach(action);
+    }
+
+    // ----------------------------
+    // key_encryption_keys
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<List<KeyEncryptionKey>> keksOf(String ownerUid) {
+        return read(() -> new ArrayList<>(keks.getOrDefault(ownerUid, Collections.emptyNavigableMap()).values()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addKek(KeyEncryptionKey kek) {
+        boolean[] added = {false};
+        return write(at -> {
+            if (keks.getOrDefault(kek.ownerUid(), Collections.emptyNavigableMap()).containsKey(kek.version())) {
+                return null;
+            }
+            added[0] = true;
+            return kekRecord(kek);
+        }).thenApply(done -> added[0]);
+    }
+
+    // ----------------------------
+    // doctor_assignments
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<List<String>> patientsOf(String doctorUid) {
+        return read(() -> new ArrayList<>(patientsByDoctor.getOrDefault(doctorUid, List.of())));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<String>>> allAssignments() {
+        return read(() -> {
+            Map<String, List<String>> assignments = new LinkedHashMap<>();
+            patientsByDoctor.forEach((doctorUid, patients) -> assignments.put(doctorUid, new ArrayList<>(patients)));
+            return assignments;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> assignPatient(String doctorUid, String patientUid) {
+        return write(at -> record("assign", "doctorUid", doctorUid, "patientUid", patientUid));
+    }
+
+    // ----------------------------
+    // conversations and messages
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<Optional<Conversation>> findConversation(String conversationId) {
+        return read(() -> Optional.ofNullable(conversations.get(conversationId)).map(EmbeddedMetadataStore::toConversation));
+    }
+
+    @Override
+    public CompletableFuture<List<Conversation>> conversationsOf(String uid, MessageCursor after, int limit) {
+        return read(() -> {
+            NavigableSet<Key> inbox = inboxes.getOrDefault(uid, Collections.emptyNavigableSet());
+            Iterable<Key> from = after != null ? inbox.tailSet(new Key(after.timestamp(), after.messageId()), false) : inbox;
+            List<Conversation> page = new ArrayList<>();
+            for (Key key : from) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.add(toConversation(conversations.get(key.id())));
+            }
+            return page;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> messages(String conversationId, MessageCursor after, boolean ascending, int limit) {
+        return read(() -> {
+            ConversationState conversation = conversations.get(conversationId);
+            if (conversation == null) {
+                return new ArrayList<>();
+            }
+            NavigableMap<Key, Map<String, Object>> view = conversation.messages;
+            if (after != null) {
+                Key cursor = new Key(after.timestamp(), after.messageId());
+                view = ascending ? view.tailMap(cursor, false) : view.headMap(cursor, false);
+            }
+            if (!ascending) {
+                view = view.descendingMap();
+            }
+            List<Message> page = new ArrayList<>();
+            for (Map.Entry<Key, Map<String, Object>> entry : view.entrySet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.add(toMessage(entry.getKey(), entry.getValue()));
+            }
+            return page;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> findMessage(String conversationId, String messageId) {
+        return read(() -> {
+            ConversationState conversation = conversations.get(conversationId);
+            Key key = conversation != null ? conversation.messageKeys.get(messageId) : null;
+            return key != null ? Optional.of(toMessage(key, conversation.messages.get(key))) : Optional.empty();
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> commitMessages(MessageCommit commit) {
+        List<Map<String, Object>> messages = new ArrayList<>();
+        for (MessageCommit.NewMessage message : commit.messages()) {
+            Map<String, Object> fields = new HashMap<>(message.fields());
+            fields.remove("timestamp");
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("messageId", message.messageId());
+            entry.put("fields", fields);
+            entry.put("sharedDocId", message.sharedDocId());
+            entry.put("sharedWithUid", message.sharedWithUid());
+            messages.add(entry);
+        }
+        return write(at -> {
+            // Like the Firestore batch: sharing a file that doesn't exist fails the whole commit
+            commit.messages().stream()
+                    .map(MessageCommit.NewMessage::sharedDocId)
+                    .filter(Objects::nonNull)
+                    .forEach(this::requireFile);
+            return record("messages",
+                    "conversationId", commit.conversationId(),
+                    "participants", commit.participants(),
+                    "lastMessage", commit.lastMessage(),
+                    "at", at.toString(),
+                    "messages", messages,
+                    "unreadIncrements", commit.unreadIncrements());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> markRead(String conversationId, String uid) {
+        return write(at -> {
+            if (!conversations.containsKey(conversationId)) {
+                throw new NoSuchElementException("No conversation " + conversationId);
+            }
+            return record("read", "conversationId", conversationId, "uid", uid, "at", at.toString());
+        });
+    }
+
+    // ----------------------------
+    // Change feeds
+    // ----------------------------
+
+    @Override
+    public void addFileListener(Consumer<FileMetadata> onChange, Runnable onFeedError) {
+        fileListeners.add(new FileListener(onChange, onFeedError));
+    }
+
+    @Override
+    public void addConversationListener(Consumer<Conversation> onChange) {
+        conversationListeners.add(onChange);
+    }
+
+    @Override
+    public void addAssignmentListener(BiConsumer<String, List<String>> onChange) {
+        assignmentListeners.add(onChange);
+    }
+
+    // ----------------------------
+    // Reads, writes and the log
+    // ----------------------------
+
+    private <T> CompletableFuture<T> read(Supplier<T> query) {
+        lock.readLock().lock();
+        try {
+            return CompletableFuture.completedFuture(query.get());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Builds the record with its commit time under the write lock, logs it, then applies it to memory.
+    // A failure before the append (e.g. a missing document) leaves both log and memory untouched, and so
+    // does a null record (nothing to write).
+    private CompletableFuture<Void> write(Function<Timestamp, Map<String, Object>> recordAt) {
+        List<Runnable> notifications;
+        lock.writeLock().lock();
+        try {
+            Map<String, Object> record = recordAt.apply(nextCommitTime());
+            if (record == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            append(record);
+            notifications = apply(record);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        notifications.forEach(notifier::execute);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void append(Map<String, Object> record) throws IOException {
+        if (walFailure != null) {
+            throw new IOException("Metadata log is unusable after a failed write; restart to recover", walFailure);
+        }
+        byte[] json = JSON.writeValueAsBytes(record);
+        ByteBuffer line = ByteBuffer.allocate(json.length + 1).put(json).put((byte) '\n').flip();
+        long start = wal.size();
+        try {
+            while (line.hasRemaining()) {
+                wal.write(line);
+            }
+            if (fsync) {
+                wal.force(false);
+            }
+        } catch (IOException e) {
+            // Not acknowledged, so not applied: take whatever part of the record reached the log back out
+            try {
+                wal.truncate(start);
+                if (fsync) {
+                    wal.force(false);
+                }
+            } catch (IOException rollback) {
+                e.addSuppressed(rollback);
+                walFailure = e;
+                log.error("Could not roll back a failed append to {}; rejecting further writes", logPath, e);
+            }
+            throw e;
+        }
+    }
+
+    private Timestamp nextCommitTime() {
+        Timestamp now = Timestamp.now();
+        if (now.compareTo(lastCommit) > 0) {
+            return now;
+        }
+        long lastMicros = lastCommit.getSeconds() * 1_000_000L + lastCommit.getNanos() / 1_000;
+        return Timestamp.ofTimeMicroseconds(lastMicros + 1);
+    }
+
+    private int replay() throws IOException {
+        if (!Files.exists(logPath)) {
+            return 0;
+        }
+        int records = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(logPath), 1 << 16)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int next;
+            while ((next = in.read()) != -1) {
+                if (next != '\n') {
+                    line.write(next);
+                    continue;
+                }
+                // A complete line that doesn't parse means the log is damaged: refuse to start rather than lose data
+                apply(JSON.readValue(line.toByteArray(), RECORD));
+                records++;
+                line.reset();
+            }
+            if (line.size() > 0) {
+                log.warn("Dropping torn last record ({} bytes) of {}", line.size(), logPath);
+            }
+        }
+        return records;
+    }
+
+    // Rewrites the log as the current state, then atomically replaces it
+    private void compact() throws IOException {
+        Path temp = logPath.resolveSibling(LOG_FILE + ".compact");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+            List<Map<String, Object>> batch = new ArrayList<>();
+            for (FileMetadata file : files.values()) {
+                batch.add(fileToRecord(file));
+                if (batch.size() == COMPACT_FILES_PER_RECORD) {
+                    writeLine(out, record("files", "files", batch));
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                writeLine(out, record("files", "files", batch));
+            }
+            for (NavigableMap<Integer, KeyEncryptionKey> versions : keks.values()) {
+                for (KeyEncryptionKey kek : versions.values()) {
+                    writeLine(out, kekRecord(kek));
+                }
+            }
+            for (Map.Entry<String, List<String>> doctor : patientsByDoctor.entrySet()) {
+                for (String patientUid : doctor.getValue()) {
+                    writeLine(out, record("assign", "doctorUid", doctor.getKey(), "patientUid", patientUid));
+                }
+            }
+            for (ConversationState conversation : conversations.values()) {
+                Map<String, String> lastRead = new HashMap<>();
+                conversation.lastRead.forEach((uid, at) -> lastRead.put(uid, at.toString()));
+                writeLine(out, record("conversation",
+                        "conversationId", conversation.id,
+                        "participants", conversation.participants,
+                        "lastMessage", conversation.lastMessage,
+                        "at", conversation.lastUpdated.toString(),
+                        "unreadCounts", conversation.unreadCounts,
+                        "lastRead", lastRead));
+                for (Map.Entry<Key, Map<String, Object>> message : conversation.messages.entrySet()) {
+                    writeLine(out, record("message",
+                            "conversationId", conversation.id,
+                            "messageId", message.getKey().id(),
+                            "at", message.getKey().at().toString(),
+                            "fields", message.getValue()));
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, logPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeLine(OutputStream out, Map<String, Object> record) throws IOException {
+        out.write(JSON.writeValueAsBytes(record));
+        out.write('\n');
+    }
+
+    // ----------------------------
+    // Applying records (live writes and replay); caller holds the write lock
+    // ----------------------------
+
+    // Returns the change notifications to deliver once the lock is released
+    @SuppressWarnings("unchecked")
+    private List<Runnable> apply(Map<String, Object> record) {
+        List<Runnable> notifications = new ArrayList<>();
+        Timestamp at = record.get("at") != null ? Timestamp.parseTimestamp((String) record.get("at")) : null;
+        if (at != null && at.compareTo(lastCommit) > 0) {
+            lastCommit = at;
+        }
+        switch ((String) record.get("op")) {
+            case "files" -> {
+                for (Map<String, Object> fields : (List<Map<String, Object>>) record.get("files")) {
+                    FileMetadata file = fileFromRecord(fields);
+                    putFile(file);
+                    notifications.add(() -> notifyFile(file));
+                }
+            }
+            case "delete" -> removeFile((String) record.get("docId"));
+            case "visibility" -> {
+                FileMetadata file = files.get((String) record.get("docId"));
+                if (file != null) {
+                    FileMetadata updated = withChanges(file, (Boolean) record.get("visible"), file.sharedWith());
+                    putFile(updated);
+                    notifications.add(() -> notifyFile(updated));
+                }
+            }
+            case "kek" -> {
+                KeyEncryptionKey kek = new KeyEncryptionKey((String) record.get("ownerUid"),
+                        ((Number) record.get("version")).intValue(), (String) record.get("wrappedKey"),
+                        Timestamp.parseTimestamp((String) record.get("createdAt")));
+                keks.computeIfAbsent(kek.ownerUid(), uid -> new TreeMap<>()).put(kek.version(), kek);
+            }
+            case "assign" -> {
+                String doctorUid = (String) record.get("doctorUid");
+                List<String> patients = patientsByDoctor.computeIfAbsent(doctorUid, uid -> new ArrayList<>());
+                if (!patients.contains((String) record.get("patientUid"))) {
+                    patients.add((String) record.get("patientUid"));
+                }
+                List<String> assigned = List.copyOf(patients);
+                notifications.add(() -> assignmentListeners.forEach(listener -> listener.accept(doctorUid, assigned)));
+            }
+            case "messages" -> {
+                ConversationState conversation = conversations.computeIfAbsent(
+                        (String) record.get("conversationId"), ConversationState::new);
+                updateConversation(conversation, (List<String>) record.get("participants"),
+                        (String) record.get("lastMessage"), at);
+                ((Map<String, Number>) record.get("unreadIncrements")).forEach((uid, count) ->
+                        conversation.unreadCounts.merge(uid, count.longValue(), Long::sum));
+                for (Map<String, Object> message : (List<Map<String, Object>>) record.get("messages")) {
+                    putMessage(conversation, (String) message.get("messageId"), at, (Map<String, Object>) message.get("fields"));
+                    FileMetadata shared = message.get("sharedDocId") != null ? files.get((String) message.get("sharedDocId")) : null;
+                    String uid = (String) message.get("sharedWithUid");
+                    if (shared != null && !shared.sharedWith().contains(uid)) {
+                        List<String> sharedWith = new ArrayList<>(shared.sharedWith());
+                        sharedWith.add(uid);
+                        FileMetadata updated = withChanges(shared, shared.visibleToPatient(), sharedWith);
+                        putFile(updated);
+                        notifications.add(() -> notifyFile(updated));
+                    }
+                }
+                Conversation changed = toConversation(conversation);
+                notifications.add(() -> conversationListeners.forEach(listener -> listener.accept(changed)));
+            }
+            case "read" -> {
+                ConversationState conversation = conversations.get((String) record.get("conversationId"));
+                if (conversation != null) {
+                    conversation.unreadCounts.put((String) record.get("uid"), 0L);
+                    conversation.lastRead.put((String) record.get("uid"), at);
+                }
+            }
+            case "conversation" -> {
+                ConversationState conversation = conversations.computeIfAbsent(
+                        (String) record.get("conversationId"), ConversationState::new);
+                updateConversation(conversation, (List<String>) record.get("participants"),
+                        (String) record.get("lastMessage"), at);
+                ((Map<String, Number>) record.get("unreadCounts")).forEach((uid, count) ->
+                        conversation.unreadCounts.put(uid, count.longValue()));
+                ((Map<String, String>) record.get("lastRead")).forEach((uid, read) ->
+                        conversation.lastRead.put(uid, Timestamp.parseTimestamp(read)));
+            }
+            case "message" -> {
+                ConversationState conversation = conversations.computeIfAbsent(
+                        (String) record.get("conversationId"), ConversationState::new);
+                putMessage(conversation, (String) record.get("messageId"), at, (Map<String, Object>) record.get("fields"));
+            }
+            default -> throw new IllegalStateException("Unknown metadata log record " + record.get("op"));
+        }
+        return notifications;
+    }
+
+    private void putFile(FileMetadata file) {
+        FileMetadata previous = files.put(file.docId(), file);
+        if (previous != null) {
+            unindex(previous);
+        }
+        blobRefs.merge(file.storagePath(), 1, Integer::sum);
+        if (file.contentHash() != null) {
+            filesByContent.computeIfAbsent(contentKey(file.ownerUid(), file.contentHash()), k -> new HashSet<>()).add(file.docId());
+        }
+        // Files without createdAt are never listed, as in the ordered Firestore queries
+        if (file.createdAt() != null) {
+            Key key = new Key(file.createdAt(), file.docId());
+            filesNewestFirst.add(key);
+            addToIndex(filesByOwner, file.ownerUid(), key);
+            file.sharedWith().forEach(uid -> addToIndex(filesBySharedWith, uid, key));
+        }
+    }
+
+    private void removeFile(String docId) {
+        FileMetadata previous = files.remove(docId);
+        if (previous != null) {
+            unindex(previous);
+        }
+    }
+
+    private void unindex(FileMetadata file) {
+        blobRefs.computeIfPresent(file.storagePath(), (path, count) -> count > 1 ? count - 1 : null);
+        if (file.contentHash() != null) {
+            String contentKey = contentKey(file.ownerUid(), file.contentHash());
+            Set<String> docIds = filesByContent.get(contentKey);
+            if (docIds != null && docIds.remove(file.docId()) && docIds.isEmpty()) {
+                filesByContent.remove(contentKey);
+            }
+        }
+        if (file.createdAt() != null) {
+            Key key = new Key(file.createdAt(), file.docId());
+            filesNewestFirst.remove(key);
+            removeFromIndex(filesByOwner, file.ownerUid(), key);
+            file.sharedWith().forEach(uid -> removeFromIndex(filesBySharedWith, uid, key));
+        }
+    }
+
+    private static String contentKey(String ownerUid, String contentHash) {
+        return ownerUid + "/" + contentHash;
+    }
+
+    private void updateConversation(ConversationState conversation, List<String> participants, String lastMessage, Timestamp at) {
+        if (conversation.lastUpdated != null) {
+            Key previous = new Key(conversation.lastUpdated, conversation.id);
+            conversation.participants.forEach(uid -> removeFromIndex(inboxes, uid, previous));
+        }
+        conversation.participants = List.copyOf(participants);
+        conversation.lastMessage = lastMessage;
+        conversation.lastUpdated = at;
+        Key key = new Key(at, conversation.id);
+        conversation.participants.forEach(uid -> addToIndex(inboxes, uid, key));
+    }
+
+    private static void putMessage(ConversationState conversation, String messageId, Timestamp at, Map<String, Object> fields) {
+        Key key = new Key(at, messageId);
+        conversation.messages.put(key, fields);
+        conversation.messageKeys.put(messageId, key);
+    }
+
+    private static void addToIndex(Map<String, NavigableSet<Key>> index, String value, Key key) {
+        if (value != null) {
+            index.computeIfAbsent(value, v -> new TreeSet<>(Comparator.reverseOrder())).add(key);
+        }
+    }
+
+    private static void removeFromIndex(Map<String, NavigableSet<Key>> index, String value, Key key) {
+        NavigableSet<Key> keys = value != null ? index.get(value) : null;
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            index.remove(value);
+        }
+    }
+
+    private void requireFile(String docId) {
+        if (!files.containsKey(docId)) {
+            throw new NoSuchElementException("No file " + docId);
+        }
+    }
+
+    private void notifyFile(FileMetadata file) {
+        fileListeners.forEach(listener -> listener.onChange().accept(file));
+    }
+
+    // Up to `limit` files of an index in listing order, starting after the cursor
+    private List<FileMetadata> page(NavigableSet<Key> index, Key after, int limit, Predicate<FileMetadata> filter) {
+        List<FileMetadata> page = new ArrayList<>();
+        if (index == null) {
+            return page;
+        }
+        for (Key key : after != null ? index.tailSet(after, false) : index) {
+            if (page.size() == limit) {
+                break;
+            }
+            FileMetadata file = files.get(key.id());
+            if (filter.test(file)) {
+                page.add(listing(file));
+            }
+        }
+        return page;
+    }
+
+    // ----------------------------
+    // Mapping
+    // ----------------------------
+
+    private static Map<String, Object> record(Object... keyValues) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("op", keyValues[0]);
+        for (int i = 1; i < keyValues.length; i += 2) {
+            record.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return record;
+    }
+
+    // The same fields a Firestore listing query selects
+    private static FileMetadata listing(FileMetadata file) {
+        return new FileMetadata(file.docId(), file.ownerUid(), file.originalFilename(), null, null, null,
+                file.encryptionVersion(), null, null, null, null, null, null, null, file.createdAt(), file.visibleToPatient(), null, List.of(), List.of());
+    }
+
+    private static FileMetadata withChanges(FileMetadata file, boolean visibleToPatient, List<String> sharedWith) {
+        return new FileMetadata(file.docId(), file.ownerUid(), file.originalFilename(), file.storagePath(),
+                file.wrappedAesKey(), file.iv(), file.encryptionVersion(), file.segmentSize(), file.plaintextSize(),
+                file.contentHash(), file.codec(), file.originalSize(), file.keyScheme(), file.kekVersion(), file.createdAt(), visibleToPatient, file.visibleToDoctor(), file.allowedDoctorUids(), List.copyOf(sharedWith));
+    }
+
+    private static Conversation toConversation(ConversationState conversation) {
+        return new Conversation(conversation.id, conversation.participants, conversation.lastMessage,
+                conversation.lastUpdated, new HashMap<>(conversation.unreadCounts), new HashMap<>(conversation.lastRead));
+    }
+
+    private static Message toMessage(Key key, Map<String, Object> fields) {
+        Map<String, Object> copy = new HashMap<>(fields);
+        copy.put("timestamp", key.at());
+        return new Message(key.id(), key.at(), copy);
+    }
+
+    private static Map<String, Object> kekRecord(KeyEncryptionKey kek) {
+        return record("kek", "ownerUid", kek.ownerUid(), "version", kek.version(), "wrappedKey", kek.wrappedKey(),
+                "createdAt", kek.createdAt().toString());
+    }
+
+    private static Map<String, Object> fileToRecord(FileMetadata file) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("docId", file.docId());
+        record.put("ownerUid", file.ownerUid());
+        record.put("originalFilename", file.originalFilename());
+        record.put("storagePath", file.storagePath());
+        record.put("wrappedAesKey", file.wrappedAesKey());
+        record.put("iv", file.iv());
+        record.put("encryptionVersion", file.encryptionVersion());
+        record.put("segmentSize", file.segmentSize());
+        record.put("plaintextSize", file.plaintextSize());
+        record.put("contentHash", file.contentHash());
+        record.put("codec", file.codec());
+        record.put("originalSize", file.originalSize());
+        record.put("keyScheme", file.keyScheme());
+        record.put("kekVersion", file.kekVersion());
+        record.put("createdAt", file.createdAt() != null ? file.createdAt().toString() : null);
+        record.put("isVisibleToPatient", file.visibleToPatient());
+        record.put("isVisibleToDoctor", file.visibleToDoctor());
+        record.put("allowedDoctorUids", file.allowedDoctorUids());
+        record.put("sharedWith", file.sharedWith());
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FileMetadata fileFromRecord(Map<String, Object> record) {
+        Number segmentSize = (Number) record.get("segmentSize");
+        Number plaintextSize = (Number) record.get("plaintextSize");
+        Number originalSize = (Number) record.get("originalSize");
+        String keyScheme = (String) record.get("keyScheme");
+        Number kekVersion = (Number) record.get("kekVersion");
+        String createdAt = (String) record.get("createdAt");
+        Object allowedDoctorUids = record.get("allowedDoctorUids");
+        Object sharedWith = record.get("sharedWith");
+        return new FileMetadata(
+                (String) record.get("docId"),
+                (String) record.get("ownerUid"),
+                (String) record.get("originalFilename"),
+                (String) record.get("storagePath"),
+                (String) record.get("wrappedAesKey"),
+                (String) record.get("iv"),
+                ((Number) record.get("encryptionVersion")).intValue(),
+                segmentSize != null ? segmentSize.intValue() : null,
+                plaintextSize != null ? plaintextSize.longValue() : null,
+                (String) record.get("contentHash"),
+                (String) record.get("codec"),
+                originalSize != null ? originalSize.longValue() : null,
+                keyScheme != null ? keyScheme : EncryptionService.KEY_SCHEME_RSA,
+                kekVersion != null ? kekVersion.intValue() : null,
+                createdAt != null ? Timestamp.parseTimestamp(createdAt) : null,
+                (Boolean) record.get("isVisibleToPatient"),
+                (Boolean) record.get("isVisibleToDoctor"),
+                allowedDoctorUids instanceof List ? List.copyOf((List<String>) allowedDoctorUids) : List.of(),
+                sharedWith instanceof List ? List.copyOf((List<String>) sharedWith) : List.of());
+    }
+}
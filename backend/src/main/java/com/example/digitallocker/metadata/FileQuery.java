@@ -0,0 +1,19 @@
+package com.example.digitallocker.metadata;
+
+import java.util.List;
+
+// The file_metadata listings the application runs; each is read in listing order (see MetadataStore)
+public sealed interface FileQuery {
+
+    // Every file (admin listing)
+    record All() implements FileQuery {}
+
+    // Files owned by one user, optionally only those visible to them (patient listing)
+    record ByOwner(String ownerUid, boolean visibleToPatientOnly) implements FileQuery {}
+
+    // Files owned by any of these users (a doctor's assigned patients)
+    record ByOwners(List<String> ownerUids) implements FileQuery {}
+
+    // Files whose sharedWith contains the user
+    record SharedWith(String uid) implements FileQuery {}
+}
@@ -0,0 +1,35 @@
+package com.example.digitallocker.metadata;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.Query;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ Plans the file_metadata queries behind a whereIn on ownerUid (a doctor's listing). Firestore caps the
+ number of values in a whereIn filter, so the owners are split into chunks of at most that size and
+ every chunk becomes its own query. The queries are independent of each other and can all be sent at
+ the same time.
+ */
+@Component
+public class FileQueryPlanner {
+
+    private final int maxInValues;
+
+    public FileQueryPlanner(@Value("${locker.files.list.max-in-values:30}") int maxInValues) {
+        this.maxInValues = maxInValues;
+    }
+
+    // One whereIn query per chunk of owners
+    public List<Query> planOwnerQueries(CollectionReference files, List<String> ownerUids) {
+        List<Query> plan = new ArrayList<>();
+        for (int from = 0; from < ownerUids.size(); from += maxInValues) {
+            List<String> chunk = ownerUids.subList(from, Math.min(from + maxInValues, ownerUids.size()));
+            plan.add(files.whereIn("ownerUid", new ArrayList<>(chunk)));
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.digitallocker.metadata;
+
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.service.FileCursor;
+import com.example.digitallocker.service.MessageCursor;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.firebase.cloud.FirestoreClient;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static com.example.digitallocker.service.CompletableFutures.toCompletable;
+
+/*
+ MetadataStore on Cloud Firestore (collections file_metadata, blob_refs, key_encryption_keys,
+ doctor_assignments, conversations with a messages subcollection). Reads and writes are composed from the
+ Firestore futures without blocking. blob_refs holds one counter per blob, of the files whose storagePath
+ points at it; key_encryption_keys one document per patient, with every version of their KEK in a map.
+
+ Change feeds come from snapshot listeners: file_metadata on updatedAt and conversations on lastUpdated,
+ each listening from (now - 1 minute) and re-anchored every `window` so its result set stays small, and
+ one listener on all of doctor_assignments.
+
+ Needs composite indexes on file_metadata for (ownerUid, isVisibleToPatient, createdAt desc),
+ (ownerUid, createdAt desc) and (sharedWith array-contains, createdAt desc), and on conversations for
+ (participants array-contains, lastUpdated desc).
+ */
+@Component(MetadataStore.BACKEND)
+@ConditionalOnProperty(name = "locker.metadata.backend", havingValue = "firestore", matchIfMissing = true)
+public class FirestoreMetadataStore implements MetadataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FirestoreMetadataStore.class);
+    private static final String FILES = "file_metadata";
+    private static final String ASSIGNMENTS = "doctor_assignments";
+    private static final String CONVERSATIONS = "conversations";
+    private static final String BLOB_REFS = "blob_refs";
+    private static final String KEKS = "key_encryption_keys";
+    private static final String[] LISTING_FIELDS = {"originalFilename", "ownerUid", "isVisibleToPatient", "createdAt"};
+    private static final String[] INDEX_FIELDS = {"ownerUid", "createdAt", "isVisibleToPatient", "sharedWith", "allowedDoctorUids"};
+    private static final int SCAN_PAGE_SIZE = 5000;
+
+    private static final Comparator<FileMetadata> NEWEST_FIRST =
+            Comparator.comparing(FileMetadata::createdAt)
+                    .thenComparing(FileMetadata::docId)
+                    .reversed();
+
+    private record FileListener(Consumer<FileMetadata> onChange, Runnable onFeedError) {}
+
+    private final FileQueryPlanner queryPlanner;
+    private final boolean listenersEnabled;
+    private final Duration listenerWindow;
+    private final List<FileListener> fileListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Conversation>> conversationListeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<String, List<String>>> assignmentListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService listenerScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "firestore-listener-anchor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ListenerRegistration filesListener;
+    private volatile ListenerRegistration conversationsListener;
+    private volatile ListenerRegistration assignmentsListener;
+
+    public FirestoreMetadataStore(FileQueryPlanner queryPlanner,
+                                  @Value("${locker.metadata.cache.listener.enabled:true}") boolean listenersEnabled,
+                                  @Value("${locker.metadata.cache.listener.window:1h}") Duration listenerWindow) {
+        this.queryPlanner = queryPlanner;
+        this.listenersEnabled = listenersEnabled;
+        this.listenerWindow = listenerWindow;
+    }
+
+    // ----------------------------
+    // file_metadata
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> findFile(String docId) {
+        return toCompletable(files().document(docId).get())
+                .thenApply(doc -> doc.exists() ? Optional.of(FileMetadata.fromSnapshot(doc)) : Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<List<FileMetadata>> findListings(List<String> docIds) {
+        if (docIds.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        DocumentReference[] refs = docIds.stream().map(files()::document).toArray(DocumentReference[]::new);
+        // getAll returns documents in request order
+        return toCompletable(db().getAll(refs, FieldMask.of(LISTING_FIELDS))).thenApply(snapshots -> {
+            List<FileMetadata> listings = new ArrayList<>();
+            for (DocumentSnapshot snapshot : snapshots) {
+                if (snapshot.exists()) {
+                    listings.add(FileMetadata.fromSnapshot(snapshot));
+                }
+            }
+            return listings;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> createFiles(List<FileMetadata> metadata, Set<String> reusedBlobs) {
+        WriteBatch batch = db().batch();
+        Map<String, Integer> references = new HashMap<>();
+        for (FileMetadata file : metadata) {
+            Map<String, Object> fields = file.toFirestore();
+            fields.put("updatedAt", FieldValue.serverTimestamp());
+            batch.set(files().document(file.docId()), fields);
+            references.merge(file.storagePath(), 1, Integer::sum);
+        }
+        // One write per blob: update() fails the batch if a reused blob's counter is gone, create() if a new one exists
+        references.forEach((storagePath, count) -> {
+            if (reusedBlobs.contains(storagePath)) {
+                batch.update(blobRef(storagePath), "refCount", FieldValue.increment(count));
+            } else {
+                batch.create(blobRef(storagePath), Map.of("storagePath", storagePath, "refCount", count));
+            }
+        });
+        return toCompletable(batch.commit()).thenApply(results -> null);
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> findFileByContent(String ownerUid, String contentHash) {
+        return toCompletable(files()
+                .whereEqualTo("ownerUid", ownerUid)
+                .whereEqualTo("contentHash", contentHash)
+                .limit(1)
+                .get())
+                .thenApply(snapshot -> snapshot.isEmpty()
+                        ? Optional.empty()
+                        : Optional.of(FileMetadata.fromSnapshot(snapshot.getDocuments().get(0))));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteFile(String docId) {
+        // A transaction, so a concurrent deduplicated upload either lands before the count is read or fails
+        return toCompletable(db().runTransaction(transaction -> {
+            DocumentSnapshot file = transaction.get(files().document(docId)).get();
+            if (!file.exists()) {
+                throw new NoSuchElementException("No file " + docId);
+            }
+            DocumentReference blob = blobRef(file.getString("storagePath"));
+            Long refCount = transaction.get(blob).get().getLong("refCount");
+            transaction.delete(file.getReference());
+            if (refCount == null || refCount <= 1) {
+                transaction.delete(blob);
+                return true;
+            }
+            transaction.update(blob, "refCount", FieldValue.increment(-1));
+            return false;
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Void> setVisibleToPatient(String docId, boolean visible) {
+        return toCompletable(files().document(docId)
+                .update("isVisibleToPatient", visible, "updatedAt", FieldValue.serverTimestamp()))
+                .thenApply(result -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<FileMetadata>> queryFiles(FileQuery query, FileCursor after, int limit) {
+        List<Query> plan = switch (query) {
+            case FileQuery.All all -> List.of(files());
+            case FileQuery.ByOwner byOwner -> List.of(byOwner.visibleToPatientOnly()
+                    ? files().whereEqualTo("ownerUid", byOwner.ownerUid()).whereEqualTo("isVisibleToPatient", true)
+                    : files().whereEqualTo("ownerUid", byOwner.ownerUid()));
+            case FileQuery.ByOwners byOwners -> queryPlanner.planOwnerQueries(files(), byOwners.ownerUids());
+            case FileQuery.SharedWith sharedWith -> List.of(files().whereArrayContains("sharedWith", sharedWith.uid()));
+        };
+        if (plan.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        // Every planned query reads `limit` documents from the same cursor, all sent at once; the merge
+        // keeps the first `limit` of their union. Chunks of a whereIn have disjoint results.
+        List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+        for (Query planned : plan) {
+            Query page = planned.select(LISTING_FIELDS)
+                    .orderBy("createdAt", Query.Direction.DESCENDING)
+                    .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+            if (after != null) {
+                page = page.startAfter(after.createdAt(), after.docId());
+            }
+            futures.add(page.limit(limit).get());
+        }
+        return toCompletable(ApiFutures.allAsList(futures)).thenApply(snapshots -> {
+            List<FileMetadata> merged = new ArrayList<>();
+            for (QuerySnapshot snapshot : snapshots) {
+                snapshot.getDocuments().forEach(doc -> merged.add(FileMetadata.fromSnapshot(doc)));
+            }
+            if (snapshots.size() > 1) {
+                merged.sort(NEWEST_FIRST);
+            }
+            return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+        });
+    }
+
+    @Override
+    public void forEachFile(Consumer<FileMetadata> action) throws Exception {
+        Query page = files().select(INDEX_FIELDS).orderBy(FieldPath.documentId()).limit(SCAN_PAGE_SIZE);
+        List<? extends DocumentSnapshot> documents;
+        do {
+            documents = page.get().get().getDocuments();
+            documents.forEach(doc -> action.accept(FileMetadata.fromSnapshot(doc)));
+            if (!documents.isEmpty()) {
+                page = page.startAfter(documents.get(documents.size() - 1));
+            }
+        } while (documents.size() == SCAN_PAGE_SIZE);
+    }
+
+    // ----------------------------
+    // key_encryption_keys
+    // ----------------------------
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<KeyEncryptionKey>> keksOf(String ownerUid) {
+        return toCompletable(db().collection(KEKS).document(ownerUid).get()).thenApply(doc -> {
+            List<KeyEncryptionKey> keks = new ArrayList<>();
+            if (doc.exists() && doc.get("versions") instanceof Map<?, ?> versions) {
+                versions.forEach((version, fields) -> {
+                    Map<String, Object> kek = (Map<String, Object>) fields;
+                    keks.add(new KeyEncryptionKey(ownerUid, Integer.parseInt((String) version),
+                            (String) kek.get("wrappedKey"), (Timestamp) kek.get("createdAt")));
+                });
+            }
+            keks.sort(Comparator.comparingInt(KeyEncryptionKey::version));
+            return keks;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addKek(KeyEncryptionKey kek) {
+        DocumentReference ref = db().collection(KEKS).document(kek.ownerUid());
+        String version = String.valueOf(kek.version());
+        return toCompletable(db().runTransaction(transaction -> {
+            DocumentSnapshot doc = transaction.get(ref).get();
+            if (doc.exists() && doc.get(FieldPath.of("versions", version)) != null) {
+                return false;
+            }
+            // Merging a nested map adds this version and keeps the others
+            transaction.set(ref, Map.of("versions", Map.of(version, Map.of(
+                    "wrappedKey", kek.wrappedKey(),
+                    "createdAt", kek.createdAt()))), SetOptions.merge());
+            return true;
+        }));
+    }
+
+    // ----------------------------
+    // doctor_assignments
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<List<String>> patientsOf(String doctorUid) {
+        return toCompletable(db().collection(ASSIGNMENTS).document(doctorUid).get())
+                .thenApply(FirestoreMetadataStore::patientUids);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<String>>> allAssignments() {
+        return toCompletable(db().collection(ASSIGNMENTS).get()).thenApply(snapshot -> {
+            Map<String, List<String>> assignments = new LinkedHashMap<>();
+            snapshot.getDocuments().forEach(doc -> assignments.put(doc.getId(), patientUids(doc)));
+            return assignments;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> assignPatient(String doctorUid, String patientUid) {
+        // arrayUnion, so concurrent assignments to the same doctor don't overwrite each other
+        return toCompletable(db().collection(ASSIGNMENTS).document(doctorUid)
+                .set(Map.of("patientUids", FieldValue.arrayUnion(patientUid)), SetOptions.merge()))
+                .thenApply(result -> null);
+    }
+
+    // ----------------------------
+    // conversations and messages
+    // ----------------------------
+
+    @Override
+    public CompletableFuture<Optional<Conversation>> findConversation(String conversationId) {
+        return toCompletable(conversation(conversationId).get())
+                .thenApply(doc -> doc.exists() ? Optional.of(Conversation.fromSnapshot(doc)) : Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<List<Conversation>> conversationsOf(String uid, MessageCursor after, int limit) {
+        Query query = db().collection(CONVERSATIONS)
+                .whereArrayContains("participants", uid)
+                .orderBy("lastUpdated", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+        if (after != null) {
+            query = query.startAfter(after.timestamp(), after.messageId());
+        }
+        return toCompletable(query.limit(limit).get())
+                .thenApply(snapshot -> snapshot.getDocuments().stream().map(Conversation::fromSnapshot).toList());
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> messages(String conversationId, MessageCursor after, boolean ascending, int limit) {
+        Query.Direction direction = ascending ? Query.Direction.ASCENDING : Query.Direction.DESCENDING;
+        Query query = conversation(conversationId).collection("messages")
+                .orderBy("timestamp", direction)
+                .orderBy(FieldPath.documentId(), direction);
+        if (after != null) {
+            query = query.startAfter(after.timestamp(), after.messageId());
+        }
+        return toCompletable(query.limit(limit).get())
+                .thenApply(snapshot -> snapshot.getDocuments().stream().map(Message::fromSnapshot).toList());
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> findMessage(String conversationId, String messageId) {
+        return toCompletable(conversation(conversationId).collection("messages").document(messageId).get())
+                .thenApply(doc -> doc.exists() ? Optional.of(Message.fromSnapshot(doc)) : Optional.empty());
+    }
+
+    @Override
+    public CompletableFuture<Void> commitMessages(MessageCommit commit) {
+        DocumentReference conversationRef = conversation(commit.conversationId());
+        WriteBatch batch = db().batch();
+        for (MessageCommit.NewMessage message : commit.messages()) {
+            Map<String, Object> fields = new HashMap<>(message.fields());
+            fields.put("timestamp", FieldValue.serverTimestamp());
+            batch.set(conversationRef.collection("messages").document(message.messageId()), fields);
+            if (message.sharedDocId() != null) {
+                batch.update(files().document(message.sharedDocId()),
+                        "sharedWith", FieldValue.arrayUnion(message.sharedWithUid()), "updatedAt", FieldValue.serverTimestamp());
+            }
+        }
+        Map<String, Object> unreadCounts = new HashMap<>();
+        commit.unreadIncrements().forEach((participant, count) -> unreadCounts.put(participant, FieldValue.increment(count)));
+        batch.set(conversationRef, Map.of(
+                "participants", commit.participants(),
+                "lastMessage", commit.lastMessage(),
+                "lastUpdated", FieldValue.serverTimestamp(),
+                "unreadCounts", unreadCounts
+        ), SetOptions.merge());
+        return toCompletable(batch.commit()).thenApply(results -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> markRead(String conversationId, String uid) {
+        return toCompletable(conversation(conversationId).update(
+                FieldPath.of("unreadCounts", uid), 0,
+                FieldPath.of("lastRead", uid), FieldValue.serverTimestamp()))
+                .thenApply(result -> null);
+    }
+
+    // ----------------------------
+    // Change feeds
+    // ----------------------------
+
+    @Override
+    public void addFileListener(Consumer<FileMetadata> onChange, Runnable onFeedError) {
+        fileListeners.add(new FileListener(onChange, onFeedError));
+    }
+
+    @Override
+    public void addConversationListener(Consumer<Conversation> onChange) {
+        conversationListeners.add(onChange);
+    }
+
+    @Override
+    public void addAssignmentListener(BiConsumer<String, List<String>> onChange) {
+        assignmentListeners.add(onChange);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startListeners() {
+        if (!listenersEnabled) {
+            return;
+        }
+        anchorListeners();
+        listenerScheduler.scheduleAtFixedRate(this::anchorListeners,
+                listenerWindow.toMillis(), listenerWindow.toMillis(), TimeUnit.MILLISECONDS);
+        try {
+            assignmentsListener = db().collection(ASSIGNMENTS).addSnapshotListener((snapshot, error) -> {
+                if (error != null) {
+                    log.warn("doctor_assignments listener failed: {}", error.getMessage());
+                    return;
+                }
+                for (DocumentChange change : snapshot.getDocumentChanges()) {
+                    if (change.getType() != DocumentChange.Type.REMOVED) {
+                        List<String> patients = patientUids(change.getDocument());
+                        assignmentListeners.forEach(listener -> listener.accept(change.getDocument().getId(), patients));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not register doctor_assignments listener: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stopListeners() {
+        listenerScheduler.shutdownNow();
+        for (ListenerRegistration registration : new ListenerRegistration[]{filesListener, conversationsListener, assignmentsListener}) {
+            if (registration != null) {
+                registration.remove();
+            }
+        }
+    }
+
+    // Registers listeners for changes from (now - 1 minute) on, then drops the previous ones.
+    // The overlap makes sure no change falls between two registrations.
+    private void anchorListeners() {
+        Timestamp since = Timestamp.ofTimeSecondsAndNanos(Timestamp.now().getSeconds() - 60, 0);
+        try {
+            ListenerRegistration previous = filesListener;
+            filesListener = files().whereGreaterThan("updatedAt", since).addSnapshotListener((snapshot, error) -> {
+                if (error != null) {
+                    log.warn("file_metadata listener failed: {}", error.getMessage());
+                    fileListeners.forEach(listener -> listener.onFeedError().run());
+                    return;
+                }
+                for (DocumentChange change : snapshot.getDocumentChanges()) {
+                    // REMOVED only means the document aged out of the listener's window
+                    if (change.getType() != DocumentChange.Type.REMOVED) {
+                        FileMetadata metadata = FileMetadata.fromSnapshot(change.getDocument());
+                        fileListeners.forEach(listener -> listener.onChange().accept(metadata));
+                    }
+                }
+            });
+            if (previous != null) {
+                previous.remove();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not register file_metadata listener: {}", e.getMessage());
+        }
+        try {
+            ListenerRegistration previous = conversationsListener;
+            conversationsListener = db().collection(CONVERSATIONS).whereGreaterThan("lastUpdated", since).addSnapshotListener((snapshot, error) -> {
+                if (error != null) {
+                    log.warn("conversations listener failed: {}", error.getMessage());
+                    return;
+                }
+                for (DocumentChange change : snapshot.getDocumentChanges()) {
+                    if (change.getType() != DocumentChange.Type.REMOVED) {
+                        Conversation conversation = Conversation.fromSnapshot(change.getDocument());
+                        conversationListeners.forEach(listener -> listener.accept(conversation));
+                    }
+                }
+            });
+            if (previous != null) {
+                previous.remove();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not register conversations listener: {}", e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> patientUids(DocumentSnapshot doctorDoc) {
+        Object patientUids = doctorDoc.exists() ? doctorDoc.get("patientUids") : null;
+        return patientUids instanceof List ? new ArrayList<>((List<String>) patientUids) : new ArrayList<>();
+    }
+
+    private static Firestore db() {
+        return FirestoreClient.getFirestore();
+    }
+
+    private static CollectionReference files() {
+        return db().collection(FILES);
+    }
+
+    // Reference counter of a blob; the path is encoded because document ids can't contain '/'
+    private static DocumentReference blobRef(String storagePath) {
+        return db().collection(BLOB_REFS).document(URLEncoder.encode(storagePath, StandardCharsets.UTF_8));
+    }
+
+    private static DocumentReference conversation(String conversationId) {
+        return db().collection(CONVERSATIONS).document(conversationId);
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.digitallocker.metadata;
+
+import com.google.cloud.Timestamp;
+
+// One version of a patient's key-encryption key, as stored: the key itself wrapped with the master RSA key
+public record KeyEncryptionKey(
+        String ownerUid,
+        int version,
+        String wrappedKey,
+        Timestamp createdAt) {
+}
@@ -0,0 +1,15 @@
+package com.example.digitallocker.metadata;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+
+import java.util.Map;
+
+// A message of a conversation. fields holds the stored document fields (senderUid, textMessage, timestamp,
+// and docId/originalFilename for shares) in a map owned by the caller.
+public record Message(String id, Timestamp timestamp, Map<String, Object> fields) {
+
+    public static Message fromSnapshot(DocumentSnapshot doc) {
+        return new Message(doc.getId(), doc.getTimestamp("timestamp"), doc.getData());
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.digitallocker.metadata;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ One atomic write to a conversation: the new messages (all stamped with the same commit time, stored as
+ their "timestamp" field), the conversation's participants/lastMessage/lastUpdated, the participants'
+ unread counters and, for shares, the files' sharedWith entries.
+ */
+public record MessageCommit(String conversationId,
+                            List<String> participants,
+                            String lastMessage,
+                            List<NewMessage> messages,
+                            Map<String, Integer> unreadIncrements) {
+
+    // sharedDocId is set when the message shares a file with sharedWithUid
+    public record NewMessage(String messageId, Map<String, Object> fields, String sharedDocId, String sharedWithUid) {}
+}
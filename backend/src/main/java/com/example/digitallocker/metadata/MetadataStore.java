@@ -0,0 +1,121 @@
+package com.example.digitallocker.metadata;
+
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.service.FileCursor;
+import com.example.digitallocker.service.MessageCursor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/*
+ Where file_metadata, key_encryption_keys, doctor_assignments and conversations (with their messages)
+ live. It covers exactly the reads and writes the services and controllers make, and nothing else.
+ Selected with locker.metadata.backend:
+   - firestore (default) Cloud Firestore, shared by every node
+   - embedded            in-process indexes backed by a write-ahead log on local disk, for single-node
+                         and air-gapped sites (and offline tests)
+
+ Orderings every implementation keeps:
+   - file listings:  createdAt desc, then docId desc; files without createdAt are never listed
+   - messages:       timestamp, then messageId (either direction)
+   - inbox:          lastUpdated desc, then conversationId desc
+ Cursors are exclusive: a page starts right after the cursor's position. Reads return fresh objects that
+ the caller may modify. The application uses the configured store through ObservedMetadataStore, which
+ times every call.
+ */
+public interface MetadataStore {
+
+    // Bean name of the configured backend, which ObservedMetadataStore wraps
+    String BACKEND = "metadataBackend";
+
+    // ----------------------------
+    // file_metadata
+    // ----------------------------
+
+    CompletableFuture<Optional<FileMetadata>> findFile(String docId);
+
+    // Listing fields only (no key material), in request order; files that don't exist are skipped
+    CompletableFuture<List<FileMetadata>> findListings(List<String> docIds);
+
+    // All files in one atomic write, each stamped with updatedAt and counted as one reference to its storagePath
+    // blob (at most 250 per call). Paths in reusedBlobs belong to blobs that existing files already reference
+    // (deduplicated uploads); the write fails if one of them has meanwhile lost its last reference.
+    CompletableFuture<Void> createFiles(List<FileMetadata> files, Set<String> reusedBlobs);
+
+    // Some file of this owner with this contentHash, if any
+    CompletableFuture<Optional<FileMetadata>> findFileByContent(String ownerUid, String contentHash);
+
+    // Deletes the file and drops its reference to its blob. Completes with true when that was the blob's last
+    // reference (the caller then deletes the blob), or fails with NoSuchElementException if there is no such file.
+    // Files created before reference counting count as the only reference to their blob.
+    CompletableFuture<Boolean> deleteFile(String docId);
+
+    CompletableFuture<Void> setVisibleToPatient(String docId, boolean visible);
+
+    // One page of listing fields in listing order, starting after the cursor (null for the first page)
+    CompletableFuture<List<FileMetadata>> queryFiles(FileQuery query, FileCursor after, int limit);
+
+    // Every file with the fields an access index needs (ownerUid, createdAt, visibility, sharing), read in pages
+    void forEachFile(Consumer<FileMetadata> action) throws Exception;
+
+    // ----------------------------
+    // key_encryption_keys
+    // ----------------------------
+
+    // Every version of the patient's key-encryption key, oldest first
+    CompletableFuture<List<KeyEncryptionKey>> keksOf(String ownerUid);
+
+    // Adds a version; completes with false (writing nothing) if that version already exists, e.g. because
+    // another node rotated the patient's key at the same time
+    CompletableFuture<Boolean> addKek(KeyEncryptionKey kek);
+
+    // ----------------------------
+    // doctor_assignments
+    // ----------------------------
+
+    CompletableFuture<List<String>> patientsOf(String doctorUid);
+
+    // doctorUid -> assigned patientUids
+    CompletableFuture<Map<String, List<String>>> allAssignments();
+
+    CompletableFuture<Void> assignPatient(String doctorUid, String patientUid);
+
+    // ----------------------------
+    // conversations and messages
+    // ----------------------------
+
+    CompletableFuture<Optional<Conversation>> findConversation(String conversationId);
+
+    // The participant's inbox page, starting after the cursor (null for the first page)
+    CompletableFuture<List<Conversation>> conversationsOf(String uid, MessageCursor after, int limit);
+
+    // Messages after the cursor in the given direction; with no cursor, from the oldest (ascending) or newest
+    CompletableFuture<List<Message>> messages(String conversationId, MessageCursor after, boolean ascending, int limit);
+
+    CompletableFuture<Optional<Message>> findMessage(String conversationId, String messageId);
+
+    // Messages, conversation update, unread counters and shares in one atomic write (see MessageCommit)
+    CompletableFuture<Void> commitMessages(MessageCommit commit);
+
+    // Resets the participant's unread counter and sets their lastRead to now
+    CompletableFuture<Void> markRead(String conversationId, String uid);
+
+    // ----------------------------
+    // Change feeds
+    // ----------------------------
+    // Every implementation delivers the changes it can observe: the embedded store its own writes, Firestore
+    // the writes of every node. Listeners run on the store's notification thread and must not block.
+
+    // Added or modified files (deletions are not delivered); onFeedError is called when changes may have been missed
+    void addFileListener(Consumer<FileMetadata> onChange, Runnable onFeedError);
+
+    void addConversationListener(Consumer<Conversation> onChange);
+
+    // doctorUid and their full list of patients, whenever the list changes
+    void addAssignmentListener(BiConsumer<String, List<String>> onChange);
+}
@@ -0,0 +1,148 @@
+package com.example.digitallocker.metadata;
+
+import com.example.digitallocker.observability.Stages;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.service.FileCursor;
+import com.example.digitallocker.service.MessageCursor;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/*
+ The MetadataStore the application uses: the configured backend, with every call observed as a stage
+ named after the method (metadata.findFile, metadata.queryFiles, ...) from the moment it's made until its
+ future completes. Listener registrations pass straight through.
+ */
+@Component
+@Primary
+public class ObservedMetadataStore implements MetadataStore {
+
+    private final MetadataStore delegate;
+    private final Stages stages;
+
+    public ObservedMetadataStore(@Qualifier(MetadataStore.BACKEND) MetadataStore delegate, Stages stages) {
+        this.delegate = delegate;
+        this.stages = stages;
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> findFile(String docId) {
+        return stages.observeAsync("metadata.findFile", () -> delegate.findFile(docId));
+    }
+
+    @Override
+    public CompletableFuture<List<FileMetadata>> findListings(List<String> docIds) {
+        return stages.observeAsync("metadata.findListings", () -> delegate.findListings(docIds));
+    }
+
+    @Override
+    public CompletableFuture<Void> createFiles(List<FileMetadata> files, Set<String> reusedBlobs) {
+        return stages.observeAsync("metadata.createFiles", () -> delegate.createFiles(files, reusedBlobs));
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> findFileByContent(String ownerUid, String contentHash) {
+        return stages.observeAsync("metadata.findFileByContent", () -> delegate.findFileByContent(ownerUid, contentHash));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteFile(String docId) {
+        return stages.observeAsync("metadata.deleteFile", () -> delegate.deleteFile(docId));
+    }
+
+    @Override
+    public CompletableFuture<Void> setVisibleToPatient(String docId, boolean visible) {
+        return stages.observeAsync("metadata.setVisibleToPatient", () -> delegate.setVisibleToPatient(docId, visible));
+    }
+
+    @Override
+    public CompletableFuture<List<FileMetadata>> queryFiles(FileQuery query, FileCursor after, int limit) {
+        return stages.observeAsync("metadata.queryFiles", () -> delegate.queryFiles(query, after, limit));
+    }
+
+    @Override
+    public void forEachFile(Consumer<FileMetadata> action) throws Exception {
+        stages.observe("metadata.forEachFile", () -> {
+            delegate.forEachFile(action);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<KeyEncryptionKey>> keksOf(String ownerUid) {
+        return stages.observeAsync("metadata.keksOf", () -> delegate.keksOf(ownerUid));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addKek(KeyEncryptionKey kek) {
+        return stages.observeAsync("metadata.addKek", () -> delegate.addKek(kek));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> patientsOf(String doctorUid) {
+        return stages.observeAsync("metadata.patientsOf", () -> delegate.patientsOf(doctorUid));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<String>>> allAssignments() {
+        return stages.observeAsync("metadata.allAssignments", delegate::allAssignments);
+    }
+
+    @Override
+    public CompletableFuture<Void> assignPatient(String doctorUid, String patientUid) {
+        return stages.observeAsync("metadata.assignPatient", () -> delegate.assignPatient(doctorUid, patientUid));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Conversation>> findConversation(String conversationId) {
+        return stages.observeAsync("metadata.findConversation", () -> delegate.findConversation(conversationId));
+    }
+
+    @Override
+    public CompletableFuture<List<Conversation>> conversationsOf(String uid, MessageCursor after, int limit) {
+        return stages.observeAsync("metadata.conversationsOf", () -> delegate.conversationsOf(uid, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<Message>> messages(String conversationId, MessageCursor after, boolean ascending, int limit) {
+        return stages.observeAsync("metadata.messages", () -> delegate.messages(conversationId, after, ascending, limit));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Message>> findMessage(String conversationId, String messageId) {
+        return stages.observeAsync("metadata.findMessage", () -> delegate.findMessage(conversationId, messageId));
+    }
+
+    @Override
+    public CompletableFuture<Void> commitMessages(MessageCommit commit) {
+        return stages.observeAsync("metadata.commitMessages", () -> delegate.commitMessages(commit));
+    }
+
+    @Override
+    public CompletableFuture<Void> markRead(String conversationId, String uid) {
+        return stages.observeAsync("metadata.markRead", () -> delegate.markRead(conversationId, uid));
+    }
+
+    @Override
+    public void addFileListener(Consumer<FileMetadata> onChange, Runnable onFeedError) {
+        delegate.addFileListener(onChange, onFeedError);
+    }
+
+    @Override
+    public void addConversationListener(Consumer<Conversation> onChange) {
+        delegate.addConversationListener(onChange);
+    }
+
+    @Override
+    public void addAssignmentListener(BiConsumer<String, List<String>> onChange) {
+        delegate.addAssignmentListener(onChange);
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.digitallocker.observability;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.ContextPropagatingTaskDecorator;
+
+@Configuration
+public class ObservabilityConfig {
+
+    // Applied by Boot to the application task executor, so streamed downloads (StreamingResponseBody runs on it)
+    // keep the request's trace and their decrypt and blob stages appear under the request span
+    @Bean
+    public ContextPropagatingTaskDecorator contextPropagatingTaskDecorator() {
+        return new ContextPropagatingTaskDecorator();
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.digitallocker.observability;
+
+import io.micrometer.common.KeyValue;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ One observation per stage of a request: token verification, each metadata store call, blob reads and
+ writes, key unwrap and the encrypt/decrypt passes. Each observation is
+   - a "locker.stage" timer tagged stage=<name> (plus error), with a histogram for Prometheus
+   - a "locker.stage.active" long task timer, i.e. the stage's in-flight count
+   - a span, child of whatever is current (normally the HTTP request), so one trace shows every stage
+ Stages are observed per operation, never per segment or buffer. Tag values are created once per stage
+ name, and with a no-op registry (benchmarks, tests) the work runs directly without any observation.
+
+ Work that is interleaved with other stages, like streaming encryption between blob reads and socket
+ writes, can't be wrapped without timing that I/O too. It is measured by the caller instead and only
+ recorded into the same "locker.stage" timer (record), without a span.
+
+ Byte counters live here too, so stages that move data report it under one name: "locker.bytes" tagged
+ stage=<name>.
+ */
+@Component
+public class Stages {
+
+    public static final String NAME = "locker.stage";
+
+    // Stages that don't report anywhere, for code constructed outside the application context
+    public static final Stages NOOP = new Stages(ObservationRegistry.NOOP, new CompositeMeterRegistry());
+
+    @FunctionalInterface
+    public interface StageCall<T> {
+        T call() throws Exception;
+    }
+
+    private final ObservationRegistry observationRegistry;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, KeyValue> stageTags = new ConcurrentHashMap<>();
+    private final Map<String, Counter> byteCounters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> recordedTimers = new ConcurrentHashMap<>();
+
+    @Autowired
+    public Stages(ObservationRegistry observationRegistry, MeterRegistry meterRegistry) {
+        this.observationRegistry = observationRegistry;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public <T> T observe(String stage, StageCall<T> call) throws Exception {
+        if (observationRegistry.isNoop()) {
+            return call.call();
+        }
+        Observation observation = start(stage);
+        try (Observation.Scope scope = observation.openScope()) {
+            return call.call();
+        } catch (Exception | Error e) {
+            observation.error(e);
+            throw e;
+        } finally {
+            observation.stop();
+        }
+    }
+
+    // Observes an asynchronous call from the moment it's made until its future completes
+    public <T> CompletableFuture<T> observeAsync(String stage, Supplier<CompletableFuture<T>> call) {
+        if (observationRegistry.isNoop()) {
+            return call.get();
+        }
+        Observation observation = start(stage);
+        CompletableFuture<T> future;
+        try (Observation.Scope scope = observation.openScope()) {
+            future = call.get();
+        } catch (RuntimeException | Error e) {
+            observation.error(e);
+            observation.stop();
+            throw e;
+        }
+        return future.whenComplete((result, error) -> {
+            if (error != null) {
+                observation.error(error);
+            }
+            observation.stop();
+        });
+    }
+
+    // A started observation for work that ends elsewhere (e.g. when a stream is closed); the caller stops it
+    public Observation start(String stage) {
+        return Observation.createNotStarted(NAME, observationRegistry)
+                .lowCardinalityKeyValue(stageTags.computeIfAbsent(stage, name -> KeyValue.of("stage", name)))
+                .start();
+    }
+
+    // Adds time measured by the caller to the stage's timer; tagged like an observation that ended without error
+    public void record(String stage, long nanos) {
+        recordedTimers.computeIfAbsent(stage, name -> Timer.builder(NAME)
+                        .tag("stage", name)
+                        .tag("error", "none")
+                        .register(meterRegistry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void countBytes(String stage, long bytes) {
+        if (bytes > 0) {
+            byteCounters.computeIfAbsent(stage, name -> Counter.builder("locker.bytes")
+                            .tag("stage", name)
+                            .baseUnit("bytes")
+                            .register(meterRegistry))
+                    .increment(bytes);
+        }
+    }
+}
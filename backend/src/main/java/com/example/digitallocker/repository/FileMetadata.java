@@ -0,0 +1,103 @@
+package com.example.digitallocker.repository;
+
+import com.example.digitallocker.service.EncryptionService;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ Typed view of a file_metadata document. Missing optional fields get the same defaults the
+ controllers always applied: visible to the patient, single-shot encryption (version 1), file key
+ wrapped with the master RSA key (keyScheme rsa-oaep; aes-kw keys are wrapped with kekVersion of the
+ owner's key-encryption key, see KeyHierarchy). contentHash
+ (EncryptionService.contentHash) is only set on files uploaded with deduplication on.
+
+ Files compressed before encryption carry their codec (ContentCodec) and originalSize; their plaintextSize
+ is the length of the encrypted, compressed bytes.
+ */
+public record FileMetadata(
+        String docId,
+        String ownerUid,
+        String originalFilename,
+        String storagePath,
+        String wrappedAesKey,
+        String iv,
+        int encryptionVersion,
+        Integer segmentSize,
+        Long plaintextSize,
+        String contentHash,
+        String codec,
+        Long originalSize,
+        String keyScheme,
+        Integer kekVersion,
+        Timestamp createdAt,
+        boolean visibleToPatient,
+        Boolean visibleToDoctor,
+        List<String> allowedDoctorUids,
+        List<String> sharedWith) {
+
+    @SuppressWarnings("unchecked")
+    public static FileMetadata fromSnapshot(DocumentSnapshot doc) {
+        Long version = doc.getLong("encryptionVersion");
+        Long segmentSize = doc.getLong("segmentSize");
+        String keyScheme = doc.getString("keyScheme");
+        Long kekVersion = doc.getLong("kekVersion");
+        Boolean isVisibleToPatient = doc.getBoolean("isVisibleToPatient");
+        Object allowedDoctorUids = doc.get("allowedDoctorUids");
+        Object sharedWith = doc.get("sharedWith");
+        return new FileMetadata(
+                doc.getId(),
+                doc.getString("ownerUid"),
+                doc.getString("originalFilename"),
+                doc.getString("storagePath"),
+                doc.getString("wrappedAesKey"),
+                doc.getString("iv"),
+                version != null ? version.intValue() : EncryptionService.VERSION_SINGLE_SHOT,
+                segmentSize != null ? segmentSize.intValue() : null,
+                doc.getLong("plaintextSize"),
+                doc.getString("contentHash"),
+                doc.getString("codec"),
+                doc.getLong("originalSize"),
+                keyScheme != null ? keyScheme : EncryptionService.KEY_SCHEME_RSA,
+                kekVersion != null ? kekVersion.intValue() : null,
+                doc.getTimestamp("createdAt"),
+                isVisibleToPatient != null ? isVisibleToPatient : true,
+                doc.getBoolean("isVisibleToDoctor"),
+                allowedDoctorUids instanceof List ? (List<String>) allowedDoctorUids : List.of(),
+                sharedWith instanceof List ? (List<String>) sharedWith : List.of());
+    }
+
+    // Document fields as written on upload (sharing and doctor lists are maintained by later updates)
+    public Map<String, Object> toFirestore() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("ownerUid", ownerUid);
+        metadata.put("originalFilename", originalFilename);
+        metadata.put("storagePath", storagePath);
+        metadata.put("wrappedAesKey", wrappedAesKey);
+        metadata.put("encryptionVersion", encryptionVersion);
+        metadata.put("iv", iv);
+        metadata.put("keyScheme", keyScheme);
+        if (kekVersion != null) {
+            metadata.put("kekVersion", kekVersion);
+        }
+        if (segmentSize != null) {
+            metadata.put("segmentSize", segmentSize);
+        }
+        if (plaintextSize != null) {
+            metadata.put("plaintextSize", plaintextSize);
+        }
+        if (contentHash != null) {
+            metadata.put("contentHash", contentHash);
+        }
+        if (codec != null) {
+            metadata.put("codec", codec);
+            metadata.put("originalSize", originalSize);
+        }
+        metadata.put("createdAt", createdAt);
+        metadata.put("isVisibleToPatient", visibleToPatient);
+        return metadata;
+    }
+}
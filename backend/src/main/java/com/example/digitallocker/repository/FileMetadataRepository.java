@@ -0,0 +1,122 @@
+package com.example.digitallocker.repository;
+
+import com.example.digitallocker.metadata.MetadataStore;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/*
+ Single access point for file metadata, with a read-through cache so download authorization doesn't
+ pay a MetadataStore round trip for recently used documents.
+
+ Consistency:
+   - writes made through this repository update or invalidate the local cache immediately
+     (write-through)
+   - writes made by other nodes arrive through the store's file change feed and invalidate the entry
+   - entries also expire after a TTL, which bounds staleness if the change feed is disabled (and is
+     the only bound for files deleted by other nodes, since the feed doesn't carry deletions)
+ The same change feed is offered to other in-memory views of file metadata (see addChangeListener).
+ */
+@Repository
+public class FileMetadataRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(FileMetadataRepository.class);
+
+    private final MetadataStore store;
+    private final boolean cacheEnabled;
+    private final Cache<String, FileMetadata> cache;
+    private final List<Consumer<FileMetadata>> changeListeners = new CopyOnWriteArrayList<>();
+
+    public FileMetadataRepository(MetadataStore store,
+                                  @Value("${locker.metadata.cache.enabled:true}") boolean cacheEnabled,
+                                  @Value("${locker.metadata.cache.max-size:10000}") long maxSize,
+                                  @Value("${locker.metadata.cache.ttl:5m}") Duration ttl,
+                                  MeterRegistry meterRegistry) {
+        this.store = store;
+        this.cacheEnabled = cacheEnabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "locker.metadata");
+        store.addFileListener(this::onChange, () -> {
+            log.warn("File change feed failed, clearing metadata cache");
+            cache.invalidateAll();
+        });
+    }
+
+    public Optional<FileMetadata> findById(String docId) throws ExecutionException, InterruptedException {
+        if (cacheEnabled) {
+            FileMetadata cached = cache.getIfPresent(docId);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+        }
+        Optional<FileMetadata> metadata = store.findFile(docId).get();
+        if (cacheEnabled) {
+            metadata.ifPresent(file -> cache.put(docId, file));
+        }
+        return metadata;
+    }
+
+    public void create(FileMetadata metadata, boolean reusesBlob) throws ExecutionException, InterruptedException {
+        createAll(List.of(metadata), reusesBlob ? Set.of(metadata.storagePath()) : Set.of());
+    }
+
+    // Creates all documents in one atomic write (callers keep batches within the store's 250-document limit).
+    // reusedBlobs are the storage paths of deduplicated files, which point at an existing blob.
+    public void createAll(List<FileMetadata> metadata, Set<String> reusedBlobs) throws ExecutionException, InterruptedException {
+        store.createFiles(metadata, reusedBlobs).get();
+        if (cacheEnabled) {
+            metadata.forEach(file -> cache.put(file.docId(), file));
+        }
+    }
+
+    // Not cached: the match is only a candidate for deduplication, and the caller reads it once
+    public Optional<FileMetadata> findByContent(String ownerUid, String contentHash) throws ExecutionException, InterruptedException {
+        return store.findFileByContent(ownerUid, contentHash).get();
+    }
+
+    // Returns true when the file held the last reference to its blob, which the caller must then delete
+    public boolean delete(String docId) throws ExecutionException, InterruptedException {
+        try {
+            return store.deleteFile(docId).get();
+        } finally {
+            cache.invalidate(docId);
+        }
+    }
+
+    public void setVisibleToPatient(String docId, boolean isVisible) throws ExecutionException, InterruptedException {
+        store.setVisibleToPatient(docId, isVisible).get();
+        cache.invalidate(docId);
+    }
+
+    // For writes made through the MetadataStore directly (e.g. a share committed with its message)
+    public void evict(String docId) {
+        cache.invalidate(docId);
+    }
+
+    // Called with every added or modified document seen by the change feed, including writes made by other nodes
+    public void addChangeListener(Consumer<FileMetadata> changeListener) {
+        changeListeners.add(changeListener);
+    }
+
+    private void onChange(FileMetadata metadata) {
+        cache.invalidate(metadata.docId());
+        changeListeners.forEach(changeListener -> changeListener.accept(metadata));
+    }
+}
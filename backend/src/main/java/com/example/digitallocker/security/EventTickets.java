@@ -0,0 +1,44 @@
+package com.example.digitallocker.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+
+/*
+ Single-use tickets for opening the event stream. EventSource can't send an Authorization header, and a
+ Firebase ID token in the query string would end up in access and proxy logs for as long as it is valid.
+ So the client trades its ID token (sent as a header) for a random ticket, and passes that as ?ticket=
+ instead. A ticket is good for one connection and expires after `ttl` whether it was used or not.
+ */
+@Component
+public class EventTickets {
+
+    private final SecureRandom random = new SecureRandom();
+    private final Cache<String, FirebasePrincipal> tickets;
+
+    public EventTickets(@Value("${locker.events.ticket.ttl:30s}") Duration ttl,
+                        @Value("${locker.events.ticket.max-size:100000}") long maxSize) {
+        this.tickets = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .build();
+    }
+
+    public String issue(FirebasePrincipal principal) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        String ticket = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tickets.put(ticket, principal);
+        return ticket;
+    }
+
+    // The principal the ticket was issued to, or null if it is unknown, expired or already used
+    public FirebasePrincipal redeem(String ticket) {
+        return tickets.asMap().remove(ticket);
+    }
+}
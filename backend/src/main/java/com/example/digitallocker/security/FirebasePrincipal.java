@@ -0,0 +1,11 @@
+package com.example.digitallocker.security;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.time.Instant;
+import java.util.List;
+
+// What the filter needs from a verified Firebase ID token: who the caller is, their role and when the token was
+// issued and expires
+public record FirebasePrincipal(String uid, String role, List<GrantedAuthority> authorities, Instant issuedAt,
+                                Instant expiresAt) {}
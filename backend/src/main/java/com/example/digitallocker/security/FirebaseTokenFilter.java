@@ -6,54 +6,68 @@ import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 
 @Component
 public class FirebaseTokenFilter extends OncePerRequestFilter {
 
+    private static final Logger log = LoggerFactory.getLogger(FirebaseTokenFilter.class);
+    // EventSource can't send an Authorization header, so the event stream authenticates with a ?ticket= (see EventTickets)
+    private static final String EVENTS_PATH = "/api/events";
+
+    private final VerifiedTokenCache tokenCache;
+    private final EventTickets eventTickets;
+
+    public FirebaseTokenFilter(VerifiedTokenCache tokenCache, EventTickets eventTickets) {
+        this.tokenCache = tokenCache;
+        this.eventTickets = eventTickets;
+    }
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
 
         String authHeader = request.getHeader("Authorization");
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+        String idToken;
+        if (authHeader != null && authHeader.startsWith("Bearer ")) {
+            idToken = authHeader.substring(7);
+        } else if (EVENTS_PATH.equals(request.getServletPath()) && request.getParameter("ticket") != null) {
+            FirebasePrincipal principal = eventTickets.redeem(request.getParameter("ticket"));
+            if (principal == null) {
+                log.warn("Rejected event stream ticket for {}", request.getRequestURI());
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid or expired ticket");
+                return;
+            }
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken(principal.uid(), null, principal.authorities()));
+            filterChain.doFilter(request, response);
+            return;
+        } else {
             filterChain.doFilter(request, response);
             return;
         }
 
         try {
-            String idToken = authHeader.substring(7);
-            FirebaseToken decodedToken = FirebaseAuth.getInstance().verifyIdToken(idToken);
-
-            // --- START DEBUGGING LINES TO ADD ---
-            System.out.println("=========================================");
-            System.out.println("FIREBASE TOKEN FILTER DEBUG");
-            System.out.println("UID: " + decodedToken.getUid());
-            System.out.println("Claims: " + decodedToken.getClaims());
-            System.out.println("=========================================");
-            // --- END DEBUGGING LINES ---
-
-            String uid = decodedToken.getUid();
-            Map<String, Object> claims = decodedToken.getClaims();
-            String role = (String) claims.get("role");
-
-            // IMPORTANT: Add "ROLE_" prefix for Spring Security
-            // If role is null, this will cause an error, which is what we want to see
-            var authorities = List.of(new SimpleGrantedAuthority("ROLE_" + role));
-
-            UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(uid, null, authorities);
+            FirebasePrincipal principal = tokenCache.get(idToken, this::verify);
+
+            UsernamePasswordAuthenticationToken authentication =
+                    new UsernamePasswordAuthenticationToken(principal.uid(), null, principal.authorities());
             SecurityContextHolder.getContext().setAuthentication(authentication);
 
         } catch (Exception e) {
-            System.err.println("Error in FirebaseTokenFilter: " + e.getMessage());
+            log.warn("Rejected Firebase token for {} {}: {}", request.getMethod(), request.getRequestURI(), e.getMessage());
             SecurityContextHolder.clearContext();
             response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Invalid Firebase Token");
             return;
@@ -61,4 +75,24 @@ public class FirebaseTokenFilter extends OncePerRequestFilter {
 
         filterChain.doFilter(request, response);
     }
-}
\ No newline at end of file
+
+    // Full verification against Firebase, including revocation (see VerifiedTokenCache); only runs when the
+    // token isn't in the cache
+    private FirebasePrincipal verify(String idToken) throws Exception {
+        FirebaseToken decodedToken = FirebaseAuth.getInstance().verifyIdToken(idToken, true);
+
+        String uid = decodedToken.getUid();
+        Map<String, Object> claims = decodedToken.getClaims();
+        String role = (String) claims.get("role");
+        log.debug("Verified Firebase token uid={} role={}", uid, role);
+
+        // IMPORTANT: Add "ROLE_" prefix for Spring Security
+        List<GrantedAuthority> authorities = List.of(new SimpleGrantedAuthority("ROLE_" + role));
+
+        return new FirebasePrincipal(uid, role, authorities, epochSeconds(claims.get("iat")), epochSeconds(claims.get("exp")));
+    }
+
+    private static Instant epochSeconds(Object claim) {
+        return claim instanceof Number seconds ? Instant.ofEpochSecond(seconds.longValue()) : null;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.digitallocker.security;
+
+import com.example.digitallocker.observability.Stages;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.Map;
+
+/*
+ Cache of verified Firebase ID tokens, so a burst of API calls with the same bearer token pays for
+ signature verification once. Entries are keyed by a SHA-256 of the token (the raw token is never kept)
+ and expire at the token's "exp" claim, or after `max-ttl` if that comes first.
+
+ Role changes revoke the user's tokens (AdminController.setRole), and the verifier checks revocation with
+ Firebase on every miss. On the node that made the change, claimsChanged drops the user's cached tokens
+ right away and refuses tokens issued before the change, also from verifications that were already in
+ flight. Other nodes serve a cached token until it is due for re-verification, so `max-ttl` bounds how
+ long a revoked token keeps working there.
+
+ Published metrics: "locker.tokens" cache metrics (hits, misses, evictions, size). Verifications that
+ actually hit Firebase are observed as the auth.verify stage (see Stages).
+ */
+@Component
+public class VerifiedTokenCache {
+
+    @FunctionalInterface
+    public interface TokenVerifier {
+        FirebasePrincipal verify(String idToken) throws Exception;
+    }
+
+    private final boolean enabled;
+    private final Duration maxTtl;
+    private final Cache<String, FirebasePrincipal> cache;
+    // uid -> when its claims last changed; kept for an hour, the longest a Firebase ID token is valid
+    private final Map<String, Instant> claimsChangedAt = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofHours(1))
+            .<String, Instant>build()
+            .asMap();
+    private final Stages stages;
+
+    public VerifiedTokenCache(@Value("${locker.auth.token-cache.enabled:true}") boolean enabled,
+                              @Value("${locker.auth.token-cache.max-size:10000}") long maxSize,
+                              @Value("${locker.auth.token-cache.max-ttl:1m}") Duration maxTtl,
+                              MeterRegistry meterRegistry,
+                              Stages stages) {
+        this.enabled = enabled;
+        this.maxTtl = maxTtl;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<String, FirebasePrincipal>() {
+                    @Override
+                    public long expireAfterCreate(String key, FirebasePrincipal principal, long currentTime) {
+                        return remainingNanos(principal);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, FirebasePrincipal principal, long currentTime, long currentDuration) {
+                        return remainingNanos(principal);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, FirebasePrincipal principal, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        this.stages = stages;
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "locker.tokens");
+    }
+
+    // Returns the principal for this token, verifying it with Firebase only when it isn't cached yet
+    public FirebasePrincipal get(String idToken, TokenVerifier verifier) throws Exception {
+        if (!enabled) {
+            return stages.observe("auth.verify", () -> verifier.verify(idToken));
+        }
+        String key = hash(idToken);
+        FirebasePrincipal cached = cache.getIfPresent(key);
+        if (cached != null && isCurrent(cached)) {
+            return cached;
+        }
+        FirebasePrincipal principal = stages.observe("auth.verify", () -> verifier.verify(idToken));
+        if (!isCurrent(principal)) {
+            cache.invalidate(key);
+            throw new IllegalStateException("Token of " + principal.uid() + " was issued before its claims changed");
+        }
+        if (principal.expiresAt() != null) {
+            cache.put(key, principal);
+            if (!isCurrent(principal)) {
+                cache.invalidate(key); // claimsChanged ran while this token was being verified
+            }
+        }
+        return principal;
+    }
+
+    // Revocation hook for a user whose claims just changed: drops their cached tokens and refuses any token
+    // issued before now
+    public void claimsChanged(String uid) {
+        claimsChangedAt.put(uid, Instant.now());
+        cache.asMap().values().removeIf(principal -> principal.uid().equals(uid));
+    }
+
+    // Whether the token was issued after the last claims change of its user (iat has whole seconds)
+    private boolean isCurrent(FirebasePrincipal principal) {
+        Instant changedAt = claimsChangedAt.get(principal.uid());
+        return changedAt == null
+                || (principal.issuedAt() != null && !principal.issuedAt().isBefore(changedAt.truncatedTo(ChronoUnit.SECONDS)));
+    }
+
+    private long remainingNanos(FirebasePrincipal principal) {
+        return Math.max(0, Math.min(maxTtl.toNanos(), Duration.between(Instant.now(), principal.expiresAt()).toNanos()));
+    }
+
+    private static String hash(String idToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(idToken.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.google.cloud.Timestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ In-memory index of who can access which file, so authorization and listing are local lookups
+ instead of MetadataStore queries. One rule for both paths:
+   - admin:   every file
+   - patient: files they own that are visible to patients
+   - doctor:  files of patients assigned to them ('assigned'), and files shared with them through
+              sharedWith or allowedDoctorUids ('shared')
+
+ The index is built from the MetadataStore at startup and on demand (rebuild), then maintained incrementally:
+   - locally from upload, assign-patient, share and visibility-toggle events
+   - from other nodes via the store's file and doctor assignment change feeds
+ Until the first build completes, decisions fall back to the same rule evaluated against the store.
+ */
+@Service
+public class AccessIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(AccessIndex.class);
+
+    // What the index keeps per file: just enough to answer access and ordering questions
+    public record IndexedDoc(String docId, String ownerUid, Timestamp createdAt, boolean visibleToPatient) {}
+
+    // A file the caller may access, and why ('admin', 'patient', 'assigned' or 'shared')
+    public record AccessibleDoc(IndexedDoc doc, String accessType) {}
+
+    private static final class State {
+        final Map<String, IndexedDoc> docs = new ConcurrentHashMap<>();
+        final Map<String, Set<String>> docsByOwner = new ConcurrentHashMap<>();
+        final Map<String, Set<String>> docsSharedWith = new ConcurrentHashMap<>();
+        final Map<String, Set<String>> patientsByDoctor = new ConcurrentHashMap<>();
+        // Reverse of patientsByDoctor, so finding a patient's doctors doesn't scan every doctor
+        final Map<String, Set<String>> doctorsByPatient = new ConcurrentHashMap<>();
+
+        void upsert(String docId, String ownerUid, Timestamp createdAt, boolean visibleToPatient, Collection<String> sharedWith) {
+            IndexedDoc previous = docs.put(docId, new IndexedDoc(docId, ownerUid, createdAt, visibleToPatient));
+            if (previous != null && !Objects.equals(previous.ownerUid(), ownerUid)) {
+                remove(docsByOwner, previous.ownerUid(), docId);
+            }
+            add(docsByOwner, ownerUid, docId);
+            for (String uid : sharedWith) {
+                add(docsSharedWith, uid, docId);
+            }
+        }
+
+        void delete(String docId) {
+            IndexedDoc previous = docs.remove(docId);
+            if (previous != null) {
+                remove(docsByOwner, previous.ownerUid(), docId);
+            }
+            docsSharedWith.values().forEach(docIds -> docIds.remove(docId));
+        }
+
+        void assign(String doctorUid, String patientUid) {
+            add(patientsByDoctor, doctorUid, patientUid);
+            add(doctorsByPatient, patientUid, doctorUid);
+        }
+
+        void setVisibleToPatient(String docId, boolean visible) {
+            docs.computeIfPresent(docId, (id, doc) -> new IndexedDoc(id, doc.ownerUid(), doc.createdAt(), visible));
+        }
+
+        static void add(Map<String, Set<String>> index, String key, String value) {
+            if (key != null) {
+                index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(value);
+            }
+        }
+
+        static void remove(Map<String, Set<String>> index, String key, String value) {
+            Set<String> values = index.get(key);
+            if (values != null) {
+                values.remove(value);
+            }
+        }
+    }
+
+    private final boolean enabled;
+    private final MetadataStore metadataStore;
+    private final FileMetadataRepository fileMetadataRepository;
+    // Events take the read lock (they run concurrently); swapping in a rebuilt state takes the write lock
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private volatile State state = new State();
+    private volatile boolean ready;
+    // Non-null while a rebuild runs: events are replayed onto the new state before it is swapped in.
+    // Only changed under the write lock.
+    private Queue<Consumer<State>> replay;
+
+    public AccessIndex(@Value("${locker.access-index.enabled:true}") boolean enabled,
+                       MetadataStore metadataStore,
+                       FileMetadataRepository fileMetadataRepository) {
+        this.enabled = enabled;
+        this.metadataStore = metadataStore;
+        this.fileMetadataRepository = fileMetadataRepository;
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    // ----------------------------
+    // Decisions
+    // ----------------------------
+
+    // Access type for this caller and file, or null if access is denied
+    public String accessType(String uid, String role, FileMetadata doc) throws ExecutionException, InterruptedException {
+        if (isReady()) {
+            return accessType(state, uid, role, doc.docId(), doc.ownerUid(), doc.visibleToPatient());
+        }
+        // Same rule, evaluated against the store while the index is unavailable
+        switch (role) {
+            case "ROLE_admin":
+                return "admin";
+            case "ROLE_patient":
+                return uid.equals(doc.ownerUid()) && doc.visibleToPatient() ? "patient" : null;
+            case "ROLE_doctor":
+                if (metadataStore.patientsOf(uid).get().contains(doc.ownerUid())) {
+                    return "assigned";
+                }
+                return doc.sharedWith().contains(uid) || doc.allowedDoctorUids().contains(uid) ? "shared" : null;
+            default:
+                return null;
+        }
+    }
+
+    // Every file the caller may access; only meaningful when isReady()
+    public List<AccessibleDoc> accessibleDocs(String uid, String role) {
+        State current = state;
+        List<AccessibleDoc> result = new ArrayList<>();
+        switch (role) {
+            case "ROLE_admin":
+                current.docs.values().forEach(doc -> result.add(new AccessibleDoc(doc, "admin")));
+                break;
+            case "ROLE_patient":
+                for (String docId : current.docsByOwner.getOrDefault(uid, Set.of())) {
+                    IndexedDoc doc = current.docs.get(docId);
+                    if (doc != null && doc.visibleToPatient()) {
+                        result.add(new AccessibleDoc(doc, "patient"));
+                    }
+                }
+                break;
+            case "ROLE_doctor":
+                Set<String> seen = new HashSet<>();
+                for (String patientUid : current.patientsByDoctor.getOrDefault(uid, Set.of())) {
+                    for (String docId : current.docsByOwner.getOrDefault(patientUid, Set.of())) {
+                        IndexedDoc doc = current.docs.get(docId);
+                        if (doc != null && seen.add(docId)) {
+                            result.add(new AccessibleDoc(doc, "assigned"));
+                        }
+                    }
+                }
+                for (String docId : current.docsSharedWith.getOrDefault(uid, Set.of())) {
+                    IndexedDoc doc = current.docs.get(docId);
+                    if (doc != null && seen.add(docId)) {
+                        result.add(new AccessibleDoc(doc, "shared"));
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return result;
+    }
+
+    // Doctors the patient is assigned to; only meaningful when isReady()
+    public List<String> doctorsAssignedTo(String patientUid) {
+        return List.copyOf(state.doctorsByPatient.getOrDefault(patientUid, Set.of()));
+    }
+
+    private static String accessType(State state, String uid, String role, String docId, String ownerUid, boolean visibleToPatient) {
+        switch (role) {
+            case "ROLE_admin":
+                return "admin";
+            case "ROLE_patient":
+                return uid.equals(ownerUid) && visibleToPatient ? "patient" : null;
+            case "ROLE_doctor":
+                if (state.patientsByDoctor.getOrDefault(uid, Set.of()).contains(ownerUid)) {
+                    return "assigned";
+                }
+                return state.docsSharedWith.getOrDefault(uid, Set.of()).contains(docId) ? "shared" : null;
+            default:
+                return null;
+        }
+    }
+
+    // ----------------------------
+    // Incremental maintenance
+    // ----------------------------
+
+    public void onFileUpserted(FileMetadata doc) {
+        List<String> sharedWith = new ArrayList<>(doc.sharedWith());
+        sharedWith.addAll(doc.allowedDoctorUids());
+        apply(state -> state.upsert(doc.docId(), doc.ownerUid(), doc.createdAt(), doc.visibleToPatient(), sharedWith));
+    }
+
+    // Deletions through this node only; elsewhere the listing skips the missing document until the next rebuild
+    public void onFileDeleted(String docId) {
+        apply(state -> state.delete(docId));
+    }
+
+    public void onVisibilityChanged(String docId, boolean visibleToPatient) {
+        apply(state -> state.setVisibleToPatient(docId, visibleToPatient));
+    }
+
+    public void onShared(String docId, String uid) {
+        apply(state -> State.add(state.docsSharedWith, uid, docId));
+    }
+
+    public void onPatientAssigned(String doctorUid, String patientUid) {
+        apply(state -> state.assign(doctorUid, patientUid));
+    }
+
+    private void apply(Consumer<State> event) {
+        swapLock.readLock().lock();
+        try {
+            Queue<Consumer<State>> pending = replay;
+            if (pending != null) {
+                pending.add(event);
+            }
+            event.accept(state);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    // ----------------------------
+    // Build and recovery
+    // ----------------------------
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        fileMetadataRepository.addChangeListener(this::onFileUpserted);
+        metadataStore.addAssignmentListener((doctorUid, patientUids) ->
+                patientUids.forEach(patientUid -> onPatientAssigned(doctorUid, patientUid)));
+        Thread.ofVirtual().name("access-index-build").start(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("Initial access index build failed; authorization falls back to the metadata store", e);
+            }
+        });
+    }
+
+    // Recovery: rebuilds the whole index from the store without blocking readers, then swaps it in
+    public synchronized Map<String, Integer> rebuild() throws Exception {
+        swapLock.writeLock().lock();
+        try {
+            replay = new ConcurrentLinkedQueue<>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+
+        State rebuilt = new State();
+        try {
+            metadataStore.allAssignments().get().forEach((doctorUid, patientUids) ->
+                    patientUids.forEach(patientUid -> rebuilt.assign(doctorUid, patientUid)));
+
+            metadataStore.forEachFile(metadata -> {
+                List<String> sharedWith = new ArrayList<>(metadata.sharedWith());
+                sharedWith.addAll(metadata.allowedDoctorUids());
+                rebuilt.upsert(metadata.docId(), metadata.ownerUid(), metadata.createdAt(), metadata.visibleToPatient(), sharedWith);
+            });
+        } catch (Exception e) {
+            swapLock.writeLock().lock();
+            try {
+                replay = null;
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            throw e;
+        }
+
+        swapLock.writeLock().lock();
+        try {
+            replay.forEach(event -> event.accept(rebuilt));
+            replay = null;
+            state = rebuilt;
+            ready = true;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+
+        log.info("Access index built: {} files, {} doctors", rebuilt.docs.size(), rebuilt.patientsByDoctor.size());
+        return Map.of("files", rebuilt.docs.size(), "doctors", rebuilt.patientsByDoctor.size());
+    }
+}
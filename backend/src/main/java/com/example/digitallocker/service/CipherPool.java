@@ -0,0 +1,40 @@
+package com.example.digitallocker.service;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ Keeps a bounded set of idle Cipher instances for one transformation, so the provider lookup in
+ Cipher.getInstance stays off the hot path. A Cipher is only ever used by one caller at a time and is
+ always re-initialized by that caller, so no state leaks between uses. When the pool is empty a new
+ instance is created; when it is full the returned instance is simply dropped.
+ */
+public final class CipherPool {
+
+    @FunctionalInterface
+    public interface CipherFunction<T> {
+        T apply(Cipher cipher) throws GeneralSecurityException;
+    }
+
+    private final String transformation;
+    private final BlockingQueue<Cipher> idle;
+
+    public CipherPool(String transformation, int maxIdle) {
+        this.transformation = transformation;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    public <T> T apply(CipherFunction<T> function) throws GeneralSecurityException {
+        Cipher cipher = idle.poll();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+        }
+        try {
+            return function.apply(cipher);
+        } finally {
+            idle.offer(cipher);
+        }
+    }
+}
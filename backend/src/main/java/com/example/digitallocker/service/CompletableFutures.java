@@ -0,0 +1,37 @@
+package com.example.digitallocker.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.CompletableFuture;
+
+// Bridges the Firestore/Storage ApiFutures into CompletableFutures, so request handling can compose them without blocking a thread
+public final class CompletableFutures {
+
+    private CompletableFutures() {
+    }
+
+    public static <T> CompletableFuture<T> toCompletable(ApiFuture<T> apiFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        ApiFutures.addCallback(apiFuture, new ApiFutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        // Cancelling the composed request (e.g. on async timeout) cancels the RPC as well
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                apiFuture.cancel(true);
+            }
+        });
+        return future;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.digitallocker.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/*
+ Optional compression applied to uploads before they are encrypted (ciphertext doesn't compress, so this
+ is the only point where it can help). The codec is recorded per file in file_metadata ("codec", absent
+ for files stored as uploaded) and undone transparently on download.
+
+ Which uploads are compressed:
+   - never types that are compressed already (images, audio/video, archives, Office containers), judged
+     by content type and file extension, so no CPU is spent on them
+   - with `skip-ranged` (the default), never PDF or DICOM: a compressed file is always downloaded whole,
+     because file offsets don't map to encrypted segments, and viewers of these formats seek with Range
+     requests. Text reports and HL7/FHIR JSON, which are read front to back, still compress
+   - otherwise, when deflating a sample of `probe-size` bytes from the start of the file saves at least
+     `min-savings` of it (text reports and HL7/FHIR JSON typically do)
+
+ Only deflate is offered: it ships with the JDK, and at low levels it keeps up with the encryption stage.
+ Metrics: locker.upload.compression{result=compressed|skipped-type|skipped-ranged|skipped-probe} and
+ locker.upload.compression.bytes.saved.
+ */
+@Component
+public class ContentCodec {
+
+    public static final String DEFLATE = "deflate";
+
+    private static final Set<String> COMPRESSED_TYPE_PREFIXES = Set.of("image/", "video/", "audio/");
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-bzip2", "application/x-xz",
+            "application/zstd", "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation");
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif", "jp2", "mp3", "mp4", "m4a", "mov", "webm",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "docx", "xlsx", "pptx");
+    private static final Set<String> RANGED_TYPES = Set.of("application/pdf", "application/dicom");
+    private static final Set<String> RANGED_EXTENSIONS = Set.of("pdf", "dcm");
+
+    private final boolean enabled;
+    private final int level;
+    private final int probeSize;
+    private final double minSavings;
+    private final boolean skipRanged;
+    private final Counter compressed;
+    private final Counter skippedByType;
+    private final Counter skippedRanged;
+    private final Counter skippedByProbe;
+    private final Counter bytesSaved;
+
+    public ContentCodec(@Value("${locker.upload.compression.enabled:true}") boolean enabled,
+                        @Value("${locker.upload.compression.level:3}") int level,
+                        @Value("${locker.upload.compression.probe-size:64KB}") DataSize probeSize,
+                        @Value("${locker.upload.compression.min-savings:0.1}") double minSavings,
+                        @Value("${locker.upload.compression.skip-ranged:true}") boolean skipRanged,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.level = level;
+        this.probeSize = (int) probeSize.toBytes();
+        this.minSavings = minSavings;
+        this.skipRanged = skipRanged;
+        this.compressed = meterRegistry.counter("locker.upload.compression", "result", "compressed");
+        this.skippedByType = meterRegistry.counter("locker.upload.compression", "result", "skipped-type");
+        this.skippedRanged = meterRegistry.counter("locker.upload.compression", "result", "skipped-ranged");
+        this.skippedByProbe = meterRegistry.counter("locker.upload.compression", "result", "skipped-probe");
+        this.bytesSaved = meterRegistry.counter("locker.upload.compression.bytes.saved");
+    }
+
+    // The codec to store this upload with, or null to store it as uploaded. Reads the probe sample from the file.
+    public String choose(MultipartFile file) throws IOException {
+        if (!enabled) {
+            return null;
+        }
+        if (isCompressedType(file.getContentType(), file.getOriginalFilename())) {
+            skippedByType.increment();
+            return null;
+        }
+        if (skipRanged && isRangedType(file.getContentType(), file.getOriginalFilename())) {
+            skippedRanged.increment();
+            return null;
+        }
+        byte[] sample;
+        try (InputStream in = file.getInputStream()) {
+            sample = in.readNBytes(probeSize);
+        }
+        if (sample.length == 0 || deflatedLength(sample) > sample.length * (1 - minSavings)) {
+            skippedByProbe.increment();
+            return null;
+        }
+        compressed.increment();
+        return DEFLATE;
+    }
+
+    // The bytes to encrypt: the upload encoded with the codec (null for as-is)
+    public InputStream encode(String codec, InputStream in) {
+        if (codec == null) {
+            return in;
+        }
+        requireKnown(codec);
+        return new DeflaterInputStream(in, new Deflater(level), 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end(); // a Deflater passed in isn't ended by the stream
+                }
+            }
+        };
+    }
+
+    // Called after a compressed upload is stored, with its original and stored sizes
+    public void recordSavings(long originalSize, long storedSize) {
+        bytesSaved.increment(Math.max(0, originalSize - storedSize));
+    }
+
+    /*
+     Where to write the decrypted bytes of a file stored with this codec, so that `out` receives the file as
+     uploaded. Call finish() on the result when done, and end() in a finally block, also when decryption
+     fails; neither closes `out`.
+     */
+    public static OutputStream decode(String codec, OutputStream out) {
+        if (codec == null) {
+            return out;
+        }
+        requireKnown(codec);
+        return new Inflating(out);
+    }
+
+    // Flushes what decode() still holds
+    public static void finish(OutputStream decoded) throws IOException {
+        if (decoded instanceof Inflating inflating) {
+            inflating.finish();
+        }
+    }
+
+    // Frees the native memory of what decode() returned; safe to call more than once
+    public static void end(OutputStream decoded) {
+        if (decoded instanceof Inflating inflating) {
+            inflating.end();
+        }
+    }
+
+    private static final class Inflating extends InflaterOutputStream {
+
+        Inflating(OutputStream out) {
+            super(out, new Inflater(), 64 * 1024);
+        }
+
+        void end() {
+            inf.end(); // an Inflater passed in isn't ended by the stream
+        }
+    }
+
+    static boolean isCompressedType(String contentType, String filename) {
+        String type = mediaType(contentType);
+        // SVG is the one text format among the image types
+        if (type != null && (COMPRESSED_TYPES.contains(type)
+                || (COMPRESSED_TYPE_PREFIXES.stream().anyMatch(type::startsWith) && !type.equals("image/svg+xml")))) {
+            return true;
+        }
+        return COMPRESSED_EXTENSIONS.contains(extension(filename));
+    }
+
+    static boolean isRangedType(String contentType, String filename) {
+        return RANGED_TYPES.contains(mediaType(contentType)) || RANGED_EXTENSIONS.contains(extension(filename));
+    }
+
+    // The content type without parameters, lower-cased
+    private static String mediaType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        return parameters >= 0 ? type.substring(0, parameters).trim() : type;
+    }
+
+    private static String extension(String filename) {
+        if (filename == null || !filename.contains(".")) {
+            return "";
+        }
+        return filename.substring(filename.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private int deflatedLength(byte[] sample) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[sample.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(buffer);
+            }
+            return length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void requireKnown(String codec) {
+        if (!DEFLATE.equals(codec)) {
+            throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.digitallocker.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+
+/*
+ Bounded, TTL-expiring cache of unwrapped AES data keys, so repeat downloads of the same file skip the
+ RSA-OAEP private key operation. Entries are keyed by docId plus a SHA-256 of the wrapped key, so a
+ re-keyed document never hits a stale entry. Evicted or expired key material is zeroized.
+
+ Hit, miss and eviction counts are published as the "locker.datakeys" cache metrics.
+ */
+@Component
+public class DataKeyCache {
+
+    // Holds the raw key bytes; once destroyed it never hands out a key again
+    private static final class CachedKey {
+        private final byte[] keyBytes;
+        private boolean destroyed;
+
+        CachedKey(byte[] keyBytes) {
+            this.keyBytes = keyBytes;
+        }
+
+        synchronized SecretKey toSecretKey() {
+            return destroyed ? null : new SecretKeySpec(keyBytes, "AES"); // SecretKeySpec takes its own copy
+        }
+
+        synchronized void destroy() {
+            Arrays.fill(keyBytes, (byte) 0);
+            destroyed = true;
+        }
+    }
+
+    @FunctionalInterface
+    public interface KeyLoader {
+        SecretKey load() throws Exception;
+    }
+
+    private final boolean enabled;
+    private final Cache<String, CachedKey> cache;
+
+    public DataKeyCache(@Value("${locker.crypto.key-cache.enabled:true}") boolean enabled,
+                        @Value("${locker.crypto.key-cache.max-size:1000}") long maxSize,
+                        @Value("${locker.crypto.key-cache.ttl:10m}") Duration ttl,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                // Run the listener on the evicting thread so key bytes are wiped immediately
+                .executor(Runnable::run)
+                .removalListener((String key, CachedKey value, RemovalCause cause) -> {
+                    if (value != null) {
+                        value.destroy();
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "locker.datakeys");
+    }
+
+    // Returns the cached key for this document, or unwraps it with the loader and caches the result
+    public SecretKey get(String docId, String wrappedKeyBase64, KeyLoader loader) throws Exception {
+        if (!enabled) {
+            return loader.load();
+        }
+        String cacheKey = docId + ":" + fingerprint(wrappedKeyBase64);
+        SecretKey cached = toSecretKey(cache.getIfPresent(cacheKey));
+        if (cached != null) {
+            return cached;
+        }
+        SecretKey loaded = loader.load();
+        cache.put(cacheKey, new CachedKey(loaded.getEncoded()));
+        return loaded;
+    }
+
+    private static SecretKey toSecretKey(CachedKey entry) {
+        // The entry may have been evicted and wiped between lookup and use; that's just a miss
+        return entry != null ? entry.toSecretKey() : null;
+    }
+
+    private static String fingerprint(String wrappedKeyBase64) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(wrappedKeyBase64.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
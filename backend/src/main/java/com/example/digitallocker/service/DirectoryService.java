@@ -0,0 +1,157 @@
+package com.example.digitallocker.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.firebase.auth.AuthErrorCode;
+import com.google.firebase.auth.EmailIdentifier;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseAuthException;
+import com.google.firebase.auth.GetUsersResult;
+import com.google.firebase.auth.UserIdentifier;
+import com.google.firebase.auth.UserRecord;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+
+/*
+ Email -> uid (and role) resolution for upload, send, share and bulk assignment, cached so the same colleagues aren't
+ looked up in Firebase Auth on every request.
+   - known emails are cached for `ttl`; unknown emails are cached as misses for the shorter `negative-ttl`
+   - emails are compared case-insensitively, like Firebase Auth does
+   - createUser invalidates the email (dropping a cached miss), setRole invalidates the uid
+ Published metrics: "locker.directory" cache metrics (hits, misses, evictions, size).
+ */
+@Service
+public class DirectoryService {
+
+    // FirebaseAuth.getUsers accepts at most 100 identifiers per call
+    private static final int MAX_BATCH = 100;
+
+    public record DirectoryEntry(String uid, String email, String role) {}
+
+    private final boolean enabled;
+    private final Cache<String, Optional<DirectoryEntry>> cache;
+
+    public DirectoryService(@Value("${locker.directory.cache.enabled:true}") boolean enabled,
+                            @Value("${locker.directory.cache.max-size:10000}") long maxSize,
+                            @Value("${locker.directory.cache.ttl:10m}") Duration ttl,
+                            @Value("${locker.directory.cache.negative-ttl:1m}") Duration negativeTtl,
+                            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new Expiry<String, Optional<DirectoryEntry>>() {
+                    @Override
+                    public long expireAfterCreate(String email, Optional<DirectoryEntry> entry, long currentTime) {
+                        return (entry.isPresent() ? ttl : negativeTtl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String email, Optional<DirectoryEntry> entry, long currentTime, long currentDuration) {
+                        return (entry.isPresent() ? ttl : negativeTtl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String email, Optional<DirectoryEntry> entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "locker.directory");
+    }
+
+    // Looks up a user by email; empty if no such user exists
+    public Optional<DirectoryEntry> lookup(String email) throws FirebaseAuthException {
+        String key = normalize(email);
+        if (enabled) {
+            Optional<DirectoryEntry> cached = cache.getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Optional<DirectoryEntry> entry;
+        try {
+            entry = Optional.of(toEntry(FirebaseAuth.getInstance().getUserByEmail(key)));
+        } catch (FirebaseAuthException e) {
+            if (e.getAuthErrorCode() != AuthErrorCode.USER_NOT_FOUND) {
+                throw e;
+            }
+            entry = Optional.empty();
+        }
+        if (enabled) {
+            cache.put(key, entry);
+        }
+        return entry;
+    }
+
+    // The uid for an email, or IllegalArgumentException if nobody has that email
+    public String requireUid(String email) throws FirebaseAuthException {
+        return lookup(email)
+                .map(DirectoryEntry::uid)
+                .orElseThrow(() -> new IllegalArgumentException("No user with email " + email));
+    }
+
+    // Resolves many emails at once (bulk assignment): cached ones locally, the rest with FirebaseAuth.getUsers in
+    // chunks of 100. The result is keyed by normalized email and only contains emails that belong to a user.
+    public Map<String, DirectoryEntry> resolveAll(Collection<String> emails) throws FirebaseAuthException {
+        Map<String, DirectoryEntry> resolved = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String email : new LinkedHashSet<>(emails)) {
+            String key = normalize(email);
+            Optional<DirectoryEntry> cached = enabled ? cache.getIfPresent(key) : null;
+            if (cached == null) {
+                missing.add(key);
+            } else {
+                cached.ifPresent(entry -> resolved.put(key, entry));
+            }
+        }
+
+        for (int from = 0; from < missing.size(); from += MAX_BATCH) {
+            List<String> chunk = missing.subList(from, Math.min(from + MAX_BATCH, missing.size()));
+            List<UserIdentifier> identifiers = new ArrayList<>();
+            chunk.forEach(email -> identifiers.add(new EmailIdentifier(email)));
+            GetUsersResult result = FirebaseAuth.getInstance().getUsers(identifiers);
+
+            Set<String> found = new HashSet<>();
+            for (UserRecord user : result.getUsers()) {
+                DirectoryEntry entry = toEntry(user);
+                String key = normalize(user.getEmail());
+                resolved.put(key, entry);
+                found.add(key);
+                if (enabled) {
+                    cache.put(key, Optional.of(entry));
+                }
+            }
+            if (enabled) {
+                chunk.stream().filter(email -> !found.contains(email)).forEach(email -> cache.put(email, Optional.empty()));
+            }
+        }
+        return resolved;
+    }
+
+    // A user was created with this email (a cached miss must not hide them)
+    public void invalidateEmail(String email) {
+        cache.invalidate(normalize(email));
+    }
+
+    // A user's claims changed (e.g. role)
+    public void invalidateUid(String uid) {
+        cache.asMap().values().removeIf(entry -> entry.isPresent() && entry.get().uid().equals(uid));
+    }
+
+    private static DirectoryEntry toEntry(UserRecord user) {
+        Object role = user.getCustomClaims().get("role");
+        return new DirectoryEntry(user.getUid(), user.getEmail(), role != null ? role.toString() : null);
+    }
+
+    // The form emails are cached and returned under
+    public static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
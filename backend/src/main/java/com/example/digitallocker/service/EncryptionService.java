@@ -1,28 +1,108 @@
 package com.example.digitallocker.service;
 
+import com.example.digitallocker.observability.Stages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.Certificate;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.function.LongConsumer;
 
+/*
+ Key wrapping and file encryption, timed as stages (see Stages):
+   - crypto.wrap/crypto.unwrap (RSA) and crypto.kek.wrap/crypto.kek.unwrap (AES key wrap), once per call
+   - crypto.encrypt/crypto.decrypt: single-shot passes are observed per call; streaming passes record only
+     the time spent in the cipher, summed over their segments, not the blob reads and writes in between
+ */
 @Service
 public class EncryptionService {
 
+    private static final Logger log = LoggerFactory.getLogger(EncryptionService.class);
+
+    // Values of the "encryptionVersion" field in file_metadata. Documents without the field are single-shot (version 1).
+    public static final int VERSION_SINGLE_SHOT = 1;
+    public static final int VERSION_SEGMENTED = 2;
+
+    // Values of the "keyScheme" field: the file key wrapped with the master RSA key (also for documents without
+    // the field), or with AES key wrap (RFC 3394) under a version of the owner's key-encryption key
+    public static final String KEY_SCHEME_RSA = "rsa-oaep";
+    public static final String KEY_SCHEME_KEK = "aes-kw";
+
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_WRAP_TRANSFORMATION = "AESWrap";
+    private static final String CONTENT_HASH_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final PrivateKey privateKey;
     private final PublicKey publicKey;
+    private final SecretKey contentHashKey;
+    private final SegmentedAesGcm segmentedCipher;
+    private final DataKeyCache dataKeyCache;
+    private final Stages stages;
+    private final CipherPool rsaCiphers = new CipherPool(RSA_TRANSFORMATION, 32);
+    private final CipherPool aesCiphers = new CipherPool(AES_TRANSFORMATION, 32);
+    private final CipherPool keyWrapCiphers = new CipherPool(KEY_WRAP_TRANSFORMATION, 32);
 
     // A simple record to hold the encrypted data and its IV
     public record EncryptedData(byte[] ciphertext, byte[] iv) {}
 
-    public EncryptionService() {
+    @Autowired
+    public EncryptionService(@Value("${locker.crypto.segment-size:262144}") int segmentSize, DataKeyCache dataKeyCache,
+                             Stages stages) {
+        this(loadKeystoreKeyPair(), segmentSize, dataKeyCache, stages);
+    }
+
+    // For use outside the application context (e.g. the benchmarks), with a key pair supplied by the caller
+    public EncryptionService(KeyPair masterKeyPair, int segmentSize, DataKeyCache dataKeyCache) {
+        this(masterKeyPair, segmentSize, dataKeyCache, Stages.NOOP);
+    }
+
+    private EncryptionService(KeyPair masterKeyPair, int segmentSize, DataKeyCache dataKeyCache, Stages stages) {
+        this.segmentedCipher = new SegmentedAesGcm(segmentSize);
+        this.dataKeyCache = dataKeyCache;
+        this.stages = stages;
+        this.privateKey = masterKeyPair.getPrivate();
+        this.publicKey = masterKeyPair.getPublic();
+        this.contentHashKey = deriveContentHashKey(privateKey);
+    }
+
+    // The dedup key is derived from the master key, so content hashes can't be recomputed (or used to confirm a
+    // guessed document) by anyone who can only read the metadata
+    private static SecretKey deriveContentHashKey(PrivateKey privateKey) {
+        byte[] material = privateKey.getEncoded();
+        if (material == null) {
+            throw new IllegalStateException("The master private key is not exportable; cannot derive the content hash key");
+        }
+        try {
+            Mac mac = Mac.getInstance(CONTENT_HASH_ALGORITHM);
+            mac.init(new SecretKeySpec(material, CONTENT_HASH_ALGORITHM));
+            byte[] derived = mac.doFinal("digitallocker content hash v1".getBytes(StandardCharsets.UTF_8));
+            return new SecretKeySpec(derived, CONTENT_HASH_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not derive the content hash key", e);
+        } finally {
+            Arrays.fill(material, (byte) 0);
+        }
+    }
+
+    private static KeyPair loadKeystoreKeyPair() {
         // NOTE: For production, these secrets should be loaded from a secure vault or environment variables
         String keystorePassword = "changeit";
         String keyPassword = "changeit";
@@ -33,58 +113,163 @@ public class EncryptionService {
             try (InputStream is = new FileInputStream("keystore.jks")) {
                 ks.load(is, keystorePassword.toCharArray());
             }
-            this.privateKey = (PrivateKey) ks.getKey(keyAlias, keyPassword.toCharArray());
+            PrivateKey privateKey = (PrivateKey) ks.getKey(keyAlias, keyPassword.toCharArray());
             Certificate cert = ks.getCertificate(keyAlias);
-            this.publicKey = cert.getPublicKey();
-            System.out.println("Keystore loaded successfully!");
+            log.info("Keystore loaded");
+            return new KeyPair(cert.getPublicKey(), privateKey);
         } catch (Exception e) {
             throw new RuntimeException("Failed to load keystore and keys", e);
         }
     }
 
-    // Generates a new, random AES-256 key for each file
-    public SecretKey generateAesKey() throws NoSuchAlgorithmException {
-        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-        keyGenerator.init(256);
-        return keyGenerator.generateKey();
+    // Keyed hash (HMAC-SHA256, hex) of the owner and the content read from `in`. Equal only for identical content
+    // of the same owner, so it can find duplicates within a patient's files but never links files across patients.
+    public String contentHash(String ownerUid, InputStream in) throws Exception {
+        Mac mac = Mac.getInstance(CONTENT_HASH_ALGORITHM);
+        mac.init(contentHashKey);
+        byte[] owner = ownerUid.getBytes(StandardCharsets.UTF_8);
+        mac.update((byte) (owner.length >>> 8));
+        mac.update((byte) owner.length);
+        mac.update(owner);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            mac.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(mac.doFinal());
+    }
+
+    // Generates a new, random AES-256 key for each file (straight from the shared SecureRandom, which is all
+    // an AES KeyGenerator does, without looking up a provider per call)
+    public SecretKey generateAesKey() {
+        byte[] keyBytes = new byte[32];
+        RANDOM.nextBytes(keyBytes);
+        try {
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
     }
 
     // Encrypts the file data with the given AES key
     public EncryptedData encryptFile(SecretKey aesKey, byte[] fileData) throws Exception {
         byte[] iv = new byte[12]; // 12 bytes for GCM is standard
-        new SecureRandom().nextBytes(iv);
+        RANDOM.nextBytes(iv);
         GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, iv);
 
-        Cipher aesCipher = Cipher.getInstance("AES/GCM/NoPadding");
-        aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, gcmParameterSpec);
-
-        byte[] ciphertext = aesCipher.doFinal(fileData);
+        byte[] ciphertext = stages.observe("crypto.encrypt", () -> aesCiphers.apply(aesCipher -> {
+            aesCipher.init(Cipher.ENCRYPT_MODE, aesKey, gcmParameterSpec);
+            return aesCipher.doFinal(fileData);
+        }));
+        stages.countBytes("crypto.encrypt", fileData.length);
         return new EncryptedData(ciphertext, iv);
     }
 
     // Encrypts (wraps) the AES key with our master public RSA key
     public String wrapAesKey(SecretKey aesKey) throws Exception {
-        Cipher rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-        rsaCipher.init(Cipher.ENCRYPT_MODE, this.publicKey);
-        byte[] wrappedKey = rsaCipher.doFinal(aesKey.getEncoded());
+        byte[] wrappedKey = stages.observe("crypto.wrap", () -> rsaCiphers.apply(rsaCipher -> {
+            rsaCipher.init(Cipher.ENCRYPT_MODE, this.publicKey);
+            return rsaCipher.doFinal(aesKey.getEncoded());
+        }));
         return Base64.getEncoder().encodeToString(wrappedKey);
     }
 
     // Decrypts (unwraps) the AES key with our master private RSA key
     public SecretKey unwrapAesKey(String wrappedKeyBase64) throws Exception {
         byte[] wrappedKeyBytes = Base64.getDecoder().decode(wrappedKeyBase64);
-        // THIS IS THE CORRECTED LINE
-        Cipher rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-        rsaCipher.init(Cipher.DECRYPT_MODE, this.privateKey);
-        byte[] aesKeyBytes = rsaCipher.doFinal(wrappedKeyBytes);
-        return new SecretKeySpec(aesKeyBytes, "AES");
+        byte[] aesKeyBytes = stages.observe("crypto.unwrap", () -> rsaCiphers.apply(rsaCipher -> {
+            rsaCipher.init(Cipher.DECRYPT_MODE, this.privateKey);
+            return rsaCipher.doFinal(wrappedKeyBytes);
+        }));
+        try {
+            return new SecretKeySpec(aesKeyBytes, "AES");
+        } finally {
+            Arrays.fill(aesKeyBytes, (byte) 0);
+        }
+    }
+
+    // Wraps the AES key with a key-encryption key (AES key wrap, no RSA operation)
+    public String wrapAesKey(SecretKey aesKey, SecretKey kek) throws Exception {
+        byte[] wrappedKey = stages.observe("crypto.kek.wrap", () -> keyWrapCiphers.apply(wrapCipher -> {
+            wrapCipher.init(Cipher.WRAP_MODE, kek);
+            return wrapCipher.wrap(aesKey);
+        }));
+        return Base64.getEncoder().encodeToString(wrappedKey);
+    }
+
+    // Unwraps an AES key wrapped by wrapAesKey(aesKey, kek); fails if the key or the KEK doesn't match
+    public SecretKey unwrapAesKey(String wrappedKeyBase64, SecretKey kek) throws Exception {
+        byte[] wrappedKeyBytes = Base64.getDecoder().decode(wrappedKeyBase64);
+        return stages.observe("crypto.kek.unwrap", () -> keyWrapCiphers.apply(wrapCipher -> {
+            wrapCipher.init(Cipher.UNWRAP_MODE, kek);
+            return (SecretKey) wrapCipher.unwrap(wrappedKeyBytes, "AES", Cipher.SECRET_KEY);
+        }));
+    }
+
+    // Same as unwrapAesKey, but served from the data key cache when this document was opened recently
+    public SecretKey unwrapAesKey(String docId, String wrappedKeyBase64) throws Exception {
+        return dataKeyCache.get(docId, wrappedKeyBase64, () -> unwrapAesKey(wrappedKeyBase64));
+    }
+
+    // Same as unwrapAesKey(wrappedKeyBase64, kek), but served from the data key cache
+    public SecretKey unwrapAesKey(String docId, String wrappedKeyBase64, SecretKey kek) throws Exception {
+        return dataKeyCache.get(docId, wrappedKeyBase64, () -> unwrapAesKey(wrappedKeyBase64, kek));
     }
 
     // Decrypts the file data with the given AES key
     public byte[] decryptFile(EncryptedData encryptedData, SecretKey aesKey) throws Exception {
         GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(128, encryptedData.iv());
-        Cipher aesCipher = Cipher.getInstance("AES/GCM/NoPadding");
-        aesCipher.init(Cipher.DECRYPT_MODE, aesKey, gcmParameterSpec);
-        return aesCipher.doFinal(encryptedData.ciphertext());
+        byte[] plaintext = stages.observe("crypto.decrypt", () -> aesCiphers.apply(aesCipher -> {
+            aesCipher.init(Cipher.DECRYPT_MODE, aesKey, gcmParameterSpec);
+            return aesCipher.doFinal(encryptedData.ciphertext());
+        }));
+        stages.countBytes("crypto.decrypt", plaintext.length);
+        return plaintext;
+    }
+
+    // Streams the input through segmented AES-GCM (encryptionVersion 2), so memory stays bounded by one segment
+    public SegmentedAesGcm.Header encryptStream(SecretKey aesKey, InputStream in, OutputStream out) throws Exception {
+        CipherTime time = new CipherTime();
+        try {
+            SegmentedAesGcm.Header header = segmentedCipher.encrypt(aesKey, in, out, time);
+            stages.countBytes("crypto.encrypt", header.plaintextLength());
+            return header;
+        } finally {
+            stages.record("crypto.encrypt", time.nanos);
+        }
+    }
+
+    // Decrypts a segmented blob produced by encryptStream, verifying each segment before writing it out
+    public long decryptStream(SecretKey aesKey, SegmentedAesGcm.Header header, InputStream in, OutputStream out) throws Exception {
+        CipherTime time = new CipherTime();
+        try {
+            long written = segmentedCipher.decrypt(aesKey, header, in, out, time);
+            stages.countBytes("crypto.decrypt", written);
+            return written;
+        } finally {
+            stages.record("crypto.decrypt", time.nanos);
+        }
+    }
+
+    // Decrypts plaintext bytes [from, to] of a segmented blob; the channel must be positioned at the first covering segment
+    public void decryptRange(SecretKey aesKey, SegmentedAesGcm.Header header, ReadableByteChannel in,
+                             long from, long to, OutputStream out) throws Exception {
+        CipherTime time = new CipherTime();
+        try {
+            segmentedCipher.decryptRange(aesKey, header, in, from, to, out, time);
+            stages.countBytes("crypto.decrypt", to - from + 1);
+        } finally {
+            stages.record("crypto.decrypt", time.nanos);
+        }
+    }
+
+    // Sums the per-segment cipher time of one streaming pass (used by a single thread)
+    private static final class CipherTime implements LongConsumer {
+        long nanos;
+
+        @Override
+        public void accept(long segmentNanos) {
+            nanos += segmentNanos;
+        }
     }
-}
\ No newline at end of file
+}
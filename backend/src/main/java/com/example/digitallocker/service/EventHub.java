@@ -0,0 +1,179 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.Conversation;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ Server-Sent Events fan-out for /api/events. Clients get pushed hints instead of polling:
+   - "conversation": {conversationId, lastMessage, lastUpdated} to both participants when a message
+     or share is committed
+   - "file": {docId, ownerUid} to everyone who can see a file when it is uploaded or changed, admins included
+ Events are produced by the MetadataStore's conversation and file change feeds, so (with Firestore)
+ messages and uploads handled by any node reach clients on every node.
+ An event means "this changed, refresh it"; the same change may occasionally be delivered twice.
+
+ Connections are servlet async requests: an idle client holds no thread, only its emitter. Sends run
+ on virtual threads so a slow client can't stall the listener. A comment line is sent every
+ `heartbeat` to keep proxies from closing idle streams; emitters time out after `timeout`, after which
+ the client reconnects with a fresh ticket (see EventTickets).
+ */
+@Service
+public class EventHub {
+
+    private final boolean enabled;
+    private final Duration timeout;
+    private final Duration heartbeat;
+    private final int maxConnectionsPerUser;
+    private final MetadataStore metadataStore;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final AccessIndex accessIndex;
+    private final Map<String, Set<SseEmitter>> emitters = new ConcurrentHashMap<>();
+    // Connected admins: they can see every file, so they get every file event
+    private final Set<String> admins = ConcurrentHashMap.newKeySet();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "event-hub-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public EventHub(@Value("${locker.events.enabled:true}") boolean enabled,
+                    @Value("${locker.events.timeout:30m}") Duration timeout,
+                    @Value("${locker.events.heartbeat:25s}") Duration heartbeat,
+                    @Value("${locker.events.max-connections-per-user:5}") int maxConnectionsPerUser,
+                    MetadataStore metadataStore,
+                    FileMetadataRepository fileMetadataRepository,
+                    AccessIndex accessIndex,
+                    MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.timeout = timeout;
+        this.heartbeat = heartbeat;
+        this.maxConnectionsPerUser = maxConnectionsPerUser;
+        this.metadataStore = metadataStore;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.accessIndex = accessIndex;
+        Gauge.builder("locker.events.connections", emitters, map -> map.values().stream().mapToInt(Set::size).sum())
+                .description("Open Server-Sent Events connections")
+                .register(meterRegistry);
+    }
+
+    // Registers a new stream for this user, closing others of theirs beyond max-connections-per-user
+    public SseEmitter subscribe(String uid, boolean admin) {
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        // Added inside compute, so it can't land in a set that a concurrent removal is dropping from the map
+        Set<SseEmitter> userEmitters = emitters.compute(uid, (key, set) -> {
+            Set<SseEmitter> updated = set != null ? set : ConcurrentHashMap.newKeySet();
+            updated.add(emitter);
+            if (admin) {
+                admins.add(uid);
+            }
+            return updated;
+        });
+        Runnable remove = () -> {
+            userEmitters.remove(emitter);
+            emitters.computeIfPresent(uid, (key, set) -> {
+                if (!set.isEmpty()) {
+                    return set;
+                }
+                admins.remove(key);
+                return null;
+            });
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(error -> remove.run());
+
+        Iterator<SseEmitter> others = userEmitters.iterator();
+        while (userEmitters.size() > maxConnectionsPerUser && others.hasNext()) {
+            SseEmitter other = others.next();
+            if (other != emitter) {
+                others.remove();
+                other.complete();
+            }
+        }
+
+        send(emitter, SseEmitter.event().name("ready").data(Map.of("uid", uid)));
+        return emitter;
+    }
+
+    public void publish(Collection<String> uids, String eventName, Object data) {
+        for (String uid : new HashSet<>(uids)) {
+            for (SseEmitter emitter : emitters.getOrDefault(uid, Set.of())) {
+                send(emitter, SseEmitter.event().name(eventName).data(data));
+            }
+        }
+    }
+
+    private void send(SseEmitter emitter, SseEmitter.SseEventBuilder event) {
+        senders.execute(() -> {
+            try {
+                emitter.send(event);
+            } catch (IOException | IllegalStateException e) {
+                // Client went away; completing the emitter removes it
+                emitter.completeWithError(e);
+            }
+        });
+    }
+
+    // ----------------------------
+    // Event sources
+    // ----------------------------
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        fileMetadataRepository.addChangeListener(this::onFileChanged);
+        metadataStore.addConversationListener(this::onConversationChanged);
+        scheduler.scheduleAtFixedRate(this::sendHeartbeats,
+                heartbeat.toMillis(), heartbeat.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        emitters.values().forEach(set -> set.forEach(SseEmitter::complete));
+        senders.shutdown();
+    }
+
+    private void onFileChanged(FileMetadata file) {
+        Set<String> recipients = new HashSet<>(file.sharedWith());
+        recipients.addAll(file.allowedDoctorUids());
+        if (file.visibleToPatient()) {
+            recipients.add(file.ownerUid());
+        }
+        if (accessIndex.isReady()) {
+            recipients.addAll(accessIndex.doctorsAssignedTo(file.ownerUid()));
+        }
+        recipients.addAll(admins);
+        publish(recipients, "file", Map.of("docId", file.docId(), "ownerUid", file.ownerUid()));
+    }
+
+    private void onConversationChanged(Conversation conversation) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("conversationId", conversation.id());
+        data.put("lastMessage", conversation.lastMessage());
+        data.put("lastUpdated", conversation.lastUpdated() != null ? conversation.lastUpdated().toDate() : null);
+        publish(conversation.participants(), "conversation", data);
+    }
+
+    private void sendHeartbeats() {
+        emitters.values().forEach(set -> set.forEach(emitter -> send(emitter, SseEmitter.event().comment("heartbeat"))));
+    }
+}
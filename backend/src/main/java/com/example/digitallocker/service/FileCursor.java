@@ -0,0 +1,26 @@
+package com.example.digitallocker.service;
+
+import com.google.cloud.Timestamp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Position in the (createdAt desc, docId desc) ordering of file listings, handed to clients as an opaque pageToken
+public record FileCursor(Timestamp createdAt, String docId) {
+
+    public String encode() {
+        String raw = createdAt.getSeconds() + ":" + createdAt.getNanos() + ":" + docId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Throws IllegalArgumentException for tokens we didn't issue
+    public static FileCursor decode(String pageToken) {
+        String raw = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+        String[] parts = raw.split(":", 3);
+        if (parts.length != 3 || parts[2].isEmpty()) {
+            throw new IllegalArgumentException("Malformed page token");
+        }
+        Timestamp createdAt = Timestamp.ofTimeSecondsAndNanos(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+        return new FileCursor(createdAt, parts[2]);
+    }
+}
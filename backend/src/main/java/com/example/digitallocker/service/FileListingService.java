@@ -0,0 +1,196 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.FileQuery;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.service.AccessIndex.AccessibleDoc;
+import com.example.digitallocker.service.AccessIndex.IndexedDoc;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Paginated file listings for /api/files/list. Every role uses the same contract:
+   - results are ordered by createdAt descending, ties broken by docId descending
+   - at most pageSize files per page; nextPageToken is null on the last page
+   - only the listing fields are read from the MetadataStore (never wrappedAesKey or iv)
+
+ Listings are composed from the store's futures without blocking the calling thread.
+ The doctor listing merges the assigned-patients query with the sharedWith query. Both are in flight
+ at once and each one is read from the same cursor with a limit of pageSize + 1, so the merged,
+ de-duplicated result still tells us whether another page exists. Per-stage latency (assignments,
+ queries, merge) is recorded in the "locker.files.list.stage" timer.
+
+ Once the AccessIndex is built, patient and doctor listings are answered from it instead: the page is
+ selected in memory (stage "index") and only its documents are read, in one batched get. The admin
+ listing stays a single ordered query, which is already as cheap as it gets.
+ */
+@Service
+public class FileListingService {
+
+    private static final Comparator<FileMetadata> NEWEST_FIRST =
+            Comparator.comparing(FileMetadata::createdAt)
+                    .thenComparing(FileMetadata::docId)
+                    .reversed();
+
+    private static final Comparator<IndexedDoc> INDEXED_NEWEST_FIRST =
+            Comparator.comparing(IndexedDoc::createdAt)
+                    .thenComparing(IndexedDoc::docId)
+                    .reversed();
+
+    public record FilePage(List<Map<String, Object>> files, String nextPageToken) {}
+
+    private final MetadataStore metadataStore;
+    private final AccessIndex accessIndex;
+    private final MeterRegistry meterRegistry;
+
+    public FileListingService(MetadataStore metadataStore, AccessIndex accessIndex, MeterRegistry meterRegistry) {
+        this.metadataStore = metadataStore;
+        this.accessIndex = accessIndex;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public CompletableFuture<FilePage> listForAdmin(int pageSize, FileCursor cursor) {
+        return runAll(List.of("admin"), List.of(fetch(new FileQuery.All(), pageSize, cursor)), pageSize); // Pass role as access type
+    }
+
+    public CompletableFuture<FilePage> listForPatient(String uid, int pageSize, FileCursor cursor) {
+        if (accessIndex.isReady()) {
+            return listFromIndex(uid, "ROLE_patient", pageSize, cursor);
+        }
+        return runAll(List.of("patient"), List.of(fetch(new FileQuery.ByOwner(uid, true), pageSize, cursor)), pageSize);
+    }
+
+    public CompletableFuture<FilePage> listForDoctor(String uid, int pageSize, FileCursor cursor) {
+        if (accessIndex.isReady()) {
+            return listFromIndex(uid, "ROLE_doctor", pageSize, cursor);
+        }
+
+        // The shared-files query doesn't depend on the assignments, so it is already in flight while we read them
+        CompletableFuture<List<FileMetadata>> sharedFuture = fetch(new FileQuery.SharedWith(uid), pageSize, cursor);
+
+        long start = System.nanoTime();
+        return metadataStore.patientsOf(uid).thenCompose(patientUids -> {
+            recordStage("assignments", start);
+
+            // Assigned results come first, so a file that is both assigned and shared is reported as 'assigned'
+            CompletableFuture<List<FileMetadata>> assignedFuture = fetch(new FileQuery.ByOwners(patientUids), pageSize, cursor);
+            return runAll(List.of("assigned", "shared"), List.of(assignedFuture, sharedFuture), pageSize);
+        });
+    }
+
+    // Picks the page from the index with a bounded heap (pageSize + 1 entries), then reads just those documents
+    private CompletableFuture<FilePage> listFromIndex(String uid, String role, int pageSize, FileCursor cursor) {
+        long start = System.nanoTime();
+        IndexedDoc after = cursor != null ? new IndexedDoc(cursor.docId(), null, cursor.createdAt(), true) : null;
+        PriorityQueue<AccessibleDoc> heap = new PriorityQueue<>(
+                Comparator.comparing(AccessibleDoc::doc, INDEXED_NEWEST_FIRST).reversed());
+        for (AccessibleDoc candidate : accessIndex.accessibleDocs(uid, role)) {
+            // Documents without createdAt never show up in the ordered queries either
+            if (candidate.doc().createdAt() == null
+                    || (after != null && INDEXED_NEWEST_FIRST.compare(candidate.doc(), after) <= 0)) {
+                continue;
+            }
+            heap.add(candidate);
+            if (heap.size() > pageSize + 1) {
+                heap.poll();
+            }
+        }
+        List<AccessibleDoc> selected = new ArrayList<>(heap);
+        selected.sort(Comparator.comparing(AccessibleDoc::doc, INDEXED_NEWEST_FIRST));
+        recordStage("index", start);
+
+        boolean hasMore = selected.size() > pageSize;
+        List<AccessibleDoc> pageDocs = selected.subList(0, Math.min(pageSize, selected.size()));
+        if (pageDocs.isEmpty()) {
+            return CompletableFuture.completedFuture(new FilePage(List.of(), null));
+        }
+        List<String> docIds = pageDocs.stream().map(candidate -> candidate.doc().docId()).toList();
+
+        long queryStart = System.nanoTime();
+        return metadataStore.findListings(docIds).thenApply(listings -> {
+            recordStage("queries", queryStart);
+            // One deleted since indexing is simply skipped
+            Map<String, FileMetadata> byId = new HashMap<>();
+            listings.forEach(listing -> byId.put(listing.docId(), listing));
+            List<Map<String, Object>> files = new ArrayList<>();
+            for (AccessibleDoc candidate : pageDocs) {
+                FileMetadata listing = byId.get(candidate.doc().docId());
+                if (listing != null) {
+                    files.add(toListing(listing, candidate.accessType()));
+                }
+            }
+            String nextPageToken = null;
+            if (hasMore) {
+                IndexedDoc last = pageDocs.get(pageDocs.size() - 1).doc();
+                nextPageToken = new FileCursor(last.createdAt(), last.docId()).encode();
+            }
+            return new FilePage(files, nextPageToken);
+        });
+    }
+
+    // Starts one listing query from the cursor, reading one extra document to detect a following page
+    private CompletableFuture<List<FileMetadata>> fetch(FileQuery query, int pageSize, FileCursor cursor) {
+        return metadataStore.queryFiles(query, cursor, pageSize + 1);
+    }
+
+    // Completes once all in-flight queries are done and merges their results (access types are in query order).
+    // No thread waits in between; the merge runs on whichever thread completes the last query.
+    private CompletableFuture<FilePage> runAll(List<String> accessTypes, List<CompletableFuture<List<FileMetadata>>> futures, int pageSize) {
+        long start = System.nanoTime();
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            recordStage("queries", start);
+
+            long mergeStart = System.nanoTime();
+            List<List<FileMetadata>> results = futures.stream().map(CompletableFuture::join).toList();
+            FilePage page = toPage(accessTypes, results, pageSize);
+            recordStage("merge", mergeStart);
+            return page;
+        });
+    }
+
+    // Merges query results into one page, keeping the first access type seen for each docId
+    private FilePage toPage(List<String> queryAccessTypes, List<List<FileMetadata>> results, int pageSize) {
+        Map<String, String> accessTypes = new HashMap<>();
+        List<FileMetadata> merged = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            for (FileMetadata file : results.get(i)) {
+                if (accessTypes.putIfAbsent(file.docId(), queryAccessTypes.get(i)) == null) {
+                    merged.add(file);
+                }
+            }
+        }
+        merged.sort(NEWEST_FIRST);
+
+        List<Map<String, Object>> files = new ArrayList<>();
+        for (FileMetadata file : merged.subList(0, Math.min(pageSize, merged.size()))) {
+            files.add(toListing(file, accessTypes.get(file.docId())));
+        }
+
+        String nextPageToken = null;
+        if (merged.size() > pageSize) {
+            FileMetadata last = merged.get(pageSize - 1);
+            nextPageToken = new FileCursor(last.createdAt(), last.docId()).encode();
+        }
+        return new FilePage(files, nextPageToken);
+    }
+
+    private void recordStage(String stage, long startNanos) {
+        meterRegistry.timer("locker.files.list.stage", "stage", stage)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Map<String, Object> toListing(FileMetadata file, String accessType) {
+        Map<String, Object> fileData = new HashMap<>();
+        fileData.put("docId", file.docId());
+        fileData.put("originalFilename", file.originalFilename());
+        fileData.put("ownerUid", file.ownerUid());
+        fileData.put("isVisibleToPatient", file.visibleToPatient());
+        fileData.put("accessType", accessType); // Add the new flag
+        fileData.put("createdAt", file.createdAt() != null ? file.createdAt().toDate() : null);
+        return fileData;
+    }
+}
@@ -0,0 +1,360 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.storage.BlobStore;
+import com.google.cloud.Timestamp;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ Encrypts uploads into the BlobStore and records their metadata.
+
+ Batch uploads run as a pipeline:
+   1. encrypt + store: each file is encrypted with its own key and streamed into its blob, on a shared
+      pool of `parallelism` threads
+   2. commit: stored files are committed to file_metadata in WriteBatches of up to `commit-size`
+      documents, as soon as a batch fills or the pipeline has nothing else ready
+   3. report: each file's result (docId or error) is handed to the caller once its metadata is committed
+
+ Deduplication: with `dedup.enabled`, each upload is first hashed with the owner's keyed content hash
+ (EncryptionService.contentHash). If that owner already has a file with the same content, the new file
+ only gets its own file_metadata document, pointing at the existing blob and its wrapped key; nothing is
+ encrypted or written to the blob store. Blobs count the files referencing them (MetadataStore), and a blob
+ is deleted with its last file. Metrics: locker.upload.dedup{result=hit|miss}, locker.upload.dedup.ratio
+ (hits / uploads since start) and locker.upload.dedup.bytes.saved.
+
+ Backpressure: at most `max-in-flight` files (across all batch requests on this node) are admitted to
+ stage 1 at a time; a batch waits for permits rather than queueing its whole payload. The pool is
+ smaller than the core count by default, so batches never take every core from interactive requests.
+ */
+@Service
+public class FileUploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(FileUploadService.class);
+    private static final long COMMIT_FLUSH_MILLIS = 200;
+
+    private final EncryptionService encryptionService;
+    private final KeyHierarchy keyHierarchy;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final AccessIndex accessIndex;
+    private final BlobStore blobStore;
+    private final ContentCodec contentCodec;
+    private final int commitSize;
+    private final boolean dedupEnabled;
+    private final Counter dedupHits;
+    private final Counter dedupMisses;
+    private final Counter dedupBytesSaved;
+    private final ExecutorService batchPool;
+    private final Semaphore inFlight;
+
+    // Outcome of stage 1 for one file of a batch: either stored metadata or the failure
+    private record Stored(int index, String filename, FileMetadata metadata, Exception error) {}
+
+    public FileUploadService(EncryptionService encryptionService,
+                             KeyHierarchy keyHierarchy,
+                             FileMetadataRepository fileMetadataRepository,
+                             AccessIndex accessIndex,
+                             BlobStore blobStore,
+                             ContentCodec contentCodec,
+                             @Value("${locker.upload.batch.parallelism:0}") int parallelism,
+                             @Value("${locker.upload.batch.max-in-flight:0}") int maxInFlight,
+                             @Value("${locker.upload.batch.commit-size:50}") int commitSize,
+                             @Value("${locker.upload.dedup.enabled:true}") boolean dedupEnabled,
+                             MeterRegistry meterRegistry) {
+        this.encryptionService = encryptionService;
+        this.keyHierarchy = keyHierarchy;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.accessIndex = accessIndex;
+        this.blobStore = blobStore;
+        this.contentCodec = contentCodec;
+        this.commitSize = Math.min(commitSize, 250); // Firestore's WriteBatch limit, with a blob counter per file
+        this.dedupEnabled = dedupEnabled;
+        this.dedupHits = meterRegistry.counter("locker.upload.dedup", "result", "hit");
+        this.dedupMisses = meterRegistry.counter("locker.upload.dedup", "result", "miss");
+        this.dedupBytesSaved = meterRegistry.counter("locker.upload.dedup.bytes.saved");
+        Gauge.builder("locker.upload.dedup.ratio", this, service -> {
+                    double uploads = service.dedupHits.count() + service.dedupMisses.count();
+                    return uploads == 0 ? 0 : service.dedupHits.count() / uploads;
+                })
+                .register(meterRegistry);
+
+        // 0 means "size from the machine": half the cores, leaving the rest for interactive traffic
+        int threads = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadCount = new AtomicInteger();
+        // Tasks carry the submitting request's trace context, so their stages show up in its trace
+        this.batchPool = ContextExecutorService.wrap(Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-upload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), ContextSnapshotFactory.builder().build());
+        this.inFlight = new Semaphore(maxInFlight > 0 ? maxInFlight : threads * 2, true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        batchPool.shutdownNow();
+    }
+
+    /*
+     Returns the metadata to commit for the file: a reference to the owner's existing blob with the same
+     content, or else a new blob (the file, compressed if ContentCodec finds that worthwhile, encrypted with a
+     fresh key and streamed into the store).
+     Multipart uploads are spooled by the container, so hashing reads the content a second time locally.
+     */
+    public FileMetadata encryptAndStore(String ownerUid, MultipartFile file) throws Exception {
+        String docId = UUID.randomUUID().toString();
+        String contentHash = null;
+        if (dedupEnabled) {
+            try (InputStream in = file.getInputStream()) {
+                contentHash = encryptionService.contentHash(ownerUid, in);
+            }
+            Optional<FileMetadata> existing = fileMetadataRepository.findByContent(ownerUid, contentHash);
+            if (existing.isPresent()) {
+                dedupHits.increment();
+                dedupBytesSaved.increment(file.getSize());
+                return referenceTo(existing.get(), docId, file.getOriginalFilename());
+            }
+            dedupMisses.increment();
+        }
+
+        KeyHierarchy.FileKey fileKey = keyHierarchy.newFileKey(ownerUid);
+        String storagePath = blobPath(docId);
+        String codec = contentCodec.choose(file);
+
+        // Stream the upload through compression and segmented AES-GCM straight into the blob store,
+        // so neither the plaintext nor the ciphertext is ever fully on the heap
+        SegmentedAesGcm.Header header;
+        try (InputStream in = contentCodec.encode(codec, file.getInputStream());
+             OutputStream out = blobStore.create(storagePath)) {
+            header = encryptionService.encryptStream(fileKey.key(), in, out);
+        } catch (Exception e) {
+            // Closing the writer finalizes whatever was written, so drop the partial blob
+            blobStore.delete(storagePath);
+            throw e;
+        }
+        if (codec != null) {
+            contentCodec.recordSavings(file.getSize(), header.plaintextLength());
+        }
+
+        return new FileMetadata(
+                docId,
+                ownerUid,
+                file.getOriginalFilename(),
+                storagePath,
+                fileKey.wrappedKey(),
+                Base64.getEncoder().encodeToString(header.noncePrefix()), // nonce prefix for segmented blobs
+                EncryptionService.VERSION_SEGMENTED,
+                header.segmentSize(),
+                header.plaintextLength(),
+                contentHash,
+                codec,
+                codec != null ? file.getSize() : null,
+                fileKey.keyScheme(),
+                fileKey.kekVersion(),
+                Timestamp.now(),
+                true,
+                null,
+                List.of(),
+                List.of());
+    }
+
+    // A new file for the same content: its own document, sharing the existing blob and the key that encrypts it
+    private static FileMetadata referenceTo(FileMetadata existing, String docId, String originalFilename) {
+        return new FileMetadata(
+                docId,
+                existing.ownerUid(),
+                originalFilename,
+                existing.storagePath(),
+                existing.wrappedAesKey(),
+                existing.iv(),
+                existing.encryptionVersion(),
+                existing.segmentSize(),
+                existing.plaintextSize(),
+                existing.contentHash(),
+                existing.codec(),
+                existing.originalSize(),
+                existing.keyScheme(),
+                existing.kekVersion(),
+                Timestamp.now(),
+                true,
+                null,
+                List.of(),
+                List.of());
+    }
+
+    private static String blobPath(String docId) {
+        return "encrypted_files/" + docId;
+    }
+
+    // Whether the file points at a blob stored for an earlier file, rather than one of its own
+    private static boolean reusesBlob(FileMetadata metadata) {
+        return !metadata.storagePath().equals(blobPath(metadata.docId()));
+    }
+
+    // Deletes the file's document and, once no other file references it, its blob
+    public void delete(FileMetadata metadata) throws Exception {
+        boolean lastReference = fileMetadataRepository.delete(metadata.docId());
+        accessIndex.onFileDeleted(metadata.docId());
+        if (lastReference) {
+            try {
+                blobStore.delete(metadata.storagePath());
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not delete blob {} of deleted file {}: {}", metadata.storagePath(), metadata.docId(), e.getMessage());
+            }
+        }
+    }
+
+    // Single upload: store, then commit its metadata
+    public FileMetadata upload(String ownerUid, MultipartFile file) throws Exception {
+        FileMetadata metadata = encryptAndStore(ownerUid, file);
+        try {
+            fileMetadataRepository.create(metadata, reusesBlob(metadata));
+        } catch (Exception e) {
+            deleteBlob(metadata);
+            throw e;
+        }
+        accessIndex.onFileUpserted(metadata);
+        return metadata;
+    }
+
+    /*
+     Runs the batch pipeline for one patient. Per-file results are passed to `reporter` in commit order,
+     from the calling thread: {"index", "filename", "docId"} or {"index", "filename", "error"}.
+     Blocks until every file has been reported.
+     */
+    public void uploadBatch(String ownerUid, List<MultipartFile> files, Consumer<Map<String, Object>> reporter)
+            throws InterruptedException {
+        BlockingQueue<Stored> stored = new LinkedBlockingQueue<>();
+
+        // If the client goes away, keep committing what is already stored (so no blob is orphaned), just stop reporting
+        boolean[] disconnected = {false};
+        Consumer<Map<String, Object>> results = result -> {
+            if (disconnected[0]) {
+                return;
+            }
+            try {
+                reporter.accept(result);
+            } catch (RuntimeException e) {
+                log.warn("Batch upload client went away, finishing without reporting: {}", e.getMessage());
+                disconnected[0] = true;
+            }
+        };
+
+        // Stage 1 feeder: admits files as permits free up, so one batch can't flood the pool
+        Thread feeder = Thread.ofVirtual().name("batch-upload-feeder").start(() -> {
+            for (int i = 0; i < files.size(); i++) {
+                MultipartFile file = files.get(i);
+                int index = i;
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (int j = index; j < files.size(); j++) {
+                        stored.add(new Stored(j, files.get(j).getOriginalFilename(), null, e));
+                    }
+                    return;
+                }
+                try {
+                    batchPool.execute(() -> {
+                        try {
+                            stored.add(new Stored(index, file.getOriginalFilename(), encryptAndStore(ownerUid, file), null));
+                        } catch (Exception e) {
+                            stored.add(new Stored(index, file.getOriginalFilename(), null, e));
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    stored.add(new Stored(index, file.getOriginalFilename(), null, e));
+                }
+            }
+        });
+
+        // Stages 2 and 3 on the calling thread: commit whatever is ready, then report it
+        int reported = 0;
+        List<Stored> pending = new ArrayList<>();
+        try {
+            while (reported < files.size()) {
+                Stored next = pending.isEmpty()
+                        ? stored.take()
+                        : stored.poll(COMMIT_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    if (next.error() != null) {
+                        log.warn("Batch upload of {} failed: {}", next.filename(), next.error().getMessage());
+                        results.accept(result(next, "error", "Failed to encrypt or store file"));
+                        reported++;
+                    } else {
+                        pending.add(next);
+                    }
+                }
+                boolean drained = next == null || stored.isEmpty();
+                if (pending.size() >= commitSize || (!pending.isEmpty() && drained)) {
+                    commit(pending, results);
+                    reported += pending.size();
+                    pending.clear();
+                }
+            }
+        } finally {
+            feeder.join();
+        }
+    }
+
+    private void commit(List<Stored> pending, Consumer<Map<String, Object>> results) {
+        List<FileMetadata> metadata = pending.stream().map(Stored::metadata).toList();
+        Set<String> reusedBlobs = new HashSet<>();
+        metadata.stream().filter(FileUploadService::reusesBlob).forEach(file -> reusedBlobs.add(file.storagePath()));
+        try {
+            fileMetadataRepository.createAll(metadata, reusedBlobs);
+        } catch (Exception e) {
+            log.error("Batch metadata commit of {} files failed", pending.size(), e);
+            for (Stored failed : pending) {
+                deleteBlob(failed.metadata());
+                results.accept(result(failed, "error", "Failed to record file metadata"));
+            }
+            return;
+        }
+        for (Stored committed : pending) {
+            accessIndex.onFileUpserted(committed.metadata());
+            results.accept(result(committed, "docId", committed.metadata().docId()));
+        }
+    }
+
+    private static Map<String, Object> result(Stored stored, String key, String value) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("index", stored.index());
+        result.put("filename", stored.filename());
+        result.put(key, value);
+        return result;
+    }
+
+    // Cleanup after a failed commit; a reused blob still belongs to the files already referencing it
+    private void deleteBlob(FileMetadata metadata) {
+        if (reusesBlob(metadata)) {
+            return;
+        }
+        try {
+            blobStore.delete(metadata.storagePath());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not delete orphaned blob {}: {}", metadata.storagePath(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.KeyEncryptionKey;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.cloud.Timestamp;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.SecretKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ Which key protects each file's data key, for both key schemes (EncryptionService.KEY_SCHEME_*):
+   - rsa-oaep: the file key is wrapped with the master RSA key, one RSA operation per upload and per
+     (uncached) download. Every file uploaded before the hierarchy existed uses it.
+   - aes-kw:   each patient has a key-encryption key (KEK), wrapped once with the master RSA key and kept
+     in the metadata store (key_encryption_keys); file keys are wrapped with it using AES key wrap.
+ New uploads use `locker.crypto.key-scheme`; downloads follow whatever scheme the file records, so both
+ keep working side by side.
+
+ KEKs rotate by epoch: once the patient's newest version is older than `kek.rotation`, the next upload
+ creates version n+1 (if another node does so at the same moment, the loser adopts the winner's version).
+ Files keep the kekVersion they were wrapped with, and every version stays readable. Unwrapped KEKs are
+ cached (`kek.cache`), so RSA only runs when a patient's KEK is first used on a node or rotated.
+ */
+@Service
+public class KeyHierarchy {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyHierarchy.class);
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    // A file key together with what to record about it in file_metadata
+    public record FileKey(SecretKey key, String wrappedKey, String keyScheme, Integer kekVersion) {}
+
+    private record Kek(int version, Instant createdAt, SecretKey key) {}
+
+    private final EncryptionService encryptionService;
+    private final MetadataStore metadataStore;
+    private final String scheme;
+    private final Duration rotation;
+    private final Cache<String, Kek> keks;           // ownerUid/version -> unwrapped KEK
+    private final Cache<String, Kek> currentKeks;    // ownerUid -> the version new uploads use
+    private final Counter rotations;
+
+    public KeyHierarchy(EncryptionService encryptionService,
+                        MetadataStore metadataStore,
+                        @Value("${locker.crypto.key-scheme:aes-kw}") String scheme,
+                        @Value("${locker.crypto.kek.rotation:30d}") Duration rotation,
+                        @Value("${locker.crypto.kek.cache.max-size:10000}") long cacheSize,
+                        @Value("${locker.crypto.kek.cache.ttl:1h}") Duration cacheTtl,
+                        MeterRegistry meterRegistry) {
+        if (!scheme.equals(EncryptionService.KEY_SCHEME_RSA) && !scheme.equals(EncryptionService.KEY_SCHEME_KEK)) {
+            throw new IllegalArgumentException("Unknown locker.crypto.key-scheme " + scheme);
+        }
+        this.encryptionService = encryptionService;
+        this.metadataStore = metadataStore;
+        this.scheme = scheme;
+        this.rotation = rotation;
+        this.keks = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterAccess(cacheTtl)
+                .recordStats()
+                .build();
+        this.currentKeks = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtl)
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, keks, "locker.keks");
+        this.rotations = meterRegistry.counter("locker.crypto.kek.rotations");
+    }
+
+    // A fresh key for one of the owner's files, wrapped under the configured scheme
+    public FileKey newFileKey(String ownerUid) throws Exception {
+        SecretKey fileKey = encryptionService.generateAesKey();
+        if (scheme.equals(EncryptionService.KEY_SCHEME_RSA)) {
+            return new FileKey(fileKey, encryptionService.wrapAesKey(fileKey), EncryptionService.KEY_SCHEME_RSA, null);
+        }
+        Kek kek = currentKek(ownerUid);
+        return new FileKey(fileKey, encryptionService.wrapAesKey(fileKey, kek.key()), EncryptionService.KEY_SCHEME_KEK, kek.version());
+    }
+
+    // The file's data key, from the data key cache when it was opened recently
+    public SecretKey fileKey(FileMetadata doc) throws Exception {
+        if (!EncryptionService.KEY_SCHEME_KEK.equals(doc.keyScheme())) {
+            return encryptionService.unwrapAesKey(doc.docId(), doc.wrappedAesKey());
+        }
+        if (doc.kekVersion() == null) {
+            throw new IllegalStateException("File " + doc.docId() + " has no kekVersion");
+        }
+        SecretKey kek = kek(doc.ownerUid(), doc.kekVersion()).key();
+        return encryptionService.unwrapAesKey(doc.docId(), doc.wrappedAesKey(), kek);
+    }
+
+    private Kek currentKek(String ownerUid) throws Exception {
+        Kek current = currentKeks.getIfPresent(ownerUid);
+        if (current != null && !isDue(current.createdAt())) {
+            return current;
+        }
+        // One rotation per patient at a time on this node
+        synchronized (LOCKS[Math.floorMod(ownerUid.hashCode(), LOCKS.length)]) {
+            current = currentKeks.getIfPresent(ownerUid);
+            if (current == null || isDue(current.createdAt())) {
+                current = loadOrRotate(ownerUid);
+                currentKeks.put(ownerUid, current);
+            }
+            return current;
+        }
+    }
+
+    private Kek loadOrRotate(String ownerUid) throws Exception {
+        while (true) {
+            List<KeyEncryptionKey> versions = metadataStore.keksOf(ownerUid).get();
+            KeyEncryptionKey newest = versions.stream().max(Comparator.comparingInt(KeyEncryptionKey::version)).orElse(null);
+            if (newest != null && !isDue(newest.createdAt().toDate().toInstant())) {
+                return unwrap(newest);
+            }
+            SecretKey key = encryptionService.generateAesKey();
+            KeyEncryptionKey created = new KeyEncryptionKey(ownerUid, newest != null ? newest.version() + 1 : 1,
+                    encryptionService.wrapAesKey(key), Timestamp.now());
+            if (metadataStore.addKek(created).get()) {
+                rotations.increment();
+                log.info("Created key-encryption key version {} for {}", created.version(), ownerUid);
+                Kek kek = new Kek(created.version(), created.createdAt().toDate().toInstant(), key);
+                keks.put(cacheKey(ownerUid, created.version()), kek);
+                return kek;
+            }
+            // Another node created this version first: read again and use theirs
+        }
+    }
+
+    private Kek kek(String ownerUid, int version) throws Exception {
+        Kek cached = keks.getIfPresent(cacheKey(ownerUid, version));
+        if (cached != null) {
+            return cached;
+        }
+        for (KeyEncryptionKey stored : metadataStore.keksOf(ownerUid).get()) {
+            if (stored.version() == version) {
+                return unwrap(stored);
+            }
+        }
+        throw new IllegalStateException("No key-encryption key version " + version + " for " + ownerUid);
+    }
+
+    private Kek unwrap(KeyEncryptionKey stored) throws Exception {
+        Kek kek = new Kek(stored.version(), stored.createdAt().toDate().toInstant(),
+                encryptionService.unwrapAesKey(stored.wrappedKey()));
+        keks.put(cacheKey(stored.ownerUid(), stored.version()), kek);
+        return kek;
+    }
+
+    private boolean isDue(Instant createdAt) {
+        return createdAt.plus(rotation).isBefore(Instant.now());
+    }
+
+    private static String cacheKey(String ownerUid, int version) {
+        return ownerUid + "/" + version;
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.MessageCommit;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.firestore.FirestoreException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Write path for /api/messages/send and /share. Everything one message needs (the message document,
+ the conversation's participants/lastMessage/lastUpdated, the recipients' unreadCounts and, for a share,
+ the file's sharedWith entry) is committed in one MetadataStore write, so either all of it lands or none of it does.
+
+ Messages to the same conversation that arrive within `window` of each other are coalesced into one
+ batch (at most `max-batch` messages): one commit, one conversation update carrying the latest message.
+ All messages of a batch get the same commit timestamp, so their document ids sort in submission order:
+ each message gets its id once, when it is submitted, and keeps it if it is committed again.
+
+ The returned futures complete when the batch is committed. If a coalesced batch is rejected in a way
+ that means none of it was applied (a shared file that no longer exists), its messages are retried one
+ commit each, in order, so the bad message only fails itself. Any other failure (a timeout, say) may have
+ been applied anyway, and retrying would increment the unread counters twice, so the whole batch fails.
+ Published metrics: "locker.messages.commit" timer (tag outcome=success|failure),
+ "locker.messages.commit.size" and "locker.messages.commit.failures".
+ */
+@Service
+public class MessageCommitPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageCommitPipeline.class);
+
+    // One message to append to a conversation; sharedDocId is set when the message shares a file with recipientUid
+    public record MessageWrite(String conversationId,
+                               List<String> participants,
+                               String senderUid,
+                               Map<String, Object> messageData,
+                               String lastMessage,
+                               String sharedDocId,
+                               String recipientUid) {}
+
+    private record Pending(MessageWrite write, String messageId, CompletableFuture<Void> committed) {}
+
+    private final MetadataStore metadataStore;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final Duration window;
+    private final int maxBatch;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary batchSize;
+    private final Counter failures;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "message-commit-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, List<Pending>> pending = new HashMap<>(); // guarded by this
+    private long lastIdMillis; // guarded by this
+    private int idSequence; // guarded by this
+
+    public MessageCommitPipeline(MetadataStore metadataStore,
+                                 FileMetadataRepository fileMetadataRepository,
+                                 @Value("${locker.messages.commit.window:10ms}") Duration window,
+                                 @Value("${locker.messages.commit.max-batch:100}") int maxBatch,
+                                 MeterRegistry meterRegistry) {
+        this.metadataStore = metadataStore;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.window = window;
+        // Each message may take two writes (message + share) and the batch one more for the conversation
+        this.maxBatch = Math.max(1, Math.min(maxBatch, 249));
+        this.meterRegistry = meterRegistry;
+        this.batchSize = DistributionSummary.builder("locker.messages.commit.size")
+                .description("Messages per conversation commit")
+                .register(meterRegistry);
+        this.failures = Counter.builder("locker.messages.commit.failures")
+                .description("Message commits that failed")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        // Commit whatever is still waiting for its window
+        List<String> conversationIds;
+        synchronized (this) {
+            conversationIds = new ArrayList<>(pending.keySet());
+        }
+        conversationIds.forEach(this::flush);
+    }
+
+    public CompletableFuture<Void> submit(MessageWrite write) {
+        boolean flushNow;
+        Pending entry;
+        synchronized (this) {
+            entry = new Pending(write, nextMessageId(), new CompletableFuture<>());
+            List<Pending> batch = pending.computeIfAbsent(write.conversationId(), id -> new ArrayList<>());
+            batch.add(entry);
+            flushNow = window.isZero() || batch.size() >= maxBatch;
+            if (!flushNow && batch.size() == 1) {
+                flusher.schedule(() -> flush(write.conversationId()), window.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        if (flushNow) {
+            flush(write.conversationId());
+        }
+        return entry.committed();
+    }
+
+    private void flush(String conversationId) {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = pending.remove(conversationId);
+        }
+        if (batch == null || batch.isEmpty()) {
+            return; // Already flushed because it filled up
+        }
+
+        commit(conversationId, batch).whenComplete((result, error) -> {
+            if (error == null || batch.size() == 1 || !notApplied(error)) {
+                return;
+            }
+            // The commit is all or nothing, so one bad message (say, a share of a file deleted in the meantime)
+            // fails the messages coalesced with it. Commit each on its own, in order, so only that one fails.
+            log.warn("Commit of {} messages to conversation {} failed, retrying them one by one: {}",
+                    batch.size(), conversationId, error.getMessage());
+            CompletableFuture<Void> retries = CompletableFuture.completedFuture(null);
+            for (Pending entry : batch) {
+                retries = retries.handle((ignored, failure) -> null)
+                        .thenCompose(ignored -> commit(conversationId, List.of(entry)));
+            }
+        });
+    }
+
+    // Strictly increasing on this node: the submission millisecond, then a counter within it
+    private String nextMessageId() {
+        long now = System.currentTimeMillis();
+        if (now > lastIdMillis) {
+            lastIdMillis = now;
+            idSequence = 0;
+        } else if (++idSequence == 1000) {
+            lastIdMillis++;
+            idSequence = 0;
+        }
+        return String.format("%013d%03d", lastIdMillis, idSequence) + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    // Commits the batch as one write. Its messages' futures are completed on success, and on failure unless
+    // it is a coalesced batch that flush retries message by message.
+    private CompletableFuture<Void> commit(String conversationId, List<Pending> batch) {
+        List<MessageCommit.NewMessage> messages = new ArrayList<>();
+        for (Pending entry : batch) {
+            MessageWrite write = entry.write();
+            messages.add(new MessageCommit.NewMessage(entry.messageId(), write.messageData(), write.sharedDocId(), write.recipientUid()));
+        }
+        // Every participant other than the sender gets one more unread message
+        Map<String, Integer> unreadIncrements = new HashMap<>();
+        for (Pending entry : batch) {
+            for (String participant : entry.write().participants()) {
+                if (!participant.equals(entry.write().senderUid())) {
+                    unreadIncrements.merge(participant, 1, Integer::sum);
+                }
+            }
+        }
+        MessageWrite latest = batch.get(batch.size() - 1).write();
+        MessageCommit commit = new MessageCommit(
+                conversationId, latest.participants(), latest.lastMessage(), messages, unreadIncrements);
+
+        batchSize.record(batch.size());
+        long start = System.nanoTime();
+        CompletableFuture<Void> committed;
+        try {
+            committed = metadataStore.commitMessages(commit);
+        } catch (RuntimeException e) {
+            committed = CompletableFuture.failedFuture(e);
+        }
+        return committed.whenComplete((result, error) -> {
+            meterRegistry.timer("locker.messages.commit", "outcome", error == null ? "success" : "failure")
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (error != null) {
+                failures.increment();
+                if (batch.size() == 1 || !notApplied(error)) {
+                    log.error("Commit of {} message(s) to conversation {} failed", batch.size(), conversationId, error);
+                    batch.forEach(entry -> entry.committed().completeExceptionally(error));
+                }
+                return;
+            }
+            for (Pending entry : batch) {
+                if (entry.write().sharedDocId() != null) {
+                    fileMetadataRepository.evict(entry.write().sharedDocId());
+                }
+                entry.committed().complete(null);
+            }
+        });
+    }
+
+    // True only if the store rejected the commit before applying any of it: Firestore's NOT_FOUND or
+    // FAILED_PRECONDITION (the sharedWith update of a missing file), or the embedded store's missing file
+    static boolean notApplied(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof NoSuchElementException) {
+                return true;
+            }
+            if (cause instanceof FirestoreException firestore && firestore.getStatus() != null) {
+                return isRejection(firestore.getStatus().getCode().name());
+            }
+            if (cause instanceof ApiException api) {
+                return isRejection(api.getStatusCode().getCode().name());
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRejection(String code) {
+        return code.equals("NOT_FOUND") || code.equals("FAILED_PRECONDITION");
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.digitallocker.service;
+
+import com.google.cloud.Timestamp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Position in the (timestamp, messageId) ordering of a conversation's messages, handed to clients as an opaque token.
+// The inbox uses the same shape for its (lastUpdated, conversationId) ordering.
+public record MessageCursor(Timestamp timestamp, String messageId) {
+
+    public String encode() {
+        String raw = timestamp.getSeconds() + ":" + timestamp.getNanos() + ":" + messageId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Throws IllegalArgumentException for tokens we didn't issue
+    public static MessageCursor decode(String token) {
+        String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        String[] parts = raw.split(":", 3);
+        if (parts.length != 3 || parts[2].isEmpty()) {
+            throw new IllegalArgumentException("Malformed message cursor");
+        }
+        Timestamp timestamp = Timestamp.ofTimeSecondsAndNanos(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+        return new MessageCursor(timestamp, parts[2]);
+    }
+}
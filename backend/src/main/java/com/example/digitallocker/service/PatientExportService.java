@@ -0,0 +1,270 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.FileQuery;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.observability.Stages;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.storage.BlobStore;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ Streams every document of a patient that the caller may access as one zip archive.
+
+ The patient's files are listed page by page (`page-size`), and each file is prepared on a shared pool of
+ `parallelism` threads: metadata read, the same access rule as a single download (AccessIndex), key
+ unwrap, blob fetch and decrypt (and decompression for files compressed at upload). At most `read-ahead`
+ files of one export are prepared at a time, and each prepared file is added to the zip as soon as it
+ is ready, in whatever order they complete. Files larger than `max-buffered-size` are not prepared in
+ memory: the writer decrypts them straight into the zip when their turn comes. So an export holds at
+ most read-ahead x max-buffered-size bytes of plaintext, however large the record, and never writes
+ plaintext to disk.
+
+ Entries are deflated at `zip-level` if the file was compressible at upload (it has a codec), and kept
+ uncompressed otherwise (stored, or deflate level 0 for files the writer decrypts itself). Entry names
+ are the original filenames without any directory part, made unique within the archive.
+
+ Published metrics: "locker.export.files" and the "export" stage (see Stages).
+ */
+@Service
+public class PatientExportService {
+
+    // One prepared file: its plaintext and CRC-32, or null if the writer decrypts it itself. SKIPPED if the
+    // caller may not access the file (or it no longer exists).
+    private record Prepared(FileMetadata doc, SecretKey key, ByteArrayOutputStream content, long crc) {}
+
+    private static final Prepared SKIPPED = new Prepared(null, null, null, 0);
+
+    private final MetadataStore metadataStore;
+    private final FileMetadataRepository fileMetadataRepository;
+    private final AccessIndex accessIndex;
+    private final KeyHierarchy keyHierarchy;
+    private final EncryptionService encryptionService;
+    private final BlobStore blobStore;
+    private final Stages stages;
+    private final int readAhead;
+    private final long maxBufferedSize;
+    private final int pageSize;
+    private final int zipLevel;
+    private final Counter exportedFiles;
+    private final ExecutorService pool;
+
+    public PatientExportService(MetadataStore metadataStore,
+                                FileMetadataRepository fileMetadataRepository,
+                                AccessIndex accessIndex,
+                                KeyHierarchy keyHierarchy,
+                                EncryptionService encryptionService,
+                                BlobStore blobStore,
+                                Stages stages,
+                                @Value("${locker.export.parallelism:0}") int parallelism,
+                                @Value("${locker.export.read-ahead:8}") int readAhead,
+                                @Value("${locker.export.max-buffered-size:8MB}") DataSize maxBufferedSize,
+                                @Value("${locker.export.page-size:100}") int pageSize,
+                                @Value("${locker.export.zip-level:1}") int zipLevel,
+                                MeterRegistry meterRegistry) {
+        this.metadataStore = metadataStore;
+        this.fileMetadataRepository = fileMetadataRepository;
+        this.accessIndex = accessIndex;
+        this.keyHierarchy = keyHierarchy;
+        this.encryptionService = encryptionService;
+        this.blobStore = blobStore;
+        this.stages = stages;
+        this.readAhead = Math.max(1, readAhead);
+        this.maxBufferedSize = maxBufferedSize.toBytes();
+        this.pageSize = Math.max(1, pageSize);
+        this.zipLevel = zipLevel;
+        this.exportedFiles = meterRegistry.counter("locker.export.files");
+
+        // 0 means "one per file prepared ahead, but at least half the cores": preparing a file mostly waits on the
+        // blob store, so read-ahead only helps with as many threads. Tasks carry the export's trace context.
+        int threads = parallelism > 0 ? parallelism
+                : Math.max(this.readAhead, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = ContextExecutorService.wrap(Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "export-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), ContextSnapshotFactory.builder().build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /*
+     Writes the zip of the patient's documents that the caller (uid with Spring role, e.g. ROLE_doctor) may
+     access to `out`, which is left open. Returns the number of files in the archive. If a file fails, the
+     export stops with the exception and the archive is left unfinished, so the client can't mistake it
+     for a complete record.
+     */
+    public int export(String uid, String role, String patientUid, OutputStream out) throws Exception {
+        return stages.observe("export", () -> {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            CompletionService<Prepared> prepared = new ExecutorCompletionService<>(pool);
+            Set<Future<Prepared>> pending = new HashSet<>();
+            Set<String> names = new HashSet<>();
+            int written = 0;
+            try {
+                // A patient's own export only lists what is visible to them; for everyone else the access rule decides
+                FileQuery query = new FileQuery.ByOwner(patientUid, "ROLE_patient".equals(role));
+                FileCursor cursor = null;
+                do {
+                    List<FileMetadata> page = metadataStore.queryFiles(query, cursor, pageSize).get();
+                    for (FileMetadata listed : page) {
+                        if (pending.size() >= readAhead) {
+                            written += write(zip, next(prepared, pending), names);
+                        }
+                        String docId = listed.docId();
+                        pending.add(prepared.submit(() -> prepare(uid, role, docId)));
+                    }
+                    cursor = page.size() < pageSize ? null : new FileCursor(page.getLast().createdAt(), page.getLast().docId());
+                } while (cursor != null);
+                while (!pending.isEmpty()) {
+                    written += write(zip, next(prepared, pending), names);
+                }
+                zip.finish();
+                return written;
+            } finally {
+                for (Future<Prepared> future : pending) {
+                    future.cancel(true);
+                }
+            }
+        });
+    }
+
+    private Prepared prepare(String uid, String role, String docId) throws Exception {
+        Optional<FileMetadata> found = fileMetadataRepository.findById(docId);
+        if (found.isEmpty() || accessIndex.accessType(uid, role, found.get()) == null) {
+            return SKIPPED;
+        }
+        FileMetadata doc = found.get();
+        SecretKey key = keyHierarchy.fileKey(doc);
+        long size = plaintextSize(doc);
+        if (size > maxBufferedSize) {
+            return new Prepared(doc, key, null, 0);
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+        CRC32 crc = new CRC32();
+        decrypt(doc, key, new CheckedOutputStream(content, crc));
+        return new Prepared(doc, key, content, crc.getValue());
+    }
+
+    private Prepared next(CompletionService<Prepared> prepared, Set<Future<Prepared>> pending) throws Exception {
+        Future<Prepared> done = prepared.take();
+        pending.remove(done);
+        try {
+            return done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    private int write(ZipOutputStream zip, Prepared prepared, Set<String> names) throws Exception {
+        FileMetadata doc = prepared.doc();
+        if (doc == null) {
+            return 0;
+        }
+        ZipEntry entry = new ZipEntry(entryName(doc, names));
+        if (doc.createdAt() != null) {
+            entry.setTime(doc.createdAt().toDate().getTime());
+        }
+        if (doc.codec() == null && prepared.content() != null) {
+            // Incompressible and already in memory: stored as is, with the CRC computed while preparing it
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(prepared.content().size());
+            entry.setCompressedSize(prepared.content().size());
+            entry.setCrc(prepared.crc());
+        } else {
+            zip.setLevel(doc.codec() != null ? zipLevel : Deflater.NO_COMPRESSION);
+        }
+        zip.putNextEntry(entry);
+        if (prepared.content() != null) {
+            prepared.content().writeTo(zip);
+        } else {
+            decrypt(doc, prepared.key(), zip);
+        }
+        zip.closeEntry();
+        exportedFiles.increment();
+        return 1;
+    }
+
+    // Writes the file as uploaded to `out`, which is left open
+    private void decrypt(FileMetadata doc, SecretKey key, OutputStream out) throws Exception {
+        byte[] iv = Base64.getDecoder().decode(doc.iv());
+        if (doc.encryptionVersion() != EncryptionService.VERSION_SEGMENTED) {
+            byte[] blob = blobStore.readAll(doc.storagePath());
+            out.write(encryptionService.decryptFile(new EncryptionService.EncryptedData(blob, iv), key));
+            return;
+        }
+        SegmentedAesGcm.Header header = new SegmentedAesGcm.Header(iv, doc.segmentSize(), doc.plaintextSize());
+        try (InputStream in = blobStore.open(doc.storagePath())) {
+            OutputStream decoded = ContentCodec.decode(doc.codec(), out);
+            try {
+                encryptionService.decryptStream(key, header, in, decoded);
+                ContentCodec.finish(decoded);
+            } finally {
+                ContentCodec.end(decoded);
+            }
+        }
+    }
+
+    private long plaintextSize(FileMetadata doc) throws IOException {
+        if (doc.encryptionVersion() != EncryptionService.VERSION_SEGMENTED) {
+            // Single-shot blobs record no size; the ciphertext is the plaintext plus the GCM tag
+            BlobStore.BlobStat stat = blobStore.stat(doc.storagePath());
+            return stat != null ? stat.size() : 0;
+        }
+        return doc.codec() != null ? doc.originalSize() : doc.plaintextSize();
+    }
+
+    // The original filename without any directory part (so extracting can't write outside the target
+    // directory), numbered if the archive already has an entry of that name
+    static String entryName(FileMetadata doc, Set<String> names) {
+        String name = doc.originalFilename();
+        if (name != null) {
+            name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).strip();
+        }
+        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            name = doc.docId();
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String candidate = name;
+        for (int n = 2; !names.add(candidate); n++) {
+            candidate = base + " (" + n + ")" + extension;
+        }
+        return candidate;
+    }
+}
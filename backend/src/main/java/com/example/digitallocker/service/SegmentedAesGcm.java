@@ -0,0 +1,207 @@
+package com.example.digitallocker.service;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.function.LongConsumer;
+
+/*
+ Streaming AES-GCM in fixed-size authenticated segments (encryptionVersion 2 in file_metadata).
+
+ Blob layout:
+   segment_0 || segment_1 || ... || segment_(n-1)
+   segment_i = ciphertext_i || tag_i                (tag is 16 bytes)
+   nonce_i   = noncePrefix (7 bytes) || i (4 bytes, big endian) || lastSegmentFlag (1 byte, 0x00 or 0x01)
+
+ Every segment except the last carries exactly segmentSize plaintext bytes, the last one carries
+ 0..segmentSize bytes (an empty file is a single empty last segment). Because the segment index and the
+ last-segment flag are part of each nonce, reordering, dropping or truncating segments fails authentication.
+ The nonce prefix, segment size and plaintext length are stored in file_metadata, not in the blob.
+
+ Each method optionally reports the nanoseconds spent in the cipher for every segment (cipherNanos), so
+ callers can time the crypto work apart from the stream I/O it is interleaved with.
+ */
+public final class SegmentedAesGcm {
+
+    public static final int NONCE_PREFIX_LENGTH = 7;
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final LongConsumer UNTIMED = nanos -> {};
+
+    // Everything needed (besides the key) to decrypt a segmented blob
+    public record Header(byte[] noncePrefix, int segmentSize, long plaintextLength) {}
+
+    private final int segmentSize;
+
+    public SegmentedAesGcm(int segmentSize) {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1024 bytes: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public int segmentSize() {
+        return segmentSize;
+    }
+
+    // Encrypts the whole input stream to the output stream. Holds at most one plaintext and one sealed segment in memory.
+    public Header encrypt(SecretKey key, InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        return encrypt(key, in, out, UNTIMED);
+    }
+
+    public Header encrypt(SecretKey key, InputStream in, OutputStream out, LongConsumer cipherNanos)
+            throws IOException, GeneralSecurityException {
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] plain = new byte[segmentSize];
+        byte[] sealed = new byte[segmentSize + TAG_LENGTH];
+        long plaintextLength = 0;
+        int segment = 0;
+
+        int filled = in.readNBytes(plain, 0, segmentSize);
+        while (true) {
+            // Look one byte ahead so we know whether this is the last segment before sealing it
+            int next = filled == segmentSize ? in.read() : -1;
+            boolean last = next == -1;
+
+            long started = System.nanoTime();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(noncePrefix, segment, last)));
+            int sealedLength = cipher.doFinal(plain, 0, filled, sealed, 0);
+            cipherNanos.accept(System.nanoTime() - started);
+            out.write(sealed, 0, sealedLength);
+            plaintextLength += filled;
+
+            if (last) {
+                return new Header(noncePrefix, segmentSize, plaintextLength);
+            }
+            segment = nextSegment(segment);
+            plain[0] = (byte) next;
+            filled = 1 + in.readNBytes(plain, 1, segmentSize - 1);
+        }
+    }
+
+    // Decrypts a complete segmented blob. Each segment is verified before any of its plaintext is written.
+    public long decrypt(SecretKey key, Header header, InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        return decrypt(key, header, in, out, UNTIMED);
+    }
+
+    public long decrypt(SecretKey key, Header header, InputStream in, OutputStream out, LongConsumer cipherNanos)
+            throws IOException, GeneralSecurityException {
+        int sealedSize = header.segmentSize() + TAG_LENGTH;
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] sealed = new byte[sealedSize];
+        byte[] plain = new byte[header.segmentSize()];
+        long plaintextLength = 0;
+        int segment = 0;
+
+        int filled = in.readNBytes(sealed, 0, sealedSize);
+        while (true) {
+            int next = filled == sealedSize ? in.read() : -1;
+            boolean last = next == -1;
+
+            long started = System.nanoTime();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(header.noncePrefix(), segment, last)));
+            int plainLength = cipher.doFinal(sealed, 0, filled, plain, 0);
+            cipherNanos.accept(System.nanoTime() - started);
+            out.write(plain, 0, plainLength);
+            plaintextLength += plainLength;
+
+            if (last) {
+                return plaintextLength;
+            }
+            segment = nextSegment(segment);
+            sealed[0] = (byte) next;
+            filled = 1 + in.readNBytes(sealed, 1, sealedSize - 1);
+        }
+    }
+
+    // Decrypts only the segments covering plaintext bytes [from, to] (inclusive) and writes exactly that slice.
+    // The channel must already be positioned at ciphertextOffset(from / segmentSize).
+    public void decryptRange(SecretKey key, Header header, ReadableByteChannel in, long from, long to, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        decryptRange(key, header, in, from, to, out, UNTIMED);
+    }
+
+    public void decryptRange(SecretKey key, Header header, ReadableByteChannel in, long from, long to, OutputStream out,
+                             LongConsumer cipherNanos) throws IOException, GeneralSecurityException {
+        if (from < 0 || to < from || to >= header.plaintextLength()) {
+            throw new IllegalArgumentException("Invalid plaintext range " + from + "-" + to + " of " + header.plaintextLength());
+        }
+        int segmentSize = header.segmentSize();
+        long lastSegmentOfBlob = segmentCount(header.plaintextLength(), segmentSize) - 1;
+        long firstSegment = from / segmentSize;
+        long lastSegment = to / segmentSize;
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        ByteBuffer sealed = ByteBuffer.allocate(segmentSize + TAG_LENGTH);
+        byte[] plain = new byte[segmentSize];
+
+        for (long segment = firstSegment; segment <= lastSegment; segment++) {
+            boolean last = segment == lastSegmentOfBlob;
+            long segmentStart = segment * segmentSize;
+            int plainLength = (int) Math.min(segmentSize, header.plaintextLength() - segmentStart);
+
+            sealed.clear().limit(plainLength + TAG_LENGTH);
+            while (sealed.hasRemaining()) {
+                if (in.read(sealed) < 0) {
+                    throw new EOFException("Blob ended inside segment " + segment);
+                }
+            }
+
+            long started = System.nanoTime();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce(header.noncePrefix(), (int) segment, last)));
+            cipher.doFinal(sealed.array(), 0, sealed.limit(), plain, 0);
+            cipherNanos.accept(System.nanoTime() - started);
+
+            int sliceStart = segment == firstSegment ? (int) (from - segmentStart) : 0;
+            int sliceEnd = segment == lastSegment ? (int) (to - segmentStart) + 1 : plainLength;
+            out.write(plain, sliceStart, sliceEnd - sliceStart);
+        }
+    }
+
+    // Byte offset in the blob where the given segment starts
+    public static long ciphertextOffset(long segment, int segmentSize) {
+        return segment * (segmentSize + TAG_LENGTH);
+    }
+
+    // Number of segments a plaintext of the given length is split into (an empty plaintext still has one)
+    public static long segmentCount(long plaintextLength, int segmentSize) {
+        return plaintextLength == 0 ? 1 : (plaintextLength + segmentSize - 1) / segmentSize;
+    }
+
+    public static long ciphertextLength(long plaintextLength, int segmentSize) {
+        return plaintextLength + segmentCount(plaintextLength, segmentSize) * TAG_LENGTH;
+    }
+
+    static byte[] nonce(byte[] noncePrefix, int segment, boolean last) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[7] = (byte) (segment >>> 24);
+        nonce[8] = (byte) (segment >>> 16);
+        nonce[9] = (byte) (segment >>> 8);
+        nonce[10] = (byte) segment;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    private static int nextSegment(int segment) {
+        // The counter is an unsigned 32-bit value; wrapping around would reuse a nonce
+        if (segment == -1) {
+            throw new IllegalStateException("Too many segments for a single blob");
+        }
+        return segment + 1;
+    }
+}
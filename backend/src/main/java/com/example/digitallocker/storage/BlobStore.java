@@ -0,0 +1,45 @@
+package com.example.digitallocker.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ Where encrypted file contents live. Blobs are addressed by the storagePath recorded in file_metadata
+ and only ever hold ciphertext. Selected with locker.storage.backend:
+   - gcs   (default) Firebase / Google Cloud Storage bucket
+   - local           a directory on local disk or SAN (locker.storage.local.root)
+ With locker.storage.cache.enabled, reads go through a node-local disk cache in front of the backend
+ (see CachingBlobStore). Whichever is configured, the application uses it through ObservedBlobStore,
+ which times every call.
+ */
+public interface BlobStore {
+
+    // Bean name of the configured backend, which the cache (when enabled) wraps
+    String BACKEND = "blobBackend";
+
+    // Version and length of a stored blob. The generation changes whenever the blob at a path is rewritten.
+    record BlobStat(long generation, long size) {}
+
+    // Opens a writer for a new blob. The blob becomes readable once the stream is closed successfully;
+    // if writing fails, the caller deletes it.
+    OutputStream create(String path) throws IOException;
+
+    boolean exists(String path) throws IOException;
+
+    // Null if there is no blob at this path
+    BlobStat stat(String path) throws IOException;
+
+    // Whole blob as a stream
+    InputStream open(String path) throws IOException;
+
+    // Whole blob in memory (legacy single-shot blobs are decrypted in one piece)
+    byte[] readAll(String path) throws IOException;
+
+    // Reader positioned at the given byte offset, for range reads
+    ReadableByteChannel openAt(String path, long offset) throws IOException;
+
+    // Returns false if there was nothing to delete
+    boolean delete(String path) throws IOException;
+}
@@ -0,0 +1,349 @@
+package com.example.digitallocker.storage;
+
+import com.example.digitallocker.metadata.FileQuery;
+import com.example.digitallocker.metadata.MetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/*
+ Node-local disk cache of ciphertext blobs in front of the storage backend, so a document opened again
+ and again by a care team is read from local disk instead of Cloud Storage. Blobs stay encrypted in the
+ cache exactly as stored, so caching them exposes nothing the bucket doesn't.
+   - an entry is one file named after the blob's storagePath and generation; every read stats the blob
+     and only uses the entry if the generation still matches, so an overwritten blob is never served
+     stale (a hit costs the metadata round trip, not the content); create/delete through this node drop
+     the entry right away
+   - a miss never waits for the cache: the request reads from the backend as if there were no cache
+     (keeping time-to-first-byte and Range reads as they are), and the whole blob is copied to disk in
+     the background; readAll fills from the bytes it already has instead of fetching them again
+   - concurrent misses for the same blob share one background fill (single-flight)
+   - the cache holds at most `max-size` bytes; Caffeine picks what to evict by recency and frequency
+     (W-TinyLFU), so one large one-off download doesn't flush the documents in daily use
+   - blobs larger than `max-blob-size` bypass the cache
+   - entries left on disk by a previous run are picked up at startup; optionally the `warmup.count`
+     most recently created files are fetched in the background once the application is ready
+ Published metrics: "locker.storage.cache" cache metrics (hits, misses, evictions),
+ "locker.storage.cache.bytes" (bytes on disk), "locker.storage.cache.bytes.saved" (bytes served from
+ disk instead of the backend) and "locker.storage.cache.fills" (blobs copied into the cache).
+ */
+@Component
+@ConditionalOnProperty(name = "locker.storage.cache.enabled", havingValue = "true")
+public class CachingBlobStore implements BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingBlobStore.class);
+    private static final String SUFFIX = ".blob";
+
+    private record CachedBlob(Path file, long generation, long size) {}
+
+    // Where a fill reads the blob from: the backend, or bytes a readAll miss already holds
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private final BlobStore backend;
+    private final MetadataStore metadataStore;
+    private final Path dir;
+    private final long maxBlobSize;
+    private final int warmupCount;
+    private final Cache<String, CachedBlob> cache;
+    private final ConcurrentHashMap<String, CompletableFuture<CachedBlob>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong bytesCached = new AtomicLong();
+    private final AtomicLong fillSequence = new AtomicLong();
+    private final Counter bytesSaved;
+    private final Counter fills;
+
+    public CachingBlobStore(@Qualifier(BlobStore.BACKEND) BlobStore backend,
+                            MetadataStore metadataStore,
+                            @Value("${locker.storage.cache.dir:./blob-cache}") Path dir,
+                            @Value("${locker.storage.cache.max-size:10GB}") DataSize maxSize,
+                            @Value("${locker.storage.cache.max-blob-size:512MB}") DataSize maxBlobSize,
+                            @Value("${locker.storage.cache.warmup.count:0}") int warmupCount,
+                            MeterRegistry meterRegistry) throws IOException {
+        this.backend = backend;
+        this.metadataStore = metadataStore;
+        this.dir = dir.toAbsolutePath().normalize();
+        this.maxBlobSize = Math.min(maxBlobSize.toBytes(), maxSize.toBytes());
+        this.warmupCount = warmupCount;
+        // Weighed in KiB so blob sizes fit Caffeine's int weights
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(Math.max(1, maxSize.toKilobytes()))
+                .weigher((String path, CachedBlob blob) -> (int) Math.min(Integer.MAX_VALUE, (blob.size() + 1023) / 1024))
+                .removalListener((String path, CachedBlob blob, RemovalCause cause) -> {
+                    if (blob != null) {
+                        bytesCached.addAndGet(-blob.size());
+                        deleteQuietly(blob.file());
+                    }
+                })
+                .executor(Runnable::run) // Evicted files are deleted right away, keeping bytesCached exact
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "locker.storage.cache");
+        Gauge.builder("locker.storage.cache.bytes", bytesCached, AtomicLong::get)
+                .description("Ciphertext bytes held in the local blob cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.bytesSaved = Counter.builder("locker.storage.cache.bytes.saved")
+                .description("Bytes served from the local blob cache instead of the storage backend")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.fills = Counter.builder("locker.storage.cache.fills")
+                .description("Blobs copied from the storage backend into the local blob cache")
+                .register(meterRegistry);
+
+        Files.createDirectories(this.dir);
+        reload();
+    }
+
+    // ----------------------------
+    // BlobStore
+    // ----------------------------
+
+    @Override
+    public OutputStream create(String path) throws IOException {
+        cache.invalidate(path);
+        return backend.create(path);
+    }
+
+    @Override
+    public boolean exists(String path) throws IOException {
+        return backend.exists(path);
+    }
+
+    @Override
+    public BlobStat stat(String path) throws IOException {
+        return backend.stat(path);
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        BlobStat stat = backend.stat(path);
+        CachedBlob cached = lookup(path, stat);
+        if (cached != null) {
+            try {
+                InputStream in = Files.newInputStream(cached.file());
+                bytesSaved.increment(cached.size());
+                return in;
+            } catch (NoSuchFileException e) {
+                cache.invalidate(path);
+            }
+        }
+        InputStream in = backend.open(path);
+        fill(path, stat, () -> backend.open(path));
+        return in;
+    }
+
+    @Override
+    public byte[] readAll(String path) throws IOException {
+        BlobStat stat = backend.stat(path);
+        CachedBlob cached = lookup(path, stat);
+        if (cached != null) {
+            try {
+                byte[] content = Files.readAllBytes(cached.file());
+                bytesSaved.increment(content.length);
+                return content;
+            } catch (NoSuchFileException e) {
+                cache.invalidate(path);
+            }
+        }
+        byte[] content = backend.readAll(path);
+        fill(path, stat, () -> new ByteArrayInputStream(content));
+        return content;
+    }
+
+    @Override
+    public ReadableByteChannel openAt(String path, long offset) throws IOException {
+        BlobStat stat = backend.stat(path);
+        CachedBlob cached = lookup(path, stat);
+        if (cached != null) {
+            try {
+                FileChannel channel = FileChannel.open(cached.file(), StandardOpenOption.READ);
+                channel.position(offset);
+                bytesSaved.increment(Math.max(0, cached.size() - offset));
+                return channel;
+            } catch (NoSuchFileException e) {
+                cache.invalidate(path);
+            }
+        }
+        ReadableByteChannel channel = backend.openAt(path, offset);
+        fill(path, stat, () -> backend.open(path));
+        return channel;
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        cache.invalidate(path);
+        return backend.delete(path);
+    }
+
+    // ----------------------------
+    // Filling
+    // ----------------------------
+
+    // The cached copy of the blob if it is of the generation the backend has now; records the hit or miss
+    private CachedBlob lookup(String path, BlobStat stat) {
+        if (stat == null) {
+            return null; // Gone from the backend; the read there reports it
+        }
+        CachedBlob peek = cache.policy().getIfPresentQuietly(path);
+        if (peek != null && peek.generation() != stat.generation()) {
+            cache.asMap().remove(path, peek); // Overwritten since it was cached
+        }
+        CachedBlob cached = cache.getIfPresent(path);
+        return cached != null && cached.generation() == stat.generation() ? cached : null;
+    }
+
+    // Copies the blob into the cache on a virtual thread, unless a fill of it is already running; completes
+    // with null if the blob is too large to cache
+    private CompletableFuture<CachedBlob> fill(String path, BlobStat stat, Source source) {
+        if (stat == null || stat.size() > maxBlobSize) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<CachedBlob> mine = new CompletableFuture<>();
+        CompletableFuture<CachedBlob> running = inFlight.putIfAbsent(path, mine);
+        if (running != null) {
+            return running;
+        }
+        Thread.ofVirtual().name("blob-cache-fill").start(() -> {
+            try {
+                mine.complete(copy(path, stat, source));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not cache blob {}: {}", path, e.getMessage());
+                mine.completeExceptionally(e);
+            } finally {
+                inFlight.remove(path, mine);
+            }
+        });
+        return mine;
+    }
+
+    private CachedBlob copy(String path, BlobStat stat, Source source) throws IOException {
+        CachedBlob filled = cache.policy().getIfPresentQuietly(path);
+        if (filled != null && filled.generation() == stat.generation()) {
+            return filled; // Another fill finished between our miss and starting this one
+        }
+        Path file = dir.resolve(fileName(path, stat.generation()));
+        Path temp = dir.resolve(file.getFileName() + ".part");
+        try (InputStream in = source.open()) {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+        CachedBlob blob = new CachedBlob(file, stat.generation(), Files.size(file));
+        bytesCached.addAndGet(blob.size());
+        cache.put(path, blob);
+        fills.increment();
+        return blob;
+    }
+
+    // Waits for the fills running right now; lets tests observe the cache once it has settled
+    void awaitFills() {
+        for (CompletableFuture<CachedBlob> fill : List.copyOf(inFlight.values())) {
+            fill.exceptionally(e -> null).join();
+        }
+    }
+
+    // <base64url(storagePath)>.<generation>.<fill>.blob: the fill number keeps a refill from sharing a file
+    // with an evicted entry whose deletion is still pending
+    private String fileName(String path, long generation) {
+        String encodedPath = Base64.getUrlEncoder().withoutPadding().encodeToString(path.getBytes(StandardCharsets.UTF_8));
+        return encodedPath + "." + generation + "." + fillSequence.incrementAndGet() + SUFFIX;
+    }
+
+    // Re-registers entries a previous run left on disk (one per path) and drops leftovers of interrupted fills
+    private void reload() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                String[] parts = name.split("\\.");
+                if (!name.endsWith(SUFFIX) || parts.length != 4) {
+                    deleteQuietly(file);
+                    continue;
+                }
+                try {
+                    String path = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+                    long generation = Long.parseLong(parts[1]);
+                    fillSequence.accumulateAndGet(Long.parseLong(parts[2]), Math::max);
+                    CachedBlob blob = new CachedBlob(file, generation, Files.size(file));
+                    bytesCached.addAndGet(blob.size());
+                    cache.put(path, blob);
+                } catch (IllegalArgumentException e) {
+                    deleteQuietly(file);
+                }
+            }
+        }
+        log.info("Blob cache at {}: {} entries, {} bytes", dir, cache.estimatedSize(), bytesCached.get());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (warmupCount <= 0) {
+            return;
+        }
+        Thread.ofVirtual().name("blob-cache-warmup").start(() -> {
+            try {
+                // Listings don't carry storagePath, so each recent file is looked up in full
+                List<FileMetadata> recent = metadataStore.queryFiles(new FileQuery.All(), null, warmupCount).get();
+                int fetched = 0;
+                for (FileMetadata listing : recent) {
+                    FileMetadata file = metadataStore.findFile(listing.docId()).get().orElse(null);
+                    if (file == null || file.storagePath() == null) {
+                        continue;
+                    }
+                    String path = file.storagePath();
+                    // One at a time, so warm-up doesn't compete with live traffic for the backend
+                    if (fill(path, backend.stat(path), () -> backend.open(path)).exceptionally(e -> null).join() != null) {
+                        fetched++;
+                    }
+                }
+                log.info("Blob cache warmed up with {} of the {} most recent files", fetched, recent.size());
+            } catch (Exception e) {
+                log.warn("Blob cache warm-up failed: {}", e.getMessage());
+            }
+        });
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete cached blob {}: {}", file, e.getMessage());
+        }
+    }
+}
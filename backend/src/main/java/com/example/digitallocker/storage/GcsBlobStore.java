@@ -0,0 +1,80 @@
+package com.example.digitallocker.storage;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.firebase.cloud.StorageClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+// Blobs in the Firebase Storage bucket (the default backend)
+@Component(BlobStore.BACKEND)
+@ConditionalOnProperty(name = "locker.storage.backend", havingValue = "gcs", matchIfMissing = true)
+public class GcsBlobStore implements BlobStore {
+
+    private final int uploadChunkSize;
+
+    public GcsBlobStore(@Value("${locker.storage.upload-chunk-size:4194304}") int uploadChunkSize) {
+        this.uploadChunkSize = uploadChunkSize;
+    }
+
+    @Override
+    public OutputStream create(String path) {
+        BlobInfo blobInfo = BlobInfo.newBuilder(blobId(path)).setContentType("application/octet-stream").build();
+        // Resumable upload; closing the stream finalizes the object
+        WriteChannel writer = storage().writer(blobInfo);
+        writer.setChunkSize(uploadChunkSize);
+        return Channels.newOutputStream(writer);
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return storage().get(blobId(path)) != null;
+    }
+
+    @Override
+    public BlobStat stat(String path) {
+        Blob blob = storage().get(blobId(path));
+        return blob != null ? new BlobStat(blob.getGeneration(), blob.getSize()) : null;
+    }
+
+    @Override
+    public InputStream open(String path) {
+        return Channels.newInputStream(storage().reader(blobId(path)));
+    }
+
+    @Override
+    public byte[] readAll(String path) {
+        return storage().readAllBytes(blobId(path));
+    }
+
+    @Override
+    public ReadableByteChannel openAt(String path, long offset) throws IOException {
+        ReadChannel reader = storage().reader(blobId(path));
+        reader.seek(offset);
+        return reader;
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return storage().delete(blobId(path));
+    }
+
+    private static Storage storage() {
+        return StorageClient.getInstance().bucket().getStorage();
+    }
+
+    private static BlobId blobId(String path) {
+        return BlobId.of(StorageClient.getInstance().bucket().getName(), path);
+    }
+}
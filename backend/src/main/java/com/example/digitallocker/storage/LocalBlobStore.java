@@ -0,0 +1,169 @@
+package com.example.digitallocker.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Blobs as files under locker.storage.local.root, for on-prem deployments on local disk or SAN.
+   - writes go through a FileChannel into a temporary file that is forced to disk and atomically renamed
+     into place on close, so readers never see a partial blob
+   - range reads are served from memory-mapped windows of the file: the decrypting reader consumes the
+     page cache directly instead of copying through read() calls
+ */
+@Component(BlobStore.BACKEND)
+@ConditionalOnProperty(name = "locker.storage.backend", havingValue = "local")
+public class LocalBlobStore implements BlobStore {
+
+    // Files are mapped in windows of this size, so blobs beyond 2 GiB (and 32-bit address limits) still work
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private final Path root;
+
+    public LocalBlobStore(@Value("${locker.storage.local.root:./blobs}") Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        Files.createDirectories(this.root);
+    }
+
+    @Override
+    public OutputStream create(String path) throws IOException {
+        Path target = resolve(path);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        OutputStream out = Channels.newOutputStream(channel);
+        return new OutputStream() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try (channel) {
+                    channel.force(true);
+                }
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return Files.isRegularFile(resolve(path));
+    }
+
+    // Blobs are replaced by renaming a new file into place, so the modification time identifies the version
+    @Override
+    public BlobStat stat(String path) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(resolve(path), BasicFileAttributes.class);
+            return new BlobStat(attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS), attributes.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        return Files.newInputStream(resolve(path));
+    }
+
+    @Override
+    public byte[] readAll(String path) throws IOException {
+        return Files.readAllBytes(resolve(path));
+    }
+
+    @Override
+    public ReadableByteChannel openAt(String path, long offset) throws IOException {
+        return new MappedReadChannel(FileChannel.open(resolve(path), StandardOpenOption.READ), offset);
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        return Files.deleteIfExists(resolve(path));
+    }
+
+    // storagePath values come from our own metadata, but never let one escape the root
+    private Path resolve(String path) {
+        Path resolved = root.resolve(path).normalize();
+        if (!resolved.startsWith(root) || resolved.equals(root)) {
+            throw new IllegalArgumentException("Invalid storage path: " + path);
+        }
+        return resolved;
+    }
+
+    // Sequential reader over memory-mapped windows of a file, starting at an offset
+    private static final class MappedReadChannel implements ReadableByteChannel {
+        private final FileChannel file;
+        private final long size;
+        private long position;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedReadChannel(FileChannel file, long offset) throws IOException {
+            this.file = file;
+            this.size = file.size();
+            this.position = offset;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!file.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (position >= size) {
+                return -1;
+            }
+            if (window == null || position >= windowStart + window.capacity()) {
+                windowStart = position;
+                window = file.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW, size - windowStart));
+            }
+            ByteBuffer source = window.slice((int) (position - windowStart),
+                    Math.min(dst.remaining(), (int) (windowStart + window.capacity() - position)));
+            int read = source.remaining();
+            dst.put(source);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            file.close();
+        }
+    }
+}
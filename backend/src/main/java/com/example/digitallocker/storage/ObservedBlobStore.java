@@ -0,0 +1,210 @@
+package com.example.digitallocker.storage;
+
+import com.example.digitallocker.observability.Stages;
+import io.micrometer.observation.Observation;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ The BlobStore the application uses: the configured one (the cache when enabled, otherwise the backend),
+ with every call observed as a stage (see Stages): blob.get for reads, blob.put for writes, and
+ blob.exists / blob.stat / blob.delete. A streamed read or write is one observation from open to close,
+ and its bytes are counted when the stream is closed.
+ */
+@Component
+@Primary
+public class ObservedBlobStore implements BlobStore {
+
+    private final BlobStore delegate;
+    private final Stages stages;
+
+    public ObservedBlobStore(@Qualifier(BlobStore.BACKEND) BlobStore backend,
+                             ObjectProvider<CachingBlobStore> cache,
+                             Stages stages) {
+        BlobStore cached = cache.getIfAvailable();
+        this.delegate = cached != null ? cached : backend;
+        this.stages = stages;
+    }
+
+    @Override
+    public OutputStream create(String path) throws IOException {
+        Observation observation = stages.start("blob.put");
+        OutputStream out;
+        try {
+            out = delegate.create(path);
+        } catch (IOException | RuntimeException e) {
+            observation.error(e);
+            observation.stop();
+            throw e;
+        }
+        return new FilterOutputStream(out) {
+            private long bytes;
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    out.close();
+                } catch (IOException | RuntimeException e) {
+                    observation.error(e);
+                    throw e;
+                } finally {
+                    stages.countBytes("blob.put", bytes);
+                    observation.stop();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String path) throws IOException {
+        return call("blob.exists", () -> delegate.exists(path));
+    }
+
+    @Override
+    public BlobStat stat(String path) throws IOException {
+        return call("blob.stat", () -> delegate.stat(path));
+    }
+
+    @Override
+    public InputStream open(String path) throws IOException {
+        Observation observation = stages.start("blob.get");
+        InputStream in;
+        try {
+            in = delegate.open(path);
+        } catch (IOException | RuntimeException e) {
+            observation.error(e);
+            observation.stop();
+            throw e;
+        }
+        return new FilterInputStream(in) {
+            private long bytes;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytes++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read > 0) {
+                    bytes += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    in.close();
+                } finally {
+                    stages.countBytes("blob.get", bytes);
+                    observation.stop();
+                }
+            }
+        };
+    }
+
+    @Override
+    public byte[] readAll(String path) throws IOException {
+        byte[] blob = call("blob.get", () -> delegate.readAll(path));
+        stages.countBytes("blob.get", blob.length);
+        return blob;
+    }
+
+    @Override
+    public ReadableByteChannel openAt(String path, long offset) throws IOException {
+        Observation observation = stages.start("blob.get");
+        ReadableByteChannel channel;
+        try {
+            channel = delegate.openAt(path, offset);
+        } catch (IOException | RuntimeException e) {
+            observation.error(e);
+            observation.stop();
+            throw e;
+        }
+        return new ReadableByteChannel() {
+            private long bytes;
+            private boolean closed;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int read = channel.read(dst);
+                if (read > 0) {
+                    bytes += read;
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    channel.close();
+                } finally {
+                    stages.countBytes("blob.get", bytes);
+                    observation.stop();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean delete(String path) throws IOException {
+        return call("blob.delete", () -> delegate.delete(path));
+    }
+
+    private <T> T call(String stage, Stages.StageCall<T> call) throws IOException {
+        try {
+            return stages.observe(stage, call);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.digitallocker.admission;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PriorityLanesTest {
+
+    @Test
+    void bulkWorkLeavesRoomForInteractiveRequests() {
+        PriorityLanes lanes = new PriorityLanes(4, 2, Duration.ZERO, new SimpleMeterRegistry());
+        assertTrue(lanes.acquire(PriorityLanes.Lane.BULK));
+        assertTrue(lanes.acquire(PriorityLanes.Lane.BULK));
+        assertFalse(lanes.acquire(PriorityLanes.Lane.BULK));
+        assertTrue(lanes.acquire(PriorityLanes.Lane.INTERACTIVE));
+        assertTrue(lanes.acquire(PriorityLanes.Lane.INTERACTIVE));
+        assertFalse(lanes.acquire(PriorityLanes.Lane.INTERACTIVE));
+
+        lanes.release();
+        assertFalse(lanes.acquire(PriorityLanes.Lane.BULK), "three slots in use, bulk may only use two");
+        assertTrue(lanes.acquire(PriorityLanes.Lane.INTERACTIVE));
+    }
+
+    @Test
+    void aFreedSlotGoesToAWaitingInteractiveRequestFirst() throws Exception {
+        PriorityLanes lanes = new PriorityLanes(1, 1, Duration.ofSeconds(10), new SimpleMeterRegistry());
+        assertTrue(lanes.acquire(PriorityLanes.Lane.INTERACTIVE));
+
+        List<PriorityLanes.Lane> served = new CopyOnWriteArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletableFuture<Void> bulk = CompletableFuture.runAsync(() -> serve(lanes, PriorityLanes.Lane.BULK, served), executor);
+            awaitWaiting(PriorityLanes.Lane.BULK, lanes);
+            CompletableFuture<Void> interactive = CompletableFuture.runAsync(() -> serve(lanes, PriorityLanes.Lane.INTERACTIVE, served), executor);
+            awaitWaiting(PriorityLanes.Lane.INTERACTIVE, lanes);
+
+            lanes.release();
+            CompletableFuture.allOf(bulk, interactive).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of(PriorityLanes.Lane.INTERACTIVE, PriorityLanes.Lane.BULK), served);
+    }
+
+    private static void serve(PriorityLanes lanes, PriorityLanes.Lane lane, List<PriorityLanes.Lane> served) {
+        assertTrue(lanes.acquire(lane));
+        served.add(lane);
+        lanes.release();
+    }
+
+    private static void awaitWaiting(PriorityLanes.Lane lane, PriorityLanes lanes) throws InterruptedException {
+        while (lanes.waiting(lane) == 0) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.digitallocker.admission;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    @Test
+    void admitsTheBurstThenOneRequestPerIntervalPerUserAndClass() {
+        // Downloads: 10 per second, burst 5; uploads and exports unlimited
+        RateLimiter limiter = new RateLimiter(1, 1, 10, 5, 0, 0, 0, 0, 1000, Duration.ofMinutes(10));
+        long now = TimeUnit.SECONDS.toNanos(100);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire(EndpointClass.DOWNLOAD, "d1", now));
+        }
+        long wait = limiter.tryAcquire(EndpointClass.DOWNLOAD, "d1", now);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), wait, "the next token is one interval away");
+
+        // Other users and other classes have their own buckets
+        assertEquals(0, limiter.tryAcquire(EndpointClass.DOWNLOAD, "d2", now));
+        assertEquals(0, limiter.tryAcquire(EndpointClass.LISTING, "d1", now));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.tryAcquire(EndpointClass.UPLOAD, "d1", now));
+        }
+
+        // A rejected request takes no token
+        assertEquals(0, limiter.tryAcquire(EndpointClass.DOWNLOAD, "d1", now + wait));
+        assertTrue(limiter.tryAcquire(EndpointClass.DOWNLOAD, "d1", now + wait) > 0);
+        // An idle bucket refills, but never beyond the burst
+        long later = now + TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.tryAcquire(EndpointClass.DOWNLOAD, "d1", later));
+        }
+        assertTrue(limiter.tryAcquire(EndpointClass.DOWNLOAD, "d1", later) > 0);
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.digitallocker.bench;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.example.digitallocker.service.CompletableFutures.toCompletable;
+
+/*
+ Load benchmark for the request execution models, against a stubbed Firestore whose RPCs complete
+ after a fixed latency (a slow region). Each simulated request has the shape of the doctor listing:
+ one document read, then two queries in parallel.
+
+   - platform threads, blocking: a 200-thread pool (Tomcat's default max) calling ApiFuture.get()
+   - virtual threads, blocking:  the same blocking code on a virtual thread per request
+   - async composition:          the ApiFutures composed as CompletableFutures, no thread waits
+
+ Requests arrive at a fixed rate above what 200 blocked threads can serve. Reports max concurrent
+ in-flight requests and latency percentiles measured from arrival to completion.
+
+ Not a unit test; run it from backend/ after `mvn test-compile`:
+   java -cp "target/test-classes:target/classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)" \
+        com.example.digitallocker.bench.RequestThreadingBenchmark
+ */
+public final class RequestThreadingBenchmark {
+
+    private static final int REQUESTS = 10_000;
+    private static final int ARRIVALS_PER_SECOND = 2_000;
+    private static final long STUB_LATENCY_MS = 100;
+    private static final int TOMCAT_MAX_THREADS = 200;
+
+    public static void main(String[] args) throws Exception {
+        ScheduledExecutorService firestoreStub = Executors.newScheduledThreadPool(4);
+        try {
+            report("platform threads, blocking", runBlocking(Executors.newFixedThreadPool(TOMCAT_MAX_THREADS), firestoreStub));
+            report("virtual threads, blocking", runBlocking(Executors.newVirtualThreadPerTaskExecutor(), firestoreStub));
+            report("async composition", runAsync(firestoreStub));
+        } finally {
+            firestoreStub.shutdownNow();
+        }
+    }
+
+    // One stubbed Firestore RPC: an ApiFuture completed by the stub after the configured latency
+    private static ApiFuture<String> stubCall(ScheduledExecutorService firestoreStub) {
+        SettableApiFuture<String> future = SettableApiFuture.create();
+        firestoreStub.schedule(() -> future.set("ok"), STUB_LATENCY_MS, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private static void blockingRequest(ScheduledExecutorService firestoreStub) throws Exception {
+        stubCall(firestoreStub).get();
+        ApiFuture<String> assigned = stubCall(firestoreStub);
+        ApiFuture<String> shared = stubCall(firestoreStub);
+        assigned.get();
+        shared.get();
+    }
+
+    private static CompletableFuture<Void> asyncRequest(ScheduledExecutorService firestoreStub) {
+        return toCompletable(stubCall(firestoreStub)).thenCompose(doc -> CompletableFuture.allOf(
+                toCompletable(stubCall(firestoreStub)),
+                toCompletable(stubCall(firestoreStub))));
+    }
+
+    private static Recorder runBlocking(ExecutorService server, ScheduledExecutorService firestoreStub) throws InterruptedException {
+        Recorder recorder = new Recorder();
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            long arrival = recorder.awaitArrival(i);
+            int request = i;
+            server.execute(() -> {
+                recorder.begin();
+                try {
+                    blockingRequest(firestoreStub);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    recorder.end(request, arrival);
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        server.shutdown();
+        return recorder;
+    }
+
+    private static Recorder runAsync(ScheduledExecutorService firestoreStub) throws InterruptedException {
+        Recorder recorder = new Recorder();
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            long arrival = recorder.awaitArrival(i);
+            int request = i;
+            recorder.begin();
+            asyncRequest(firestoreStub).whenComplete((result, error) -> {
+                recorder.end(request, arrival);
+                done.countDown();
+            });
+        }
+        done.await();
+        return recorder;
+    }
+
+    private static void report(String mode, Recorder recorder) {
+        long[] sorted = recorder.latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-28s max in-flight %5d   p50 %6d ms   p99 %6d ms   max %6d ms%n", mode,
+                recorder.maxInFlight.get(),
+                TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length / 2]),
+                TimeUnit.NANOSECONDS.toMillis(sorted[(int) (sorted.length * 0.99)]),
+                TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length - 1]));
+    }
+
+    private static final class Recorder {
+        private final long start = System.nanoTime();
+        private final long[] latencies = new long[REQUESTS];
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        // Paces the load generator and returns the arrival time of the given request
+        long awaitArrival(int request) {
+            long arrival = start + request * 1_000_000_000L / ARRIVALS_PER_SECOND;
+            long wait;
+            while ((wait = arrival - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            return arrival;
+        }
+
+        void begin() {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        }
+
+        void end(int request, long arrival) {
+            inFlight.decrementAndGet();
+            latencies[request] = System.nanoTime() - arrival;
+        }
+    }
+}
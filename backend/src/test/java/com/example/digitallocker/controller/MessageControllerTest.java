@@ -0,0 +1,91 @@
+package com.example.digitallocker.controller;
+
+import com.example.digitallocker.metadata.EmbeddedMetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.service.AccessIndex;
+import com.example.digitallocker.service.DirectoryService;
+import com.example.digitallocker.service.MessageCommitPipeline;
+import com.google.cloud.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageControllerTest {
+
+    @TempDir
+    Path dir;
+
+    private EmbeddedMetadataStore store;
+    private FileMetadataRepository repository;
+    private AccessIndex accessIndex;
+    private MessageCommitPipeline pipeline;
+    private MessageController controller;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        store = new EmbeddedMetadataStore(dir, false);
+        repository = new FileMetadataRepository(store, true, 100, Duration.ofMinutes(5), meters);
+        accessIndex = new AccessIndex(true, store, repository);
+        pipeline = new MessageCommitPipeline(store, repository, Duration.ofMillis(1), 100, meters);
+        // Emails are "<uid>@example.com"; no Firebase lookup
+        DirectoryService directory = new DirectoryService(false, 100, Duration.ofMinutes(1), Duration.ofMinutes(1), meters) {
+            @Override
+            public String requireUid(String email) {
+                return email.substring(0, email.indexOf('@'));
+            }
+        };
+        controller = new MessageController(store, accessIndex, directory, pipeline, repository);
+
+        repository.create(new FileMetadata("labs", "p1", "labs.pdf", "encrypted_files/labs", "key", "iv", 2,
+                16384, 100L, null, null, null, "aes-kw", 1, Timestamp.now(), true, null, List.of(), List.of()), false);
+        store.assignPatient("d1", "p1").get();
+        accessIndex.rebuild();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        SecurityContextHolder.clearContext();
+        pipeline.shutdown();
+        store.close();
+    }
+
+    @Test
+    void anUnassignedDoctorCannotShareAnotherPatientsFile() throws Exception {
+        assertEquals(HttpStatus.FORBIDDEN, share("d2", "labs", "d3").getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, share("d2", "missing", "d3").getStatusCode());
+
+        assertNull(accessIndex.accessType("d3", "ROLE_doctor", repository.findById("labs").orElseThrow()));
+        assertEquals(List.of(), store.findFile("labs").get().orElseThrow().sharedWith());
+    }
+
+    @Test
+    void anAssignedDoctorCanShareTheFile() throws Exception {
+        assertEquals(HttpStatus.OK, share("d1", "labs", "d3").getStatusCode());
+
+        assertEquals("shared", accessIndex.accessType("d3", "ROLE_doctor", repository.findById("labs").orElseThrow()));
+    }
+
+    private ResponseEntity<String> share(String doctorUid, String docId, String recipientUid) throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                doctorUid, null, List.of(new SimpleGrantedAuthority("ROLE_doctor"))));
+        return controller.shareDocument(Map.of("recipientEmail", recipientUid + "@example.com", "textMessage", "labs",
+                "docId", docId, "originalFilename", "labs.pdf")).get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.digitallocker.metadata;
+
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.service.FileCursor;
+import com.example.digitallocker.service.MessageCursor;
+import com.google.cloud.Timestamp;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddedMetadataStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void answersListingQueriesInOrderWithCursors() throws Exception {
+        EmbeddedMetadataStore store = new EmbeddedMetadataStore(dir, false);
+        store.createFiles(List.of(
+                file("a", "p1", 1, true),
+                file("b", "p1", 2, false),
+                file("c", "p2", 3, true),
+                file("d", "p3", 4, true)), Set.of()).get();
+        store.setVisibleToPatient("b", true).get();
+
+        assertEquals(List.of("b", "a"), ids(store.queryFiles(new FileQuery.ByOwner("p1", true), null, 10).get()));
+        assertEquals(List.of("c", "b", "a"), ids(store.queryFiles(new FileQuery.ByOwners(List.of("p1", "p2")), null, 10).get()));
+
+        List<FileMetadata> first = store.queryFiles(new FileQuery.All(), null, 2).get();
+        assertEquals(List.of("d", "c"), ids(first));
+        FileCursor cursor = new FileCursor(first.get(1).createdAt(), first.get(1).docId());
+        assertEquals(List.of("b", "a"), ids(store.queryFiles(new FileQuery.All(), cursor, 2).get()));
+        assertNull(first.get(0).wrappedAesKey(), "listings never carry key material");
+
+        store.commitMessages(new MessageCommit("p1_p3", List.of("p1", "p3"), "here",
+                List.of(new MessageCommit.NewMessage("m1", Map.of("senderUid", "p1", "textMessage", "here"), "a", "p3")),
+                Map.of("p3", 1))).get();
+        assertEquals(List.of("a"), ids(store.queryFiles(new FileQuery.SharedWith("p3"), null, 10).get()));
+        assertTrue(store.findFile("a").get().orElseThrow().sharedWith().contains("p3"));
+        assertTrue(store.commitMessages(new MessageCommit("p1_p3", List.of("p1", "p3"), "gone",
+                List.of(new MessageCommit.NewMessage("m2", Map.of(), "missing", "p3")), Map.of())).isCompletedExceptionally());
+    }
+
+    @Test
+    void replaysTheLogAfterRestart() throws Exception {
+        EmbeddedMetadataStore store = new EmbeddedMetadataStore(dir, true);
+        store.createFiles(List.of(file("a", "p1", 1, true)), Set.of()).get();
+        store.assignPatient("d1", "p1").get();
+        for (int i = 0; i < 3; i++) {
+            store.commitMessages(new MessageCommit("d1_p1", List.of("d1", "p1"), "m" + i,
+                    List.of(new MessageCommit.NewMessage("m" + i, Map.of("senderUid", "d1", "textMessage", "m" + i), null, null)),
+                    Map.of("p1", 1))).get();
+        }
+        store.markRead("d1_p1", "d1").get();
+        store.close();
+        // A write torn by a crash is dropped on replay
+        Files.writeString(dir.resolve("metadata.wal"), "{\"op\":\"assign\",\"doctorUid\":\"d2\"", StandardOpenOption.APPEND);
+
+        EmbeddedMetadataStore reopened = new EmbeddedMetadataStore(dir, true);
+        assertEquals("p1", reopened.findFile("a").get().orElseThrow().ownerUid());
+        assertEquals(Map.of("d1", List.of("p1")), reopened.allAssignments().get());
+
+        Conversation conversation = reopened.conversationsOf("p1", null, 10).get().get(0);
+        assertEquals("m2", conversation.lastMessage());
+        assertEquals(3L, conversation.unreadCounts().get("p1"));
+        assertEquals(0L, conversation.unreadCounts().get("d1"));
+
+        List<Message> latest = reopened.messages("d1_p1", null, false, 2).get();
+        assertEquals(List.of("m2", "m1"), latest.stream().map(Message::id).toList());
+        MessageCursor oldest = new MessageCursor(latest.get(1).timestamp(), latest.get(1).id());
+        assertEquals(List.of("m0"), reopened.messages("d1_p1", oldest, false, 2).get().stream().map(Message::id).toList());
+        assertEquals("m0", reopened.findMessage("d1_p1", "m0").get().orElseThrow().fields().get("textMessage"));
+
+        // New commits are ordered after everything replayed
+        reopened.commitMessages(new MessageCommit("d1_p1", List.of("d1", "p1"), "m3",
+                List.of(new MessageCommit.NewMessage("m3", Map.of("senderUid", "p1"), null, null)), Map.of("d1", 1))).get();
+        assertEquals("m3", reopened.messages("d1_p1", null, false, 1).get().get(0).id());
+        reopened.close();
+    }
+
+    @Test
+    void countsBlobReferencesAcrossDeduplicatedFiles() throws Exception {
+        EmbeddedMetadataStore store = new EmbeddedMetadataStore(dir, true);
+        FileMetadata original = file("a", "p1", 1, true, "encrypted_files/a", "hash");
+        store.createFiles(List.of(original), Set.of()).get();
+        assertEquals("a", store.findFileByContent("p1", "hash").get().orElseThrow().docId());
+        assertTrue(store.findFileByContent("p2", "hash").get().isEmpty());
+
+        store.createFiles(List.of(file("b", "p1", 2, true, "encrypted_files/a", "hash")), Set.of("encrypted_files/a")).get();
+        assertFalse(store.deleteFile("a").get(), "b still references the blob");
+        store.close();
+
+        EmbeddedMetadataStore reopened = new EmbeddedMetadataStore(dir, true);
+        assertTrue(reopened.findFile("a").get().isEmpty());
+        assertEquals("b", reopened.findFileByContent("p1", "hash").get().orElseThrow().docId());
+        assertTrue(reopened.deleteFile("b").get(), "b held the last reference");
+        assertTrue(reopened.findFileByContent("p1", "hash").get().isEmpty());
+        assertTrue(reopened.queryFiles(new FileQuery.ByOwner("p1", false), null, 10).get().isEmpty());
+
+        // Reusing a blob whose last file is gone fails, so no file can point at a deleted blob
+        assertTrue(reopened.createFiles(List.of(file("c", "p1", 3, true, "encrypted_files/a", "hash")),
+                Set.of("encrypted_files/a")).isCompletedExceptionally());
+        assertTrue(reopened.deleteFile("missing").isCompletedExceptionally());
+        reopened.close();
+    }
+
+    private static FileMetadata file(String docId, String ownerUid, long createdSeconds, boolean visible) {
+        return file(docId, ownerUid, createdSeconds, visible, "encrypted_files/" + docId, null);
+    }
+
+    private static FileMetadata file(String docId, String ownerUid, long createdSeconds, boolean visible,
+                                     String storagePath, String contentHash) {
+        return new FileMetadata(docId, ownerUid, docId + ".pdf", storagePath, "key", "iv", 2, 262144, 10L, contentHash, null, null, "rsa-oaep", null,
+                Timestamp.ofTimeSecondsAndNanos(createdSeconds, 0), visible, null, List.of(), List.of());
+    }
+
+    private static List<String> ids(List<FileMetadata> files) {
+        return files.stream().map(FileMetadata::docId).toList();
+    }
+}
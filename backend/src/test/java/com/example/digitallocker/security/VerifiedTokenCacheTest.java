@@ -0,0 +1,62 @@
+package com.example.digitallocker.security;
+
+import com.example.digitallocker.observability.Stages;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VerifiedTokenCacheTest {
+
+    private final VerifiedTokenCache cache = new VerifiedTokenCache(true, 100, Duration.ofMinutes(1),
+            new SimpleMeterRegistry(), Stages.NOOP);
+
+    @Test
+    void tokensIssuedBeforeAClaimsChangeAreRefused() throws Exception {
+        Instant issued = Instant.now().minusSeconds(60).truncatedTo(ChronoUnit.SECONDS);
+        AtomicInteger verifications = new AtomicInteger();
+        VerifiedTokenCache.TokenVerifier doctorToken = token -> {
+            verifications.incrementAndGet();
+            return principal("u1", "doctor", issued);
+        };
+
+        cache.get("old-token", doctorToken);
+        cache.get("old-token", doctorToken);
+        assertEquals(1, verifications.get());
+
+        cache.claimsChanged("u1");
+        // Neither the cached entry nor a fresh verification of the old token is accepted
+        assertThrows(IllegalStateException.class, () -> cache.get("old-token", doctorToken));
+        assertEquals(2, verifications.get());
+
+        FirebasePrincipal renewed = cache.get("new-token", token -> principal("u1", "admin", Instant.now().plusSeconds(1)));
+        assertEquals("admin", renewed.role());
+    }
+
+    @Test
+    void aVerificationInFlightDuringTheChangeIsNotCached() {
+        Instant issued = Instant.now().minusSeconds(60).truncatedTo(ChronoUnit.SECONDS);
+        // The change lands while the token is being verified
+        assertThrows(IllegalStateException.class, () -> cache.get("old-token", token -> {
+            cache.claimsChanged("u1");
+            return principal("u1", "doctor", issued);
+        }));
+
+        AtomicInteger verifications = new AtomicInteger();
+        assertThrows(IllegalStateException.class, () -> cache.get("old-token", token -> {
+            verifications.incrementAndGet();
+            return principal("u1", "doctor", issued);
+        }));
+        assertEquals(1, verifications.get(), "nothing was cached for the old token");
+    }
+
+    private static FirebasePrincipal principal(String uid, String role, Instant issuedAt) {
+        return new FirebasePrincipal(uid, role, List.of(), issuedAt, Instant.now().plusSeconds(3600));
+    }
+}
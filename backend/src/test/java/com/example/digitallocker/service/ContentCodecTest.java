@@ -0,0 +1,69 @@
+package com.example.digitallocker.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentCodecTest {
+
+    private final ContentCodec codec = new ContentCodec(true, 3, DataSize.ofKilobytes(64), 0.1, true, new SimpleMeterRegistry());
+
+    @Test
+    void compressesOnlyWhatTheProbeFindsCompressible() throws Exception {
+        byte[] report = "{\"resourceType\":\"Observation\",\"status\":\"final\"}\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        byte[] noise = new byte[200_000];
+        new Random(1).nextBytes(noise);
+
+        assertEquals(ContentCodec.DEFLATE, codec.choose(new MockMultipartFile("files", "obs.json", "application/fhir+json", report)));
+        assertNull(codec.choose(new MockMultipartFile("files", "scan.dcm", "application/dicom", noise)));
+        // Skipped by type or extension without looking at the content
+        assertNull(codec.choose(new MockMultipartFile("files", "photo", "image/jpeg", report)));
+        assertNull(codec.choose(new MockMultipartFile("files", "export.zip", null, report)));
+        assertEquals(ContentCodec.DEFLATE, codec.choose(new MockMultipartFile("files", "chart.svg", "image/svg+xml", report)));
+    }
+
+    @Test
+    void keepsFormatsViewedWithRangeRequestsUncompressed() throws Exception {
+        byte[] pdf = "%PDF-1.7\n1 0 obj << /Type /Page >> endobj\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+
+        assertNull(codec.choose(new MockMultipartFile("files", "labs.pdf", "application/pdf", pdf)));
+        assertNull(codec.choose(new MockMultipartFile("files", "ct.dcm", "application/octet-stream", pdf)));
+
+        ContentCodec compressEverything = new ContentCodec(true, 3, DataSize.ofKilobytes(64), 0.1, false, new SimpleMeterRegistry());
+        assertEquals(ContentCodec.DEFLATE, compressEverything.choose(new MockMultipartFile("files", "labs.pdf", "application/pdf", pdf)));
+    }
+
+    @Test
+    void compressedUploadsDecryptBackToTheOriginal() throws Exception {
+        byte[] report = "PID|1||12345^^^HOSP^MR||DOE^JANE\r".repeat(20_000).getBytes(StandardCharsets.UTF_8);
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        SecretKey key = keyGenerator.generateKey();
+        SegmentedAesGcm cipher = new SegmentedAesGcm(16 * 1024);
+
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        SegmentedAesGcm.Header header;
+        try (InputStream in = codec.encode(ContentCodec.DEFLATE, new ByteArrayInputStream(report))) {
+            header = cipher.encrypt(key, in, stored);
+        }
+        assertTrue(header.plaintextLength() < report.length / 10, "HL7 text compresses well");
+
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        OutputStream decoded = ContentCodec.decode(ContentCodec.DEFLATE, restored);
+        cipher.decrypt(key, header, new ByteArrayInputStream(stored.toByteArray()), decoded);
+        ContentCodec.finish(decoded);
+        assertArrayEquals(report, restored.toByteArray());
+    }
+}
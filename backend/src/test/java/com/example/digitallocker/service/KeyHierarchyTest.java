@@ -0,0 +1,72 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.EmbeddedMetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.google.cloud.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyHierarchyTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void wrapsFileKeysUnderRotatingPatientKeksAndKeepsEveryVersionReadable() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair masterKeyPair = generator.generateKeyPair();
+        EncryptionService encryptionService = encryptionService(masterKeyPair);
+        EmbeddedMetadataStore store = new EmbeddedMetadataStore(dir, false);
+
+        KeyHierarchy hierarchy = hierarchy(encryptionService, store, "aes-kw", Duration.ofDays(30));
+        KeyHierarchy.FileKey first = hierarchy.newFileKey("p1");
+        KeyHierarchy.FileKey second = hierarchy.newFileKey("p1");
+        assertEquals(EncryptionService.KEY_SCHEME_KEK, first.keyScheme());
+        assertEquals(1, first.kekVersion());
+        assertEquals(1, second.kekVersion());
+        assertEquals(1, store.keksOf("p1").get().size(), "one KEK per patient and epoch");
+        assertEquals(1, hierarchy.newFileKey("p2").kekVersion());
+
+        // An epoch of zero rotates on every upload
+        KeyHierarchy rotating = hierarchy(encryptionService, store, "aes-kw", Duration.ZERO);
+        KeyHierarchy.FileKey rotated = rotating.newFileKey("p1");
+        assertEquals(2, rotated.kekVersion());
+
+        // RSA-wrapped files from before the hierarchy decrypt next to KEK-wrapped ones, on a node with cold caches
+        KeyHierarchy.FileKey legacy = hierarchy(encryptionService, store, "rsa-oaep", Duration.ofDays(30)).newFileKey("p1");
+        assertNull(legacy.kekVersion());
+        KeyHierarchy cold = hierarchy(encryptionService(masterKeyPair), store, "aes-kw", Duration.ofDays(30));
+        for (KeyHierarchy.FileKey fileKey : List.of(first, rotated, legacy)) {
+            SecretKey unwrapped = cold.fileKey(file(fileKey));
+            assertArrayEquals(fileKey.key().getEncoded(), unwrapped.getEncoded());
+        }
+        store.close();
+    }
+
+    private static KeyHierarchy hierarchy(EncryptionService encryptionService, EmbeddedMetadataStore store,
+                                          String scheme, Duration rotation) {
+        return new KeyHierarchy(encryptionService, store, scheme, rotation, 100, Duration.ofHours(1), new SimpleMeterRegistry());
+    }
+
+    // Each with its own data key cache
+    private static EncryptionService encryptionService(KeyPair masterKeyPair) {
+        return new EncryptionService(masterKeyPair, 262144, new DataKeyCache(true, 100, Duration.ofMinutes(10), new SimpleMeterRegistry()));
+    }
+
+    private static FileMetadata file(KeyHierarchy.FileKey fileKey) {
+        String docId = "doc-" + fileKey.wrappedKey().hashCode();
+        return new FileMetadata(docId, "p1", "a.pdf", "encrypted_files/" + docId, fileKey.wrappedKey(), "iv", 2, 262144, 10L,
+                null, null, null, fileKey.keyScheme(), fileKey.kekVersion(), Timestamp.now(), true, null, List.of(), List.of());
+    }
+}
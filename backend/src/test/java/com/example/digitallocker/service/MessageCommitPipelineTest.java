@@ -0,0 +1,85 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.EmbeddedMetadataStore;
+import com.example.digitallocker.metadata.Message;
+import com.example.digitallocker.metadata.MessageCommit;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCommitPipelineTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void aBadShareOnlyFailsItselfNotTheMessagesCoalescedWithIt() throws Exception {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        EmbeddedMetadataStore store = new EmbeddedMetadataStore(dir, false);
+        FileMetadataRepository repository = new FileMetadataRepository(store, true, 100, Duration.ofMinutes(5), meters);
+        // A long window, so all three land in one batch
+        MessageCommitPipeline pipeline = new MessageCommitPipeline(store, repository, Duration.ofMillis(200), 100, meters);
+
+        List<String> participants = List.of("d1", "d2");
+        CompletableFuture<Void> first = pipeline.submit(message(participants, "before", null));
+        CompletableFuture<Void> share = pipeline.submit(message(participants, "deleted file", "missing"));
+        CompletableFuture<Void> last = pipeline.submit(message(participants, "after", null));
+
+        first.get(5, TimeUnit.SECONDS);
+        last.get(5, TimeUnit.SECONDS);
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> share.get(5, TimeUnit.SECONDS));
+        assertNotNull(failed.getCause());
+
+        List<Message> stored = store.messages("d1_d2", null, true, 10).get();
+        assertEquals(List.of("before", "after"), stored.stream().map(m -> m.fields().get("textMessage")).toList());
+        assertEquals(2L, store.findConversation("d1_d2").get().orElseThrow().unreadCounts().get("d2"));
+
+        pipeline.shutdown();
+        store.close();
+    }
+
+    @Test
+    void aBatchThatMayHaveBeenAppliedFailsWholeInsteadOfBeingCommittedAgain() throws Exception {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        // Applies the commit, then reports a timeout, like a Firestore commit whose response was lost
+        EmbeddedMetadataStore store = new EmbeddedMetadataStore(dir, false) {
+            @Override
+            public CompletableFuture<Void> commitMessages(MessageCommit commit) {
+                return super.commitMessages(commit).thenCompose(applied ->
+                        CompletableFuture.failedFuture(new TimeoutException("DEADLINE_EXCEEDED")));
+            }
+        };
+        FileMetadataRepository repository = new FileMetadataRepository(store, true, 100, Duration.ofMinutes(5), meters);
+        MessageCommitPipeline pipeline = new MessageCommitPipeline(store, repository, Duration.ofMillis(200), 100, meters);
+
+        List<String> participants = List.of("d1", "d2");
+        CompletableFuture<Void> first = pipeline.submit(message(participants, "first", null));
+        CompletableFuture<Void> second = pipeline.submit(message(participants, "second", null));
+        assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+
+        List<Message> stored = store.messages("d1_d2", null, true, 10).get();
+        assertEquals(List.of("first", "second"), stored.stream().map(m -> m.fields().get("textMessage")).toList());
+        assertEquals(2L, store.findConversation("d1_d2").get().orElseThrow().unreadCounts().get("d2"));
+
+        pipeline.shutdown();
+        store.close();
+    }
+
+    private static MessageCommitPipeline.MessageWrite message(List<String> participants, String text, String sharedDocId) {
+        return new MessageCommitPipeline.MessageWrite("d1_d2", participants, "d1",
+                Map.of("senderUid", "d1", "textMessage", text), text, sharedDocId, sharedDocId != null ? "d2" : null);
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.digitallocker.service;
+
+import com.example.digitallocker.metadata.EmbeddedMetadataStore;
+import com.example.digitallocker.metadata.MessageCommit;
+import com.example.digitallocker.observability.Stages;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.storage.LocalBlobStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientExportServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private SimpleMeterRegistry meters;
+    private EncryptionService encryptionService;
+    private EmbeddedMetadataStore store;
+    private FileMetadataRepository repository;
+    private AccessIndex accessIndex;
+    private KeyHierarchy keyHierarchy;
+    private SlowBlobStore blobStore;
+    private FileUploadService uploads;
+    private PatientExportService export;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        meters = new SimpleMeterRegistry();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        encryptionService = new EncryptionService(generator.generateKeyPair(), 16 * 1024,
+                new DataKeyCache(true, 100, Duration.ofMinutes(10), meters));
+        store = new EmbeddedMetadataStore(dir.resolve("metadata"), false);
+        repository = new FileMetadataRepository(store, true, 100, Duration.ofMinutes(5), meters);
+        accessIndex = new AccessIndex(true, store, repository);
+        keyHierarchy = new KeyHierarchy(encryptionService, store, "aes-kw", Duration.ofDays(30), 100, Duration.ofHours(1), meters);
+        blobStore = new SlowBlobStore(dir.resolve("blobs"));
+        uploads = new FileUploadService(encryptionService, keyHierarchy, repository, accessIndex, blobStore,
+                new ContentCodec(true, 3, DataSize.ofKilobytes(64), 0.1, true, meters), 2, 0, 50, true, meters);
+        // Two files prepared ahead, pages of two, and anything over 64 KB decrypted by the writer
+        export = exportService(0, 2);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        export.shutdown();
+        uploads.shutdown();
+        store.close();
+    }
+
+    @Test
+    void exportsEveryAccessibleDocumentOfThePatientAsOriginallyUploaded() throws Exception {
+        byte[] notes = "BP 120/80, HR 72, no acute distress.\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        byte[] moreNotes = "Follow-up in two weeks.\n".repeat(100).getBytes(StandardCharsets.UTF_8);
+        byte[] scan = new byte[300_000];
+        new Random(7).nextBytes(scan);
+        byte[] hidden = "internal".getBytes(StandardCharsets.UTF_8);
+        uploads.upload("p1", new MockMultipartFile("files", "notes.txt", "text/plain", notes));
+        uploads.upload("p1", new MockMultipartFile("files", "scan.dcm", "application/dicom", scan));
+        uploads.upload("p1", new MockMultipartFile("files", "notes.txt", "text/plain", moreNotes));
+        uploads.upload("p1", new MockMultipartFile("files", "../../etc/report.pdf", "application/pdf", scan.clone()));
+        FileMetadata internal = uploads.upload("p1", new MockMultipartFile("files", "internal.txt", "text/plain", hidden));
+        store.setVisibleToPatient(internal.docId(), false).get();
+        uploads.upload("p2", new MockMultipartFile("files", "other.txt", "text/plain", notes));
+        accessIndex.rebuild();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(5, export.export("admin1", "ROLE_admin", "p1", out));
+        Map<String, byte[]> archive = unzip(out);
+        assertEquals(5, archive.size());
+        assertArrayEquals(scan, archive.get("scan.dcm"));
+        assertArrayEquals(scan, archive.get("report.pdf"), "no directory parts in entry names");
+        assertArrayEquals(hidden, archive.get("internal.txt"));
+        // Both notes.txt, in whichever order they completed
+        byte[] first = archive.get("notes.txt");
+        byte[] second = archive.get("notes (2).txt");
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(notes.length + moreNotes.length, first.length + second.length);
+
+        // The patient's own export leaves out what is hidden from them
+        assertEquals(4, export.export("p1", "ROLE_patient", "p1", new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void anAssignedDoctorGetsExactlyTheFilesTheAccessIndexAllows() throws Exception {
+        Map<String, String> names = uploadRecord();
+        store.assignPatient("d1", "p1").get();
+        accessIndex.rebuild();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.export("d1", "ROLE_doctor", "p1", out);
+        Set<String> exported = unzip(out).keySet();
+        assertEquals(Set.of("labs.txt", "imaging.txt", "internal.txt"), exported, "assigned doctors see hidden files too");
+        assertEquals(allowed("d1", "p1", names), exported);
+
+        // Not assigned to p1, nothing shared: an empty archive
+        assertEquals(0, export.export("d3", "ROLE_doctor", "p1", new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void aDoctorSharedWithGetsOnlyTheSharedFiles() throws Exception {
+        Map<String, String> names = uploadRecord();
+        String labs = docId(names, "labs.txt");
+        store.commitMessages(new MessageCommit("d2_p1", List.of("d2", "p1"), "labs", List.of(
+                new MessageCommit.NewMessage("m1", Map.of("senderUid", "p1", "textMessage", "labs"), labs, "d2")),
+                Map.of("d2", 1))).get();
+        accessIndex.rebuild();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.export("d2", "ROLE_doctor", "p1", out);
+        Set<String> exported = unzip(out).keySet();
+        assertEquals(Set.of("labs.txt"), exported, "neither the unshared nor the hidden files");
+        assertEquals(allowed("d2", "p1", names), exported);
+    }
+
+    @Test
+    void preparesAtMostReadAheadFilesAtOnce() throws Exception {
+        export.shutdown();
+        // More threads than read-ahead, so only read-ahead can be what limits the blob reads
+        export = exportService(8, 2);
+        for (int i = 0; i < 8; i++) {
+            uploads.upload("p1", new MockMultipartFile("files", "note" + i + ".txt", "text/plain",
+                    ("note " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        accessIndex.rebuild();
+
+        blobStore.delayMillis = 50;
+        assertEquals(8, export.export("admin1", "ROLE_admin", "p1", new ByteArrayOutputStream()));
+        assertEquals(2, blobStore.maxConcurrentReads.get());
+    }
+
+    private PatientExportService exportService(int parallelism, int readAhead) {
+        return new PatientExportService(store, repository, accessIndex, keyHierarchy, encryptionService,
+                blobStore, Stages.NOOP, parallelism, readAhead, DataSize.ofKilobytes(64), 2, 1, meters);
+    }
+
+    // p1's record (one file hidden from p1) and another patient's file; returns file names by docId
+    private Map<String, String> uploadRecord() throws Exception {
+        Map<String, String> names = new HashMap<>();
+        for (String name : List.of("labs.txt", "imaging.txt", "internal.txt")) {
+            FileMetadata uploaded = uploads.upload("p1", new MockMultipartFile("files", name, "text/plain",
+                    name.getBytes(StandardCharsets.UTF_8)));
+            names.put(uploaded.docId(), name);
+        }
+        store.setVisibleToPatient(docId(names, "internal.txt"), false).get();
+        FileMetadata other = uploads.upload("p2", new MockMultipartFile("files", "other.txt", "text/plain",
+                "other".getBytes(StandardCharsets.UTF_8)));
+        names.put(other.docId(), "other.txt");
+        return names;
+    }
+
+    // Names of the patient's files the access index lets this doctor open
+    private Set<String> allowed(String doctorUid, String patientUid, Map<String, String> names) {
+        return accessIndex.accessibleDocs(doctorUid, "ROLE_doctor").stream()
+                .filter(accessible -> accessible.doc().ownerUid().equals(patientUid))
+                .map(accessible -> names.get(accessible.doc().docId()))
+                .collect(Collectors.toSet());
+    }
+
+    private static String docId(Map<String, String> names, String name) {
+        return names.entrySet().stream().filter(e -> e.getValue().equals(name)).findFirst().orElseThrow().getKey();
+    }
+
+    private static Map<String, byte[]> unzip(ByteArrayOutputStream out) throws IOException {
+        Map<String, byte[]> archive = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                archive.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+        return archive;
+    }
+
+    // Holds every blob read for delayMillis and records how many were in progress at once
+    private static class SlowBlobStore extends LocalBlobStore {
+        final AtomicInteger concurrentReads = new AtomicInteger();
+        final AtomicInteger maxConcurrentReads = new AtomicInteger();
+        volatile long delayMillis;
+
+        SlowBlobStore(Path root) throws IOException {
+            super(root);
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            maxConcurrentReads.accumulateAndGet(concurrentReads.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentReads.decrementAndGet();
+            }
+            return super.open(path);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.digitallocker.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SegmentedAesGcmTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private final SegmentedAesGcm cipher = new SegmentedAesGcm(SEGMENT_SIZE);
+
+    @Test
+    void roundTripsAcrossSegmentBoundaries() throws Exception {
+        SecretKey key = newKey();
+        for (int length : new int[]{0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE, 3 * SEGMENT_SIZE + 17}) {
+            byte[] plaintext = randomBytes(length);
+            ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+            SegmentedAesGcm.Header header = cipher.encrypt(key, new ByteArrayInputStream(plaintext), sealed);
+
+            assertThat(header.plaintextLength()).isEqualTo(length);
+            assertThat(sealed.size()).isEqualTo(SegmentedAesGcm.ciphertextLength(length, SEGMENT_SIZE));
+
+            ByteArrayOutputStream opened = new ByteArrayOutputStream();
+            cipher.decrypt(key, header, new ByteArrayInputStream(sealed.toByteArray()), opened);
+            assertThat(opened.toByteArray()).isEqualTo(plaintext);
+        }
+    }
+
+    @Test
+    void rejectsTamperedSegment() throws Exception {
+        SecretKey key = newKey();
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        SegmentedAesGcm.Header header = cipher.encrypt(key, new ByteArrayInputStream(randomBytes(2 * SEGMENT_SIZE + 5)), sealed);
+
+        byte[] tampered = sealed.toByteArray();
+        tampered[SEGMENT_SIZE + 100] ^= 1;
+
+        assertThatThrownBy(() -> cipher.decrypt(key, header, new ByteArrayInputStream(tampered), new ByteArrayOutputStream()))
+                .isInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void rejectsTruncationAtSegmentBoundary() throws Exception {
+        SecretKey key = newKey();
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        SegmentedAesGcm.Header header = cipher.encrypt(key, new ByteArrayInputStream(randomBytes(3 * SEGMENT_SIZE)), sealed);
+
+        // Dropping the final segment leaves a well-formed non-final segment at the end, which must not verify as last
+        byte[] truncated = Arrays.copyOf(sealed.toByteArray(), 2 * (SEGMENT_SIZE + SegmentedAesGcm.TAG_LENGTH));
+
+        assertThatThrownBy(() -> cipher.decrypt(key, header, new ByteArrayInputStream(truncated), new ByteArrayOutputStream()))
+                .isInstanceOf(AEADBadTagException.class);
+    }
+
+    @Test
+    void decryptsOnlyTheRequestedRange() throws Exception {
+        SecretKey key = newKey();
+        byte[] plaintext = randomBytes(5 * SEGMENT_SIZE + 123);
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        SegmentedAesGcm.Header header = cipher.encrypt(key, new ByteArrayInputStream(plaintext), sealed);
+        byte[] blob = sealed.toByteArray();
+
+        long[][] ranges = {{0, 0}, {0, SEGMENT_SIZE - 1}, {SEGMENT_SIZE - 10, SEGMENT_SIZE + 10},
+                {2 * SEGMENT_SIZE + 7, 4 * SEGMENT_SIZE + 3}, {5 * SEGMENT_SIZE, plaintext.length - 1}};
+        for (long[] range : ranges) {
+            long offset = SegmentedAesGcm.ciphertextOffset(range[0] / SEGMENT_SIZE, SEGMENT_SIZE);
+            ReadableByteChannel channel = Channels.newChannel(
+                    new ByteArrayInputStream(blob, (int) offset, blob.length - (int) offset));
+
+            ByteArrayOutputStream opened = new ByteArrayOutputStream();
+            cipher.decryptRange(key, header, channel, range[0], range[1], opened);
+            assertThat(opened.toByteArray())
+                    .isEqualTo(Arrays.copyOfRange(plaintext, (int) range[0], (int) range[1] + 1));
+        }
+    }
+
+    private static SecretKey newKey() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        return keyGenerator.generateKey();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
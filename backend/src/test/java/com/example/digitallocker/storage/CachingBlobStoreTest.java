@@ -0,0 +1,141 @@
+package com.example.digitallocker.storage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingBlobStoreTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void missesReadTheBackendWhileOneSharedFillCachesTheBlob() throws Exception {
+        CountingStore backend = new CountingStore(root.resolve("backend"));
+        byte[] content = write(backend, "encrypted_files/a", 100_000);
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        CachingBlobStore cache = new CachingBlobStore(backend, null, root.resolve("cache"),
+                DataSize.ofMegabytes(1), DataSize.ofMegabytes(1), 0, meters);
+
+        backend.gate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> reads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            reads.add(pool.submit(() -> {
+                try (InputStream in = cache.open("encrypted_files/a")) {
+                    return in.readAllBytes();
+                }
+            }));
+        }
+        Thread.sleep(200);
+        backend.gate.countDown();
+        for (Future<byte[]> read : reads) {
+            assertArrayEquals(content, read.get());
+        }
+        pool.shutdown();
+        cache.awaitFills();
+        assertEquals(8 + 1, backend.opens.get(), "each miss reads the backend, and one fill caches the blob");
+        assertEquals(1, meters.get("locker.storage.cache.fills").counter().count());
+
+        try (InputStream in = cache.open("encrypted_files/a")) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+        assertEquals(9, backend.opens.get());
+        assertEquals(content.length, meters.get("locker.storage.cache.bytes.saved").counter().count());
+
+        // A restarted cache finds the entry on disk
+        CachingBlobStore restarted = new CachingBlobStore(backend, null, root.resolve("cache"),
+                DataSize.ofMegabytes(1), DataSize.ofMegabytes(1), 0, new SimpleMeterRegistry());
+        try (InputStream in = restarted.open("encrypted_files/a")) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+        assertEquals(9, backend.opens.get());
+    }
+
+    @Test
+    void anOverwrittenBlobIsNotServedFromTheCache() throws Exception {
+        CountingStore backend = new CountingStore(root.resolve("backend"));
+        write(backend, "encrypted_files/a", 50_000);
+        CachingBlobStore cache = new CachingBlobStore(backend, null, root.resolve("cache"),
+                DataSize.ofMegabytes(1), DataSize.ofMegabytes(1), 0, new SimpleMeterRegistry());
+        cache.readAll("encrypted_files/a");
+        cache.awaitFills();
+
+        // Written behind the cache's back, e.g. by another node
+        Thread.sleep(10);
+        byte[] replaced = write(backend, "encrypted_files/a", 60_000);
+        assertArrayEquals(replaced, cache.readAll("encrypted_files/a"));
+        cache.awaitFills();
+        assertArrayEquals(replaced, cache.readAll("encrypted_files/a"));
+    }
+
+    @Test
+    void staysWithinItsSizeAndBypassesLargeBlobs() throws Exception {
+        CountingStore backend = new CountingStore(root.resolve("backend"));
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        CachingBlobStore cache = new CachingBlobStore(backend, null, root.resolve("cache"),
+                DataSize.ofKilobytes(256), DataSize.ofKilobytes(100), 0, meters);
+
+        for (int i = 0; i < 10; i++) {
+            byte[] content = write(backend, "encrypted_files/" + i, 60_000);
+            assertArrayEquals(content, cache.readAll("encrypted_files/" + i));
+            cache.awaitFills();
+        }
+        assertTrue(meters.get("locker.storage.cache.bytes").gauge().value() <= 256 * 1024);
+
+        byte[] large = write(backend, "encrypted_files/large", 150_000);
+        double filled = meters.get("locker.storage.cache.fills").counter().count();
+        assertArrayEquals(large, cache.readAll("encrypted_files/large"));
+        cache.awaitFills();
+        assertArrayEquals(large, cache.readAll("encrypted_files/large"));
+        assertEquals(filled, meters.get("locker.storage.cache.fills").counter().count(), "large blobs are not cached");
+    }
+
+    private static byte[] write(BlobStore store, String path, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        try (OutputStream out = store.create(path)) {
+            out.write(content);
+        }
+        return content;
+    }
+
+    // Counts whole-blob streams and can hold them until released
+    private static class CountingStore extends LocalBlobStore {
+        final AtomicInteger opens = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        CountingStore(Path root) throws IOException {
+            super(root);
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            opens.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.open(path);
+        }
+    }
+}
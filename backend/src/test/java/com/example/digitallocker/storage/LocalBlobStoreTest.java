@@ -0,0 +1,54 @@
+package com.example.digitallocker.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalBlobStoreTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void writesAtomicallyAndReadsRanges() throws Exception {
+        LocalBlobStore store = new LocalBlobStore(root);
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(content);
+
+        try (OutputStream out = store.create("encrypted_files/a")) {
+            out.write(content);
+            assertFalse(store.exists("encrypted_files/a"), "blob must not be visible before close");
+        }
+        assertTrue(store.exists("encrypted_files/a"));
+        assertArrayEquals(content, store.readAll("encrypted_files/a"));
+
+        long offset = 1_000_003;
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (ReadableByteChannel channel = store.openAt("encrypted_files/a", offset)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            while (channel.read(buffer) >= 0) {
+                read.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        assertArrayEquals(Arrays.copyOfRange(content, (int) offset, content.length), read.toByteArray());
+
+        assertTrue(store.delete("encrypted_files/a"));
+        assertFalse(store.exists("encrypted_files/a"));
+    }
+
+    @Test
+    void rejectsPathsOutsideTheRoot() throws Exception {
+        LocalBlobStore store = new LocalBlobStore(root);
+        assertThrows(IllegalArgumentException.class, () -> store.exists("../outside"));
+    }
+}
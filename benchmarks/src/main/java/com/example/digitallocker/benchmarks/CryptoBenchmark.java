@@ -0,0 +1,69 @@
+package com.example.digitallocker.benchmarks;
+
+import com.example.digitallocker.service.EncryptionService;
+import com.example.digitallocker.service.SegmentedAesGcm;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/*
+ Bulk encryption across payload sizes: the single-shot GCM calls (encryptFile/decryptFile, used by
+ legacy blobs) and the segmented streaming ones used by uploads and downloads today.
+ The 1 GiB case needs a large heap, hence -Xmx8g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class CryptoBenchmark {
+
+    @Param({"4096", "65536", "1048576", "16777216", "268435456", "1073741824"})
+    public int size;
+
+    private EncryptionService encryptionService;
+    private SecretKey aesKey;
+    private byte[] plaintext;
+    private EncryptionService.EncryptedData encrypted;
+    private byte[] segmentedCiphertext;
+    private SegmentedAesGcm.Header header;
+
+    @Setup
+    public void setUp() throws Exception {
+        encryptionService = Fixtures.encryptionService(true);
+        aesKey = encryptionService.generateAesKey();
+        plaintext = Fixtures.randomPayload(size);
+        encrypted = encryptionService.encryptFile(aesKey, plaintext);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) SegmentedAesGcm.ciphertextLength(size, Fixtures.SEGMENT_SIZE));
+        header = encryptionService.encryptStream(aesKey, new ByteArrayInputStream(plaintext), out);
+        segmentedCiphertext = out.toByteArray();
+    }
+
+    @Benchmark
+    public EncryptionService.EncryptedData encryptFile() throws Exception {
+        return encryptionService.encryptFile(aesKey, plaintext);
+    }
+
+    @Benchmark
+    public byte[] decryptFile() throws Exception {
+        return encryptionService.decryptFile(encrypted, aesKey);
+    }
+
+    @Benchmark
+    public long encryptStream() throws Exception {
+        Fixtures.CountingSink sink = new Fixtures.CountingSink();
+        encryptionService.encryptStream(aesKey, new ByteArrayInputStream(plaintext), sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public long decryptStream() throws Exception {
+        Fixtures.CountingSink sink = new Fixtures.CountingSink();
+        return encryptionService.decryptStream(aesKey, header, new ByteArrayInputStream(segmentedCiphertext), sink);
+    }
+}
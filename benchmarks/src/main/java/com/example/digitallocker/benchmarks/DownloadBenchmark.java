@@ -0,0 +1,204 @@
+package com.example.digitallocker.benchmarks;
+
+import com.example.digitallocker.controller.FileController;
+import com.example.digitallocker.metadata.EmbeddedMetadataStore;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.service.AccessIndex;
+import com.example.digitallocker.service.EncryptionService;
+import com.example.digitallocker.service.KeyHierarchy;
+import com.example.digitallocker.service.SegmentedAesGcm;
+import com.example.digitallocker.storage.BlobStore;
+import com.google.cloud.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ FileController.downloadFile as it ships, with Cloud Storage replaced by an in-memory BlobStore: metadata
+ lookup (through the metadata cache), authorization (access index), key unwrap (through the key cache),
+ the Range handling, and decrypting the blob into the response body, written to a counting sink.
+   - range=full: a plain GET of the whole file
+   - range=1m:   a 1 MiB Range request from the middle of the file (clamped to the file size)
+   - legacy:     the same download of a version-1 blob (whole file in memory; ignores range)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class DownloadBenchmark {
+
+    private static final int RANGE_LENGTH = 1 << 20;
+    private static final String OWNER = "p1";
+
+    @Param({"4096", "65536", "1048576", "16777216", "268435456", "1073741824"})
+    public int size;
+
+    @Param({"full", "1m"})
+    public String range;
+
+    private Path dir;
+    private EmbeddedMetadataStore store;
+    private FileController controller;
+    private String rangeHeader;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("download-benchmark");
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        EncryptionService encryptionService = Fixtures.encryptionService(true);
+        store = new EmbeddedMetadataStore(dir, false);
+        FileMetadataRepository repository = new FileMetadataRepository(store, true, 10_000, Duration.ofMinutes(5), meters);
+        AccessIndex accessIndex = new AccessIndex(false, store, repository);
+        KeyHierarchy keyHierarchy = new KeyHierarchy(encryptionService, store, EncryptionService.KEY_SCHEME_KEK, Duration.ofDays(30),
+                10_000, Duration.ofHours(1), meters);
+        MemoryBlobStore blobStore = new MemoryBlobStore();
+        // Listing, upload, directory and export collaborators aren't used by downloads
+        controller = new FileController(encryptionService, keyHierarchy, null, repository, accessIndex, null, null, null,
+                blobStore, null, 500);
+
+        byte[] plaintext = Fixtures.randomPayload(size);
+        KeyHierarchy.FileKey fileKey = keyHierarchy.newFileKey(OWNER);
+        SegmentedAesGcm.Header header;
+        try (OutputStream out = blobStore.create("encrypted_files/segmented")) {
+            header = encryptionService.encryptStream(fileKey.key(), new ByteArrayInputStream(plaintext), out);
+        }
+        repository.create(new FileMetadata("segmented", OWNER, "scan.bin", "encrypted_files/segmented", fileKey.wrappedKey(),
+                Base64.getEncoder().encodeToString(header.noncePrefix()), EncryptionService.VERSION_SEGMENTED,
+                header.segmentSize(), header.plaintextLength(), null, null, null, fileKey.keyScheme(), fileKey.kekVersion(),
+                Timestamp.now(), true, null, List.of(), List.of()), false);
+
+        KeyHierarchy.FileKey legacyKey = keyHierarchy.newFileKey(OWNER);
+        EncryptionService.EncryptedData legacy = encryptionService.encryptFile(legacyKey.key(), plaintext);
+        try (OutputStream out = blobStore.create("encrypted_files/legacy")) {
+            out.write(legacy.ciphertext());
+        }
+        repository.create(new FileMetadata("legacy", OWNER, "scan.bin", "encrypted_files/legacy", legacyKey.wrappedKey(),
+                Base64.getEncoder().encodeToString(legacy.iv()), EncryptionService.VERSION_SINGLE_SHOT,
+                null, null, null, null, null, legacyKey.keyScheme(), legacyKey.kekVersion(),
+                Timestamp.now(), true, null, List.of(), List.of()), false);
+
+        if (range.equals("full")) {
+            rangeHeader = null;
+        } else {
+            long from = Math.max(0, size / 2 - RANGE_LENGTH / 2);
+            long to = Math.min(size - 1, from + RANGE_LENGTH - 1);
+            rangeHeader = "bytes=" + from + "-" + to;
+        }
+
+        // JMH may call the benchmark methods from other threads than this one
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                OWNER, null, List.of(new SimpleGrantedAuthority("ROLE_patient"))));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        SecurityContextHolder.clearContext();
+        store.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long segmented() throws Exception {
+        return download("segmented");
+    }
+
+    @Benchmark
+    public long legacy() throws Exception {
+        return download("legacy");
+    }
+
+    private long download(String docId) throws IOException {
+        ResponseEntity<StreamingResponseBody> response = controller.downloadFile(docId, rangeHeader);
+        if (response.getBody() == null) {
+            throw new IllegalStateException("Download of " + docId + " failed with " + response.getStatusCode());
+        }
+        Fixtures.CountingSink sink = new Fixtures.CountingSink();
+        response.getBody().writeTo(sink);
+        return sink.count;
+    }
+
+    // Blobs in memory: the storage backend without its network time, so the numbers are the application's own
+    private static final class MemoryBlobStore implements BlobStore {
+
+        private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+        @Override
+        public OutputStream create(String path) {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    blobs.put(path, toByteArray());
+                }
+            };
+        }
+
+        @Override
+        public boolean exists(String path) {
+            return blobs.containsKey(path);
+        }
+
+        @Override
+        public BlobStat stat(String path) {
+            byte[] blob = blobs.get(path);
+            return blob != null ? new BlobStat(1, blob.length) : null;
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            return new ByteArrayInputStream(require(path));
+        }
+
+        @Override
+        public byte[] readAll(String path) throws IOException {
+            return require(path);
+        }
+
+        @Override
+        public ReadableByteChannel openAt(String path, long offset) throws IOException {
+            byte[] blob = require(path);
+            int start = (int) Math.min(offset, blob.length);
+            return Channels.newChannel(new ByteArrayInputStream(blob, start, blob.length - start));
+        }
+
+        @Override
+        public boolean delete(String path) {
+            return blobs.remove(path) != null;
+        }
+
+        private byte[] require(String path) throws IOException {
+            byte[] blob = blobs.get(path);
+            if (blob == null) {
+                throw new IOException("No blob " + path);
+            }
+            return blob;
+        }
+    }
+}
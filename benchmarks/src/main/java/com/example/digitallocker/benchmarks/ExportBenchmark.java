@@ -0,0 +1,191 @@
+package com.example.digitallocker.benchmarks;
+
+import com.example.digitallocker.metadata.EmbeddedMetadataStore;
+import com.example.digitallocker.metadata.FileQuery;
+import com.example.digitallocker.observability.Stages;
+import com.example.digitallocker.repository.FileMetadata;
+import com.example.digitallocker.repository.FileMetadataRepository;
+import com.example.digitallocker.service.AccessIndex;
+import com.example.digitallocker.service.EncryptionService;
+import com.example.digitallocker.service.KeyHierarchy;
+import com.example.digitallocker.service.PatientExportService;
+import com.example.digitallocker.service.SegmentedAesGcm;
+import com.example.digitallocker.storage.BlobStore;
+import com.example.digitallocker.storage.LocalBlobStore;
+import com.google.cloud.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ A patient record of `files` segmented files of `size` bytes on a local blob store and the embedded
+ metadata store, read back two ways:
+   - sequentialDownloads: what a client does today, one download after another (metadata read, access
+     check, key unwrap, blob read and decrypt per file)
+   - export: PatientExportService writing the zip, with `readAhead` files prepared concurrently
+ Both write to a counting sink. Blobs come from the page cache, and `latencyMillis` is added to every
+ blob read to stand in for Cloud Storage's time to first byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ExportBenchmark {
+
+    private static final String PATIENT = "p1";
+
+    @Param({"64"})
+    public int files;
+
+    @Param({"65536", "1048576"})
+    public int size;
+
+    @Param({"1", "8"})
+    public int readAhead;
+
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    private Path dir;
+    private EncryptionService encryptionService;
+    private EmbeddedMetadataStore store;
+    private FileMetadataRepository repository;
+    private AccessIndex accessIndex;
+    private KeyHierarchy keyHierarchy;
+    private BlobStore blobStore;
+    private PatientExportService export;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("export-benchmark");
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        encryptionService = Fixtures.encryptionService(true);
+        store = new EmbeddedMetadataStore(dir.resolve("metadata"), false);
+        repository = new FileMetadataRepository(store, true, 10_000, Duration.ofMinutes(5), meters);
+        accessIndex = new AccessIndex(false, store, repository);
+        keyHierarchy = new KeyHierarchy(encryptionService, store, EncryptionService.KEY_SCHEME_KEK, Duration.ofDays(30),
+                10_000, Duration.ofHours(1), meters);
+        blobStore = new SlowBlobStore(new LocalBlobStore(dir.resolve("blobs")), latencyMillis);
+        export = new PatientExportService(store, repository, accessIndex, keyHierarchy, encryptionService, blobStore,
+                Stages.NOOP, 0, readAhead, DataSize.ofMegabytes(8), 100, 1, meters);
+
+        byte[] plaintext = Fixtures.randomPayload(size);
+        for (int i = 0; i < files; i++) {
+            String docId = "doc-" + i;
+            String storagePath = "encrypted_files/" + docId;
+            KeyHierarchy.FileKey fileKey = keyHierarchy.newFileKey(PATIENT);
+            SegmentedAesGcm.Header header;
+            try (OutputStream out = blobStore.create(storagePath)) {
+                header = encryptionService.encryptStream(fileKey.key(), new ByteArrayInputStream(plaintext), out);
+            }
+            repository.create(new FileMetadata(docId, PATIENT, "file-" + i + ".bin", storagePath, fileKey.wrappedKey(),
+                    Base64.getEncoder().encodeToString(header.noncePrefix()), EncryptionService.VERSION_SEGMENTED,
+                    header.segmentSize(), header.plaintextLength(), null, null, null, fileKey.keyScheme(), fileKey.kekVersion(),
+                    Timestamp.now(), true, null, List.of(), List.of()), false);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        export.shutdown();
+        store.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long sequentialDownloads() throws Exception {
+        Fixtures.CountingSink response = new Fixtures.CountingSink();
+        for (FileMetadata listed : store.queryFiles(new FileQuery.ByOwner(PATIENT, false), null, files).get()) {
+            FileMetadata doc = repository.findById(listed.docId()).orElseThrow();
+            if (accessIndex.accessType("admin", "ROLE_admin", doc) == null) {
+                continue;
+            }
+            SecretKey key = keyHierarchy.fileKey(doc);
+            SegmentedAesGcm.Header header = new SegmentedAesGcm.Header(Base64.getDecoder().decode(doc.iv()),
+                    doc.segmentSize(), doc.plaintextSize());
+            try (InputStream in = blobStore.open(doc.storagePath())) {
+                encryptionService.decryptStream(key, header, in, response);
+            }
+        }
+        return response.count;
+    }
+
+    @Benchmark
+    public long export() throws Exception {
+        Fixtures.CountingSink response = new Fixtures.CountingSink();
+        export.export("admin", "ROLE_admin", PATIENT, response);
+        return response.count;
+    }
+
+    // Waits before every read, like a remote store's round trip
+    private record SlowBlobStore(BlobStore delegate, int latencyMillis) implements BlobStore {
+
+        @Override
+        public OutputStream create(String path) throws IOException {
+            return delegate.create(path);
+        }
+
+        @Override
+        public boolean exists(String path) throws IOException {
+            return delegate.exists(path);
+        }
+
+        @Override
+        public BlobStat stat(String path) throws IOException {
+            return delegate.stat(path);
+        }
+
+        @Override
+        public InputStream open(String path) throws IOException {
+            pause();
+            return delegate.open(path);
+        }
+
+        @Override
+        public byte[] readAll(String path) throws IOException {
+            pause();
+            return delegate.readAll(path);
+        }
+
+        @Override
+        public ReadableByteChannel openAt(String path, long offset) throws IOException {
+            pause();
+            return delegate.openAt(path, offset);
+        }
+
+        @Override
+        public boolean delete(String path) throws IOException {
+            return delegate.delete(path);
+        }
+
+        private void pause() throws IOException {
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.digitallocker.benchmarks;
+
+import com.example.digitallocker.service.DataKeyCache;
+import com.example.digitallocker.service.EncryptionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.SplittableRandom;
+
+// Shared setup: an EncryptionService with a freshly generated master key pair instead of keystore.jks
+final class Fixtures {
+
+    static final int SEGMENT_SIZE = 262144;
+
+    private Fixtures() {
+    }
+
+    static EncryptionService encryptionService(boolean keyCacheEnabled) throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair masterKeyPair = generator.generateKeyPair();
+        DataKeyCache keyCache = new DataKeyCache(keyCacheEnabled, 1000, Duration.ofMinutes(10), new SimpleMeterRegistry());
+        return new EncryptionService(masterKeyPair, SEGMENT_SIZE, keyCache);
+    }
+
+    static byte[] randomPayload(int size) {
+        byte[] payload = new byte[size];
+        new SplittableRandom(42).nextBytes(payload);
+        return payload;
+    }
+
+    // Stands in for the servlet response: accepts the bytes and only counts them
+    static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
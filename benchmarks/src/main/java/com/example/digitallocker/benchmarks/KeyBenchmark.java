@@ -0,0 +1,64 @@
+package com.example.digitallocker.benchmarks;
+
+import com.example.digitallocker.service.EncryptionService;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+// Per-file key operations: AES key generation, and wrapping the data key with RSA-OAEP (key scheme rsa-oaep)
+// or with AES key wrap under a patient KEK (aes-kw)
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyBenchmark {
+
+    private EncryptionService encryptionService;
+    private SecretKey aesKey;
+    private String wrappedKey;
+    private SecretKey kek;
+    private String kekWrappedKey;
+
+    @Setup
+    public void setUp() throws Exception {
+        encryptionService = Fixtures.encryptionService(true);
+        aesKey = encryptionService.generateAesKey();
+        wrappedKey = encryptionService.wrapAesKey(aesKey);
+        kek = encryptionService.generateAesKey();
+        kekWrappedKey = encryptionService.wrapAesKey(aesKey, kek);
+    }
+
+    @Benchmark
+    public SecretKey generateAesKey() throws Exception {
+        return encryptionService.generateAesKey();
+    }
+
+    @Benchmark
+    public String wrapAesKey() throws Exception {
+        return encryptionService.wrapAesKey(aesKey);
+    }
+
+    @Benchmark
+    public SecretKey unwrapAesKey() throws Exception {
+        return encryptionService.unwrapAesKey(wrappedKey);
+    }
+
+    // The download path's unwrap, answered by the data key cache after the first call
+    @Benchmark
+    public SecretKey unwrapAesKeyCached() throws Exception {
+        return encryptionService.unwrapAesKey("doc", wrappedKey);
+    }
+
+    @Benchmark
+    public String wrapAesKeyWithKek() throws Exception {
+        return encryptionService.wrapAesKey(aesKey, kek);
+    }
+
+    @Benchmark
+    public SecretKey unwrapAesKeyWithKek() throws Exception {
+        return encryptionService.unwrapAesKey(kekWrappedKey, kek);
+    }
+}
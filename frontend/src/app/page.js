@@ -10,8 +10,58 @@ import { db } from '../../db';
 
 const API_BASE_URL = 'http://localhost:8080';
 
+// GET that waits out the backend's per-user rate limit: on 429 it sleeps for Retry-After (capped) and tries again
+const MAX_RATE_LIMIT_RETRIES = 3;
+const getWithRetry = async (url, config) => {
+    for (let attempt = 0; ; attempt++) {
+        try {
+            return await axios.get(url, config);
+        } catch (error) {
+            if (error.response?.status !== 429 || attempt >= MAX_RATE_LIMIT_RETRIES) {
+                throw error;
+            }
+            const retryAfter = Number(error.response.headers['retry-after']) || 1;
+            await new Promise(resolve => setTimeout(resolve, Math.min(retryAfter, 10) * 1000));
+        }
+    }
+};
+
+// Groups a doctor's listing by access type, adding to what earlier pages already grouped
+const groupDoctorFiles = (filesFromApi, grouped = { assigned: {}, shared: [] }) => {
+    const result = { assigned: { ...grouped.assigned }, shared: [...grouped.shared] };
+    filesFromApi.forEach(file => {
+        if (file.accessType === 'assigned') {
+            const patientUid = file.ownerUid;
+            result.assigned[patientUid] = [...(result.assigned[patientUid] || []), file];
+        } else if (file.accessType === 'shared') {
+            result.shared.push(file);
+        }
+    });
+    return result;
+};
+
 // --- Helper UI Components (Defined Outside Home) ---
 
+// Fetches the next page of a paginated listing
+const LoadMoreButton = ({ onClick, isLoading, label }) => (
+    <button 
+        onClick={onClick} 
+        disabled={isLoading}
+        style={{ 
+            marginTop: '1rem', 
+            padding: '0.5rem 1rem', 
+            backgroundColor: '#6c757d', 
+            color: 'white', 
+            border: 'none', 
+            borderRadius: '4px', 
+            cursor: 'pointer',
+            opacity: isLoading ? 0.6 : 1
+        }}
+    >
+        {label}
+    </button>
+);
+
 // Component for Patient's File View
 const PatientFileView = ({ files, handleViewOrDownload, isLoading }) => (
     <div className="styled-header-box">
@@ -52,6 +102,7 @@ const PatientFileView = ({ files, handleViewOrDownload, isLoading }) => (
 const DoctorFileView = ({ 
     files, 
     conversations, 
+    loadMoreConversations, 
     openShareModal, 
     handleViewOrDownload, 
     openHistoryModal, 
@@ -148,6 +199,7 @@ const DoctorFileView = ({
                     <div key={convo.conversationId} style={{borderBottom: '1px solid #ccc', paddingBottom: '1rem', marginBottom: '1rem'}}>
                         <p><strong>Conversation With:</strong> <code>{convo.participants && convo.participants.find(p => p !== auth.currentUser?.uid) || 'Yourself'}</code></p>
                         <p><strong>Last Message:</strong> "{convo.lastMessage || 'No message content'}"</p>
+                        {convo.unreadCount > 0 && <p><strong>Unread:</strong> {convo.unreadCount}</p>}
                         <button 
                             onClick={() => openHistoryModal(convo.conversationId)}
                             style={{
@@ -164,6 +216,9 @@ const DoctorFileView = ({
                     </div>
                 ))
             ) : <p>You have no messages.</p>}
+            {loadMoreConversations && (
+                <LoadMoreButton onClick={loadMoreConversations} isLoading={isLoading} label="Load more conversations" />
+            )}
         </div>
     </>
 );
@@ -392,6 +447,7 @@ const MainView = ({
     userRole, 
     files, 
     conversations, 
+    loadMoreConversations, 
     adminDashboardData, 
     handleVisibilityToggle, 
     handleViewOrDownload,
@@ -428,6 +484,7 @@ const MainView = ({
         return <DoctorFileView 
             files={files} 
             conversations={conversations} 
+            loadMoreConversations={loadMoreConversations} 
             openShareModal={openShareModal} 
             handleViewOrDownload={handleViewOrDownload} 
             openHistoryModal={openHistoryModal}
@@ -460,7 +517,9 @@ export default function Home() {
 
     // State for Data Display
     const [files, setFiles] = useState([]);
+    const [filesPageToken, setFilesPageToken] = useState(null);
     const [conversations, setConversations] = useState([]);
+    const [conversationsPageToken, setConversationsPageToken] = useState(null);
     const [assignments, setAssignments] = useState([]);
     const [adminDashboardData, setAdminDashboardData] = useState([]);
 
@@ -483,6 +542,7 @@ export default function Home() {
     const [isHistoryModalOpen, setIsHistoryModalOpen] = useState(false);
     const [selectedConversationId, setSelectedConversationId] = useState(null);
     const [messageHistory, setMessageHistory] = useState([]);
+    const [olderMessagesToken, setOlderMessagesToken] = useState(null);
 
     // --- UseEffect Hooks ---
     useEffect(() => {
@@ -513,6 +573,42 @@ export default function Home() {
         }
     }, [planeAnimation]);
 
+    // Server push: refresh files and conversations when the backend reports a change, instead of polling.
+    // EventSource can't send the ID token as a header, so each connection is opened with a single-use ticket;
+    // when the stream drops (or times out) a new ticket is fetched and the stream reopened.
+    useEffect(() => {
+        if (!idToken || !userRole) return;
+        let events = null;
+        let reconnectTimer = null;
+        let closed = false;
+        const connect = async () => {
+            try {
+                const response = await axios.post(`${API_BASE_URL}/api/events/ticket`, {}, {
+                    headers: { 'Authorization': `Bearer ${idToken}` }
+                });
+                if (closed) return;
+                events = new EventSource(`${API_BASE_URL}/api/events?ticket=${encodeURIComponent(response.data.ticket)}`);
+                events.addEventListener('file', () => fetchFiles(idToken, userRole));
+                if (userRole !== 'patient') {
+                    events.addEventListener('conversation', () => fetchConversations(idToken));
+                }
+                events.onerror = () => {
+                    events.close();
+                    if (!closed) reconnectTimer = setTimeout(connect, 5000);
+                };
+            } catch (error) {
+                console.error("Failed to open the event stream:", error);
+                if (!closed) reconnectTimer = setTimeout(connect, 5000);
+            }
+        };
+        connect();
+        return () => {
+            closed = true;
+            clearTimeout(reconnectTimer);
+            if (events) events.close();
+        };
+    }, [idToken, userRole]);
+
     // --- API Fetching Functions ---
     const fetchAssignments = async (token) => {
         try {
@@ -530,67 +626,64 @@ export default function Home() {
         }
     };
 
-    const fetchFiles = async (token, role) => {
+    // Loads one page of the listing: the first page replaces what is shown, later pages (pageToken) are appended.
+    // The next page is only fetched when the user asks for it.
+    const fetchFiles = async (token, role, pageToken = null) => {
         try {
             setMessage('Fetching files...');
-            const response = await axios.get(`${API_BASE_URL}/api/files/list`, {
-                headers: { 'Authorization': `Bearer ${token}` }
+            const response = await getWithRetry(`${API_BASE_URL}/api/files/list`, {
+                headers: { 'Authorization': `Bearer ${token}` },
+                params: pageToken ? { pageToken } : {}
             });
+            const filesFromApi = response.data;
 
             if (role === 'doctor') {
-                const filesFromApi = response.data;
-                const groupedFiles = {
-                    assigned: {},
-                    shared: []
-                };
-
-                filesFromApi.forEach(file => {
-                    if (file.accessType === 'assigned') {
-                        const patientUid = file.ownerUid;
-                        if (!groupedFiles.assigned[patientUid]) {
-                            groupedFiles.assigned[patientUid] = [];
-                        }
-                        groupedFiles.assigned[patientUid].push(file);
-                    } else if (file.accessType === 'shared') {
-                        groupedFiles.shared.push(file);
-                    }
-                });
-
-                setFiles(groupedFiles);
+                setFiles(current => groupDoctorFiles(filesFromApi, pageToken ? current : undefined));
             } else {
-                setFiles(response.data);
+                setFiles(current => pageToken ? [...current, ...filesFromApi] : filesFromApi);
             }
+            setFilesPageToken(response.headers['x-next-page-token'] || null);
             
             setMessage('Files loaded successfully.');
         } catch (error) {
             console.error("Failed to fetch files:", error);
-            setMessage('Failed to fetch files.');
+            setMessage(error.response?.status === 429
+                ? 'Too many requests, please try again in a moment.'
+                : 'Failed to fetch files.');
         }
     };
 
-    const fetchConversations = async (token) => {
+    // One page of the inbox: the first page replaces what is shown, later pages (pageToken) are appended
+    const fetchConversations = async (token, pageToken = null) => {
         try {
             setMessage('Fetching conversations...');
-            const response = await axios.get(`${API_BASE_URL}/api/messages/conversations`, {
-                headers: { 'Authorization': `Bearer ${token}` }
+            const response = await getWithRetry(`${API_BASE_URL}/api/messages/conversations`, {
+                headers: { 'Authorization': `Bearer ${token}` },
+                params: pageToken ? { pageToken } : {}
             });
-            setConversations(response.data);
+            setConversations(current => pageToken ? [...current, ...response.data] : response.data);
+            setConversationsPageToken(response.headers['x-next-page-token'] || null);
             setMessage('Conversations loaded successfully.');
         } catch (error) {
             console.error("Failed to fetch conversations:", error);
-            setMessage('Failed to load conversations.');
+            setMessage(error.response?.status === 429
+                ? 'Too many requests, please try again in a moment.'
+                : 'Failed to load conversations.');
         }
     };
 
     // NEW: Fetch message history for a specific conversation
-    const fetchMessageHistory = async (conversationId) => {
+    // The latest page first; older pages (olderToken) are put in front of what is shown when the user asks
+    const fetchMessageHistory = async (conversationId, olderToken = null) => {
         if (!conversationId || !idToken) return;
         try {
             setMessage('Loading messages...');
-            const response = await axios.get(`${API_BASE_URL}/api/messages/conversations/${conversationId}/messages`, {
-                headers: { 'Authorization': `Bearer ${idToken}` }
+            const response = await getWithRetry(`${API_BASE_URL}/api/messages/conversations/${conversationId}/messages`, {
+                headers: { 'Authorization': `Bearer ${idToken}` },
+                params: olderToken ? { before: olderToken } : {}
             });
-            setMessageHistory(response.data);
+            setMessageHistory(current => olderToken ? [...response.data, ...current] : response.data);
+            setOlderMessagesToken(response.headers['x-older-page-token'] || null);
             setIsHistoryModalOpen(true);
         } catch (error) {
             console.error("Failed to fetch message history:", error);
@@ -797,6 +890,12 @@ export default function Home() {
     const openHistoryModal = (conversationId) => {
         setSelectedConversationId(conversationId);
         fetchMessageHistory(conversationId);
+        // Opening the history reads the conversation: clear its unread badge
+        axios.post(`${API_BASE_URL}/api/messages/conversations/${conversationId}/read`, {}, {
+            headers: { 'Authorization': `Bearer ${idToken}` }
+        }).then(() => setConversations(current => current.map(convo =>
+            convo.conversationId === conversationId ? { ...convo, unreadCount: 0 } : convo
+        ))).catch(error => console.error("Failed to mark conversation as read:", error));
     };
 
     // --- NEW Admin Action Handlers ---
@@ -851,9 +950,11 @@ export default function Home() {
         setIdToken('');
         setUserRole(null);
         setFiles([]);
+        setFilesPageToken(null);
         setAssignments([]);
         setAdminDashboardData([]);
         setConversations([]);
+        setConversationsPageToken(null);
         setEmail('');
         setPassword('');
         setMessage('Logged out successfully.');
@@ -1013,6 +1114,9 @@ export default function Home() {
                             userRole={userRole}
                             files={files}
                             conversations={conversations}
+                            loadMoreConversations={conversationsPageToken
+                                ? () => fetchConversations(idToken, conversationsPageToken)
+                                : null}
                             adminDashboardData={adminDashboardData}
                             // Pass all handlers and state setters needed by child components
                             handleVisibilityToggle={handleVisibilityToggle} 
@@ -1032,6 +1136,13 @@ export default function Home() {
                             setIsNewMessageModalOpen={setIsNewMessageModalOpen}
                             isLoading={isLoading}
                         />
+                        {filesPageToken && (
+                            <LoadMoreButton 
+                                onClick={() => fetchFiles(idToken, userRole, filesPageToken)} 
+                                isLoading={isLoading}
+                                label="Load more documents"
+                            />
+                        )}
                     </>
                 )}
 
@@ -1270,6 +1381,13 @@ export default function Home() {
                         backdropFilter: 'blur(10px)'
                     }}>
                         <h3 style={{ marginBottom: '1rem' }}>Conversation History</h3>
+                        {olderMessagesToken && (
+                            <LoadMoreButton 
+                                onClick={() => fetchMessageHistory(selectedConversationId, olderMessagesToken)} 
+                                isLoading={isLoading}
+                                label="Load older messages"
+                            />
+                        )}
                         {messageHistory.length > 0 ? (
                             messageHistory.map(msg => (
                                 <div key={msg.messageId} style={{